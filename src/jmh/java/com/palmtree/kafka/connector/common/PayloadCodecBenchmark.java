@@ -0,0 +1,82 @@
+package com.palmtree.kafka.connector.common;
+
+import com.google.protobuf.ByteString;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures compressing a JSON body in the sink and decompressing it in the source with each
+ * {@link PayloadCodec}, on one thread, so the score is messages per second per core. The {@code
+ * wireBytes} and {@code payloadBytes} counters give the bytes sent to Cloud Pub/Sub for the bytes
+ * of payload moved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+  @Param({"none", "gzip", "lz4"})
+  public String codec;
+
+  @Param({"1024", "16384", "262144"})
+  public int payloadBytes;
+
+  private PayloadCodec payloadCodec;
+  private ByteString payload;
+
+  /** The counters reported next to the score. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class WireCounters {
+    public long payloadBytes;
+    public long wireBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      payloadBytes = 0;
+      wireBytes = 0;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    payloadCodec = PayloadCodec.getEnum(codec);
+    // JSON records whose values vary, as in a typical event stream.
+    Random random = new Random(0);
+    StringBuilder json = new StringBuilder();
+    while (json.length() < payloadBytes) {
+      json.append("{\"id\":")
+          .append(random.nextInt(1000000))
+          .append(",\"user\":\"user-")
+          .append(random.nextInt(1000))
+          .append("\",\"event\":\"page_view\",\"latency_ms\":")
+          .append(random.nextInt(500))
+          .append("}\n");
+    }
+    payload = ByteString.copyFromUtf8(json.substring(0, payloadBytes));
+  }
+
+  @Benchmark
+  public ByteString compressAndDecompress(WireCounters counters) {
+    ByteString wire = payloadCodec.compress(payload);
+    counters.payloadBytes += payload.size();
+    counters.wireBytes += wire.size();
+    return payloadCodec.decompress(wire);
+  }
+}
@@ -0,0 +1,111 @@
+package com.palmtree.kafka.connector.sink;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares encoding large numeric arrays with {@link SampleSinkTask#handleValue}, which writes
+ * every element into one buffer, to {@code concat}, the earlier encoding that allocated a buffer
+ * and a {@link ByteString} per element and concatenated them. Both produce the same bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SinkTaskArrayEncodingBenchmark {
+
+  @Param({"INT32", "INT64", "FLOAT64"})
+  public Schema.Type elementType;
+
+  @Param({"10000", "100000"})
+  public int elements;
+
+  private SampleSinkTask task;
+  private Schema schema;
+  private Object[] array;
+  private final PubsubMessage.Builder message = PubsubMessage.newBuilder();
+
+  @Setup
+  public void setup() {
+    task = new SampleSinkTask(mock(Publisher.class));
+    Map<String, String> props = new HashMap<>();
+    props.put(ConnectorUtils.CPS_PROJECT_CONFIG, "project");
+    props.put(ConnectorUtils.CPS_TOPIC_CONFIG, "topic");
+    task.start(props);
+    Random random = new Random(0);
+    array = new Object[elements];
+    for (int i = 0; i < elements; ++i) {
+      switch (elementType) {
+        case INT32:
+          array[i] = random.nextInt();
+          break;
+        case INT64:
+          array[i] = random.nextLong();
+          break;
+        case FLOAT64:
+          array[i] = random.nextDouble();
+          break;
+        default:
+          throw new IllegalArgumentException("Unexpected element type " + elementType);
+      }
+    }
+    schema = SchemaBuilder.array(SchemaBuilder.type(elementType).build()).build();
+    if (!concat().equals(streaming())) {
+      throw new IllegalStateException("The encodings of " + elementType + " arrays differ.");
+    }
+  }
+
+  @Benchmark
+  public ByteString streaming() {
+    message.clear();
+    return task.handleValue(schema, array, message);
+  }
+
+  @Benchmark
+  public ByteString concat() {
+    ByteString out = ByteString.EMPTY;
+    for (Object o : array) {
+      ByteBuffer buffer;
+      switch (elementType) {
+        case INT32:
+          buffer = ByteBuffer.allocate(4);
+          buffer.putInt((Integer) o);
+          break;
+        case INT64:
+          buffer = ByteBuffer.allocate(8);
+          buffer.putLong((Long) o);
+          break;
+        default:
+          buffer = ByteBuffer.allocate(8);
+          buffer.putDouble((Double) o);
+          break;
+      }
+      out = out.concat(ByteString.copyFrom(buffer.array()));
+    }
+    return out;
+  }
+}
@@ -0,0 +1,89 @@
+package com.palmtree.kafka.connector.sink;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.pubsub.v1.PubsubMessage;
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures turning a keyed record with a BYTES value into the message that {@link
+ * SampleSinkTask#put} publishes for it, with and without the Kafka metadata attributes. Records
+ * cycle through {@code partitions} partitions. {@code gc.alloc.rate.norm} is the bytes allocated
+ * per record, most of which should be the message itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SinkTaskConvertRecordBenchmark {
+
+  private static final int RECORDS = 1024;
+
+  @Param({"false", "true"})
+  public boolean metadata;
+
+  @Param({"16"})
+  public int partitions;
+
+  @Param({"256"})
+  public int payloadBytes;
+
+  private SampleSinkTask task;
+  private SinkRecord[] records;
+  private int next;
+
+  @Setup
+  public void setup() {
+    task = new SampleSinkTask(mock(Publisher.class));
+    Map<String, String> props = new HashMap<>();
+    props.put(ConnectorUtils.CPS_PROJECT_CONFIG, "project");
+    props.put(ConnectorUtils.CPS_TOPIC_CONFIG, "topic");
+    props.put(SampleSinkConnector.PUBLISH_KAFKA_METADATA, Boolean.toString(metadata));
+    task.start(props);
+    Random random = new Random(0);
+    records = new SinkRecord[RECORDS];
+    for (int i = 0; i < RECORDS; ++i) {
+      byte[] payload = new byte[payloadBytes];
+      random.nextBytes(payload);
+      records[i] =
+          new SinkRecord(
+              "topic",
+              i % partitions,
+              Schema.STRING_SCHEMA,
+              "key" + i,
+              Schema.BYTES_SCHEMA,
+              payload,
+              i,
+              1500000000000L + i,
+              TimestampType.CREATE_TIME);
+    }
+  }
+
+  @Benchmark
+  public PubsubMessage convertRecord() {
+    SinkRecord record = records[next];
+    next = (next + 1) % RECORDS;
+    return task.convertRecord(record);
+  }
+}
@@ -0,0 +1,147 @@
+package com.palmtree.kafka.connector.sink;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures turning a record value into a message body with {@link SampleSinkTask#handleValue}
+ * for every {@link Schema.Type}. {@code elements} is the number of elements of an ARRAY, the
+ * number of attribute fields of a STRUCT next to its body and the number of entries of a MAP; the
+ * other types ignore it. Compare {@code gc.alloc.rate.norm} to see the bytes allocated per value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SinkTaskHandleValueBenchmark {
+
+  private static final String BODY_FIELD = SampleSinkConnector.DEFAULT_MESSAGE_BODY_NAME;
+
+  @Param({
+    "INT8", "INT16", "INT32", "INT64", "FLOAT32", "FLOAT64", "BOOLEAN", "STRING", "BYTES",
+    "STRUCT", "MAP", "ARRAY"
+  })
+  public Schema.Type type;
+
+  @Param({"10", "1000"})
+  public int elements;
+
+  @Param({"1024"})
+  public int payloadBytes;
+
+  private SampleSinkTask task;
+  private Schema schema;
+  private Object value;
+  private final PubsubMessage.Builder message = PubsubMessage.newBuilder();
+
+  @Setup
+  public void setup() {
+    task = new SampleSinkTask(mock(Publisher.class));
+    Map<String, String> props = new HashMap<>();
+    props.put(ConnectorUtils.CPS_PROJECT_CONFIG, "project");
+    props.put(ConnectorUtils.CPS_TOPIC_CONFIG, "topic");
+    task.start(props);
+    byte[] payload = new byte[payloadBytes];
+    new Random(0).nextBytes(payload);
+    switch (type) {
+      case INT8:
+        schema = Schema.INT8_SCHEMA;
+        value = (byte) 42;
+        break;
+      case INT16:
+        schema = Schema.INT16_SCHEMA;
+        value = (short) 4242;
+        break;
+      case INT32:
+        schema = Schema.INT32_SCHEMA;
+        value = 424242;
+        break;
+      case INT64:
+        schema = Schema.INT64_SCHEMA;
+        value = 42424242424242L;
+        break;
+      case FLOAT32:
+        schema = Schema.FLOAT32_SCHEMA;
+        value = 42.42f;
+        break;
+      case FLOAT64:
+        schema = Schema.FLOAT64_SCHEMA;
+        value = 42.4242;
+        break;
+      case BOOLEAN:
+        schema = Schema.BOOLEAN_SCHEMA;
+        value = true;
+        break;
+      case STRING:
+        schema = Schema.STRING_SCHEMA;
+        value = new String(payload, StandardCharsets.ISO_8859_1);
+        break;
+      case BYTES:
+        schema = Schema.BYTES_SCHEMA;
+        value = payload;
+        break;
+      case STRUCT:
+        SchemaBuilder structSchema = SchemaBuilder.struct().field(BODY_FIELD, Schema.BYTES_SCHEMA);
+        for (int i = 0; i < elements; ++i) {
+          structSchema.field("attribute" + i, Schema.STRING_SCHEMA);
+        }
+        schema = structSchema.build();
+        Struct struct = new Struct(schema).put(BODY_FIELD, payload);
+        for (int i = 0; i < elements; ++i) {
+          struct.put("attribute" + i, "value" + i);
+        }
+        value = struct;
+        break;
+      case MAP:
+        schema = SchemaBuilder.map(Schema.STRING_SCHEMA, Schema.STRING_SCHEMA).build();
+        Map<String, String> map = new HashMap<>();
+        map.put(BODY_FIELD, ByteString.copyFrom(payload).toStringUtf8());
+        for (int i = 0; i < elements; ++i) {
+          map.put("attribute" + i, "value" + i);
+        }
+        value = map;
+        break;
+      case ARRAY:
+        schema = SchemaBuilder.array(Schema.INT64_SCHEMA).build();
+        Object[] array = new Object[elements];
+        for (int i = 0; i < elements; ++i) {
+          array[i] = (long) i;
+        }
+        value = array;
+        break;
+      default:
+        throw new IllegalArgumentException("Unexpected type " + type);
+    }
+  }
+
+  @Benchmark
+  public ByteString handleValue() {
+    message.clear();
+    return task.handleValue(schema, value, message);
+  }
+}
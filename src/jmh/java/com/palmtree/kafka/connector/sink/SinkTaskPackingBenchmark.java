@@ -0,0 +1,150 @@
+package com.palmtree.kafka.connector.sink;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.MessagePacker;
+import com.palmtree.kafka.connector.common.PayloadCodec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures putting a batch of small JSON records into a {@link SampleSinkTask} and turning the
+ * published messages back into one message per record as the source connector does, with and
+ * without packing. The score is batches per second on one thread. The {@code records}, {@code
+ * messages} and {@code wireBytes} counters give the records per second, the messages published
+ * for them and the serialized size of those messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SinkTaskPackingBenchmark {
+
+  private static final int BATCH_SIZE = 500;
+  private static final int PARTITIONS = 4;
+
+  @Param({"1", "100"})
+  public int packingMaxRecords;
+
+  @Param({"none", "lz4"})
+  public String compression;
+
+  @Param({"200"})
+  public int recordBytes;
+
+  private SampleSinkTask task;
+  private final List<SinkRecord> batch = new ArrayList<>();
+  private final List<PubsubMessage> published = new ArrayList<>();
+
+  /** The counters reported next to the score. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class WireCounters {
+    public long records;
+    public long messages;
+    public long wireBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      records = 0;
+      messages = 0;
+      wireBytes = 0;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    // Only stubbed, so that the mock does not keep every message it is called with.
+    Publisher publisher = mock(Publisher.class, withSettings().stubOnly());
+    final ApiFuture<String> done = ApiFutures.immediateFuture("id");
+    when(publisher.publish(any(PubsubMessage.class)))
+        .thenAnswer(
+            new Answer<ApiFuture<String>>() {
+              @Override
+              public ApiFuture<String> answer(InvocationOnMock invocation) {
+                published.add((PubsubMessage) invocation.getArguments()[0]);
+                return done;
+              }
+            });
+    task = new SampleSinkTask(publisher);
+    Map<String, String> props = new HashMap<>();
+    props.put(ConnectorUtils.CPS_PROJECT_CONFIG, "project");
+    props.put(ConnectorUtils.CPS_TOPIC_CONFIG, "topic");
+    props.put(
+        SampleSinkConnector.CPS_PACKING_MAX_RECORDS_CONFIG, Integer.toString(packingMaxRecords));
+    props.put(SampleSinkConnector.CPS_COMPRESSION_CONFIG, compression);
+    props.put(SampleSinkConnector.CPS_COMPRESSION_MIN_BYTES_CONFIG, "0");
+    task.start(props);
+    Random random = new Random(0);
+    for (int i = 0; i < BATCH_SIZE; ++i) {
+      StringBuilder json = new StringBuilder();
+      while (json.length() < recordBytes) {
+        json.append("{\"id\":")
+            .append(random.nextInt(1000000))
+            .append(",\"user\":\"user-")
+            .append(random.nextInt(1000))
+            .append("\",\"event\":\"page_view\"}");
+      }
+      batch.add(
+          new SinkRecord(
+              "topic",
+              i % PARTITIONS,
+              Schema.STRING_SCHEMA,
+              "user-" + random.nextInt(1000),
+              Schema.STRING_SCHEMA,
+              json.substring(0, recordBytes),
+              i));
+    }
+  }
+
+  @Benchmark
+  public int putAndUnpack(WireCounters counters) {
+    published.clear();
+    task.put(batch);
+    int records = 0;
+    for (PubsubMessage message : published) {
+      counters.wireBytes += message.getSerializedSize();
+      ByteString data = message.getData();
+      String codec = message.getAttributesOrDefault(ConnectorUtils.CPS_CODEC_ATTRIBUTE, null);
+      if (codec != null) {
+        data = PayloadCodec.getEnum(codec).decompress(data);
+      }
+      records += MessagePacker.isPacked(message) ? MessagePacker.unpack(message, data).size() : 1;
+    }
+    counters.messages += published.size();
+    counters.records += records;
+    return records;
+  }
+}
@@ -0,0 +1,154 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures polling a batch of messages and committing its records with each {@link
+ * SampleSourceConnector.PartitionScheme}. Besides the time per poll, the {@code records} and
+ * {@code producerBatches} counters show how full the producer's batches would be: every poll is
+ * treated as one linger period of a producer with the default batch.size of 16384 bytes, so a
+ * scheme that spreads a poll over all partitions sends more, smaller batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionSchemeBenchmark {
+
+  private static final int PRODUCER_BATCH_SIZE = 16384;
+  private static final int PARTITIONS = 16;
+
+  @Param({"round_robin", "hash_key", "hash_value", "sticky", "murmur2"})
+  public String partitionScheme;
+
+  @Param({"100", "1000"})
+  public int messagesPerPull;
+
+  @Param({"200"})
+  public int payloadBytes;
+
+  private SampleSourceTask task;
+  private final long[] partitionBytes = new long[PARTITIONS];
+
+  /** The counters reported next to the score. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class BatchCounters {
+    public long records;
+    public long producerBatches;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      records = 0;
+      producerBatches = 0;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    byte[] payload = new byte[payloadBytes];
+    new Random(0).nextBytes(payload);
+    task = new SampleSourceTask(new FixedSubscriber(messagesPerPull, ByteString.copyFrom(payload)));
+    Map<String, String> props = new HashMap<>();
+    props.put(ConnectorUtils.CPS_PROJECT_CONFIG, "project");
+    props.put(SampleSourceConnector.CPS_SUBSCRIPTION_CONFIG, "subscription");
+    props.put(SampleSourceConnector.KAFKA_TOPIC_CONFIG, "topic");
+    props.put(SampleSourceConnector.KAFKA_PARTITIONS_CONFIG, Integer.toString(PARTITIONS));
+    props.put(SampleSourceConnector.KAFKA_PARTITION_SCHEME_CONFIG, partitionScheme);
+    props.put(SampleSourceConnector.KAFKA_MESSAGE_KEY_CONFIG, "key");
+    props.put(SampleSourceConnector.CPS_MAX_BATCH_SIZE_CONFIG, Integer.toString(messagesPerPull));
+    props.put(SampleSourceConnector.CPS_MAX_ACK_EXTENSION_PERIOD_CONFIG, "0");
+    task.start(props);
+  }
+
+  @TearDown
+  public void tearDown() {
+    task.stop();
+  }
+
+  @Benchmark
+  public List<SourceRecord> pollAndCommit(BatchCounters counters) throws InterruptedException {
+    List<SourceRecord> records = task.poll();
+    for (SourceRecord record : records) {
+      partitionBytes[record.kafkaPartition()] += payloadBytes;
+      task.commitRecord(record);
+    }
+    for (int i = 0; i < PARTITIONS; ++i) {
+      counters.producerBatches += (partitionBytes[i] + PRODUCER_BATCH_SIZE - 1) / PRODUCER_BATCH_SIZE;
+      partitionBytes[i] = 0;
+    }
+    counters.records += records.size();
+    return records;
+  }
+
+  /** A subscriber that returns the same number of new messages, with distinct keys, every pull. */
+  private static class FixedSubscriber implements SampleSubscriber {
+    private final int messagesPerPull;
+    private final ByteString payload;
+    private long nextId = 0;
+
+    FixedSubscriber(int messagesPerPull, ByteString payload) {
+      this.messagesPerPull = messagesPerPull;
+      this.payload = payload;
+    }
+
+    @Override
+    public ListenableFuture<PullResponse> pull(PullRequest request) {
+      PullResponse.Builder response = PullResponse.newBuilder();
+      for (int i = 0; i < messagesPerPull; ++i) {
+        String id = Long.toString(nextId++);
+        response.addReceivedMessages(
+            ReceivedMessage.newBuilder()
+                .setAckId(id)
+                .setMessage(
+                    PubsubMessage.newBuilder().setData(payload).putAttributes("key", id)));
+      }
+      return Futures.immediateFuture(response.build());
+    }
+
+    @Override
+    public ListenableFuture<Empty> ackMessages(AcknowledgeRequest request) {
+      return Futures.immediateFuture(Empty.getDefaultInstance());
+    }
+
+    @Override
+    public ListenableFuture<Empty> modifyAckDeadline(ModifyAckDeadlineRequest request) {
+      return Futures.immediateFuture(Empty.getDefaultInstance());
+    }
+
+    @Override
+    public void close() {}
+  }
+}
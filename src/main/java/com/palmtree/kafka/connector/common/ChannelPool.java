@@ -0,0 +1,537 @@
+package com.palmtree.kafka.connector.common;
+
+import com.google.auth.Credentials;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.auth.ClientAuthInterceptor;
+import io.grpc.netty.NegotiationType;
+import io.grpc.netty.NettyChannelBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of gRPC channels to <a href="https://cloud.google.com/pubsub">Google Cloud Pub/Sub</a>
+ * that is shared by every task in a worker JVM. Callers take a reference to the pool with {@link
+ * #acquire} and lease channels from it with {@link #lease}. The pool holds at most a fixed number
+ * of channels, which are created on demand and handed out to the callers with the fewest leases,
+ * and all of them share one set of credentials and one auth executor.
+ *
+ * <p>Every 25 - 35 minutes, or on demand when a lease holder sees its channel go away, the pool
+ * rotates a channel in the background: it connects a replacement, waits for it to become ready,
+ * switches new calls over to it and shuts the old one down once its in-flight calls have
+ * finished. Leased channels route every call to the current channel, so holders never notice a
+ * rotation. When the last reference to the pool is released every channel is shut down, letting
+ * in-flight calls finish.
+ *
+ * <p>The pool shared by the JVM registers its metrics over JMX as {@code
+ * com.palmtree.kafka.connector:type=channel-pool}. This class is thread-safe.
+ */
+public class ChannelPool {
+
+  private static final Logger log = LoggerFactory.getLogger(ChannelPool.class);
+  private static final String ENDPOINT = "pubsub.googleapis.com";
+  private static final List<String> CPS_SCOPE =
+      Arrays.asList("https://www.googleapis.com/auth/pubsub");
+
+  // Channels are rotated every 25 - 35 minutes in order to avoid GOAWAY errors.
+  private static final long MIN_CHANNEL_AGE_MS = 25 * 60 * 1000;
+  private static final int CHANNEL_AGE_JITTER_MS = 10 * 60 * 1000;
+  // How long to wait for a replacement channel to connect before switching to it anyway.
+  private static final long WARM_UP_TIMEOUT_MS = 10 * 1000;
+  // On-demand rotations of the same channel are at least this far apart.
+  private static final long MIN_ON_DEMAND_ROTATION_INTERVAL_MS = 60 * 1000;
+
+  private static ChannelPool shared;
+
+  /** Creates the channels held by a pool. */
+  public interface ChannelFactory {
+    ManagedChannel create() throws IOException;
+  }
+
+  /**
+   * A slot of the pool, which sends every call to its current channel. Rotations swap the current
+   * channel while the calls on the previous one drain. Shutting the slot down shuts down the
+   * current channel and any replacement that is still warming up.
+   */
+  private class PooledChannel extends ManagedChannel {
+    final Channel intercepted;
+    volatile ManagedChannel current;
+    // The replacement channel while a rotation is warming it up.
+    ManagedChannel replacement;
+    // The periodic rotation that is pending, replaced whenever the channel is rotated.
+    ScheduledFuture<?> rotationTimer;
+    long lastRotationMs;
+    int leases = 0;
+
+    PooledChannel(ManagedChannel current) {
+      this.current = current;
+      this.lastRotationMs = System.currentTimeMillis();
+      this.intercepted =
+          interceptor == null ? this : ClientInterceptors.intercept(this, interceptor);
+    }
+
+    @Override
+    public <RequestT, ResponseT> ClientCall<RequestT, ResponseT> newCall(
+        MethodDescriptor<RequestT, ResponseT> method, CallOptions callOptions) {
+      return current.newCall(method, callOptions);
+    }
+
+    @Override
+    public String authority() {
+      return current.authority();
+    }
+
+    @Override
+    public ManagedChannel shutdown() {
+      synchronized (ChannelPool.this) {
+        current.shutdown();
+        if (replacement != null) {
+          replacement.shutdown();
+          replacement = null;
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public ManagedChannel shutdownNow() {
+      synchronized (ChannelPool.this) {
+        current.shutdownNow();
+        if (replacement != null) {
+          replacement.shutdownNow();
+          replacement = null;
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return current.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return current.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return current.awaitTermination(timeout, unit);
+    }
+  }
+
+  /** A lease on one of the channels of the pool, which must be released once it is unused. */
+  public class Lease {
+    private final PooledChannel pooled;
+    private boolean released = false;
+
+    private Lease(PooledChannel pooled) {
+      this.pooled = pooled;
+    }
+
+    /** Return the channel, with the pool's credentials attached to every call. */
+    public Channel getChannel() {
+      return pooled.intercepted;
+    }
+
+    /**
+     * Return the underlying channel without credentials attached, for clients that attach them
+     * themselves. The channel must not be shut down by the caller.
+     */
+    public ManagedChannel getManagedChannel() {
+      return pooled;
+    }
+
+    /**
+     * Ask the pool to replace the channel, for instance because the server closed it with a
+     * GOAWAY. Calls keep going to the current channel until the replacement is ready. Requests
+     * made shortly after the last rotation of the channel are ignored.
+     */
+    public void rotate() {
+      synchronized (ChannelPool.this) {
+        if (released
+            || System.currentTimeMillis() - pooled.lastRotationMs
+                < MIN_ON_DEMAND_ROTATION_INTERVAL_MS) {
+          return;
+        }
+      }
+      ChannelPool.this.rotate(pooled);
+    }
+
+    /** Give the channel back to the pool. Releasing a lease more than once has no effect. */
+    public void release() {
+      synchronized (ChannelPool.this) {
+        if (released) {
+          return;
+        }
+        released = true;
+        --pooled.leases;
+        --activeLeases;
+      }
+    }
+  }
+
+  private final ChannelFactory factory;
+  private final Credentials credentials;
+  private final ClientInterceptor interceptor;
+  private final ExecutorService authExecutor;
+  private final TaskMetrics metrics = new TaskMetrics("channel-pool");
+  private final List<PooledChannel> channels = new ArrayList<>();
+  // Channels replaced by a rotation whose calls have not finished yet.
+  private final List<ManagedChannel> draining = new ArrayList<>();
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cps-channel-pool-%d").build());
+  private final Random rand = new Random(System.currentTimeMillis());
+  private final long minChannelAgeMs;
+  private final int channelAgeJitterMs;
+  private int size;
+  private int references = 1;
+  private int activeLeases = 0;
+  private long channelsCreated = 0;
+  private long channelsRotated = 0;
+  private boolean closed = false;
+
+  /**
+   * Create a pool of up to {@code size} channels made by {@code factory}. Calls made on the leased
+   * channels carry {@code credentials}, unless they are null.
+   */
+  @VisibleForTesting
+  public ChannelPool(int size, ChannelFactory factory, Credentials credentials) {
+    this(size, factory, credentials, MIN_CHANNEL_AGE_MS, CHANNEL_AGE_JITTER_MS);
+  }
+
+  /** Create a pool whose channels are rotated every {@code minChannelAgeMs} plus jitter. */
+  @VisibleForTesting
+  ChannelPool(
+      int size,
+      ChannelFactory factory,
+      Credentials credentials,
+      long minChannelAgeMs,
+      int channelAgeJitterMs) {
+    this.size = size;
+    this.minChannelAgeMs = minChannelAgeMs;
+    this.channelAgeJitterMs = channelAgeJitterMs;
+    this.factory = factory;
+    this.credentials = credentials;
+    if (credentials == null) {
+      interceptor = null;
+      authExecutor = null;
+    } else {
+      authExecutor =
+          Executors.newCachedThreadPool(
+              new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cps-auth-%d").build());
+      interceptor = new ClientAuthInterceptor(credentials, authExecutor);
+    }
+    registerGauges();
+  }
+
+  /**
+   * Take a reference to the pool shared by the JVM, creating it if there is none. The pool grows
+   * to {@code size} channels if it is smaller. Every call must be matched by a call to {@link
+   * #release}.
+   */
+  public static synchronized ChannelPool acquire(int size) throws IOException {
+    if (shared == null) {
+      log.info("Creating a channel pool of {} channels.", size);
+      shared =
+          new ChannelPool(
+              size,
+              new ChannelFactory() {
+                @Override
+                public ManagedChannel create() {
+                  return NettyChannelBuilder.forAddress(ENDPOINT, 443)
+                      .negotiationType(NegotiationType.TLS)
+                      // Maximum Pub/Sub message size is 10MB.
+                      .maxInboundMessageSize(10 * 1024 * 1024)
+                      .build();
+                }
+              },
+              GoogleCredentials.getApplicationDefault().createScoped(CPS_SCOPE));
+      shared.metrics.register();
+    } else {
+      shared.retain(size);
+    }
+    return shared;
+  }
+
+  /** Lease the channel with the fewest leases, creating a new one if the pool is not full. */
+  public synchronized Lease lease() throws IOException {
+    if (closed) {
+      throw new IllegalStateException("The channel pool has been shut down.");
+    }
+    PooledChannel pooled = null;
+    if (channels.size() < size) {
+      pooled = new PooledChannel(newChannel());
+      channels.add(pooled);
+      scheduleRotation(pooled);
+    } else {
+      for (PooledChannel candidate : channels) {
+        if (pooled == null || candidate.leases < pooled.leases) {
+          pooled = candidate;
+        }
+      }
+    }
+    ++pooled.leases;
+    ++activeLeases;
+    return new Lease(pooled);
+  }
+
+  /**
+   * Drop a reference to the pool. Once every reference is gone all channels are shut down; calls
+   * that are still in flight on them are allowed to finish.
+   */
+  public void release() {
+    synchronized (ChannelPool.class) {
+      synchronized (this) {
+        if (closed || --references > 0) {
+          return;
+        }
+        closed = true;
+        log.info("Shutting down {} pooled channels.", channels.size());
+        for (PooledChannel pooled : channels) {
+          pooled.shutdown();
+        }
+        executor.shutdownNow();
+        if (authExecutor != null) {
+          authExecutor.shutdown();
+        }
+      }
+      metrics.unregister();
+      if (shared == this) {
+        shared = null;
+      }
+    }
+  }
+
+  /** Return the credentials attached to calls on the leased channels, or null if none are. */
+  public Credentials getCredentials() {
+    return credentials;
+  }
+
+  /**
+   * Return the number of channels that have not been shut down, including those that were rotated
+   * out and still have calls in flight.
+   */
+  public synchronized int liveChannels() {
+    int live = 0;
+    for (PooledChannel pooled : channels) {
+      if (!pooled.isShutdown()) {
+        ++live;
+      }
+    }
+    for (Iterator<ManagedChannel> it = draining.iterator(); it.hasNext(); ) {
+      if (it.next().isTerminated()) {
+        it.remove();
+      } else {
+        ++live;
+      }
+    }
+    return live;
+  }
+
+  /** Return the number of leases that have not been released. */
+  public synchronized int activeLeases() {
+    return activeLeases;
+  }
+
+  /** Return the number of channels the pool has created. */
+  public synchronized long channelsCreated() {
+    return channelsCreated;
+  }
+
+  /** Return the number of times a channel has been replaced by a rotation. */
+  public synchronized long channelsRotated() {
+    return channelsRotated;
+  }
+
+  /** Return the number of references to the pool that have not been released. */
+  public synchronized int references() {
+    return references;
+  }
+
+  /** Return the metrics of the pool, which are only registered for the pool shared by the JVM. */
+  @VisibleForTesting
+  TaskMetrics metrics() {
+    return metrics;
+  }
+
+  private void registerGauges() {
+    metrics.gauge(
+        "LiveChannels",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return liveChannels();
+          }
+        });
+    metrics.gauge(
+        "ActiveLeases",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return activeLeases();
+          }
+        });
+    metrics.gauge(
+        "ChannelsCreated",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return channelsCreated();
+          }
+        });
+    metrics.gauge(
+        "ChannelsRotated",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return channelsRotated();
+          }
+        });
+    metrics.gauge(
+        "References",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return references();
+          }
+        });
+  }
+
+  private synchronized void retain(int size) {
+    ++references;
+    this.size = Math.max(this.size, size);
+  }
+
+  /** Create a channel. */
+  private synchronized ManagedChannel newChannel() throws IOException {
+    ManagedChannel channel = factory.create();
+    ++channelsCreated;
+    return channel;
+  }
+
+  /**
+   * Schedule the next periodic rotation of {@code pooled}, replacing the one that is pending. Must
+   * hold the lock.
+   */
+  private void scheduleRotation(final PooledChannel pooled) {
+    if (closed) {
+      return;
+    }
+    if (pooled.rotationTimer != null) {
+      pooled.rotationTimer.cancel(false);
+    }
+    pooled.rotationTimer =
+        executor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                rotate(pooled);
+              }
+            },
+            minChannelAgeMs + rand.nextInt(channelAgeJitterMs),
+            TimeUnit.MILLISECONDS);
+  }
+
+  /** Rotate the channel of {@code lease} right away. */
+  @VisibleForTesting
+  void rotate(Lease lease) {
+    rotate(lease.pooled);
+  }
+
+  /** Start replacing the current channel of {@code pooled} unless a rotation is under way. */
+  private void rotate(final PooledChannel pooled) {
+    final ManagedChannel replacement;
+    synchronized (this) {
+      if (closed || pooled.replacement != null) {
+        return;
+      }
+      try {
+        replacement = newChannel();
+      } catch (IOException e) {
+        log.error("Could not create a replacement channel: " + e);
+        scheduleRotation(pooled);
+        return;
+      }
+      pooled.replacement = replacement;
+      log.info("Rotating a pooled channel.");
+      executor.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              swap(pooled, replacement);
+            }
+          },
+          WARM_UP_TIMEOUT_MS,
+          TimeUnit.MILLISECONDS);
+    }
+    warmUp(pooled, replacement);
+  }
+
+  /** Swap in {@code replacement} as soon as it has connected, or failed to connect. */
+  private void warmUp(final PooledChannel pooled, final ManagedChannel replacement) {
+    ConnectivityState state;
+    try {
+      state = replacement.getState(true);
+    } catch (UnsupportedOperationException e) {
+      swap(pooled, replacement);
+      return;
+    }
+    if (state != ConnectivityState.IDLE && state != ConnectivityState.CONNECTING) {
+      swap(pooled, replacement);
+      return;
+    }
+    replacement.notifyWhenStateChanged(
+        state,
+        new Runnable() {
+          @Override
+          public void run() {
+            warmUp(pooled, replacement);
+          }
+        });
+  }
+
+  /**
+   * Send new calls on {@code pooled} to {@code replacement} and shut the previous channel down
+   * once its calls have finished. Does nothing if the swap has already happened.
+   */
+  private void swap(PooledChannel pooled, ManagedChannel replacement) {
+    ManagedChannel previous;
+    synchronized (this) {
+      if (pooled.replacement != replacement) {
+        return;
+      }
+      pooled.replacement = null;
+      previous = pooled.current;
+      pooled.current = replacement;
+      pooled.lastRotationMs = System.currentTimeMillis();
+      ++channelsRotated;
+      draining.add(previous);
+      scheduleRotation(pooled);
+    }
+    // New calls no longer reach the previous channel, and those in flight are allowed to finish.
+    previous.shutdown();
+  }
+}
@@ -0,0 +1,92 @@
+package com.palmtree.kafka.connector.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values such as latencies. Values below {@link
+ * #SUB_BUCKETS} are counted exactly; larger values fall into one of {@link #SUB_BUCKETS} buckets
+ * per power of two, so percentiles are accurate to within about 6%. Recording a value never
+ * allocates, which makes this cheap enough to use on hot paths. This class is thread-safe.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /** Record one occurrence of {@code value}. Negative values are recorded as 0. */
+  public void record(long value) {
+    counts.incrementAndGet(bucketOf(Math.max(value, 0)));
+  }
+
+  /** Return the total number of values recorded. */
+  public long count() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Return an upper bound of the value below which {@code percentile} (between 0 and 1) of the
+   * recorded values fall, or -1 if nothing has been recorded.
+   */
+  public long percentile(double percentile) {
+    return percentile(percentile, this);
+  }
+
+  /**
+   * Return the percentile as {@link #percentile(double)} does of the values recorded in all of
+   * {@code histograms} together.
+   */
+  static long percentile(double percentile, LatencyHistogram... histograms) {
+    long total = 0;
+    for (LatencyHistogram histogram : histograms) {
+      total += histogram.count();
+    }
+    if (total == 0) {
+      return -1;
+    }
+    long threshold = (long) Math.ceil(total * percentile);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      for (LatencyHistogram histogram : histograms) {
+        seen += histogram.counts.get(i);
+      }
+      if (seen >= Math.max(threshold, 1)) {
+        return upperBoundOf(i);
+      }
+    }
+    return upperBoundOf(BUCKETS - 1);
+  }
+
+  /** Discard all recorded values. */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts.set(i, 0);
+    }
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // The position of the highest set bit picks the power of two, and the SUB_BUCKET_BITS bits
+    // below it pick the sub-bucket within it.
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long base = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return base + (1L << shift) - 1;
+  }
+}
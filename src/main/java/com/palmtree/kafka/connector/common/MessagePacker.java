@@ -0,0 +1,126 @@
+package com.palmtree.kafka.connector.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.connect.errors.DataException;
+
+/**
+ * Packs the messages of consecutive records into the body of a single message, so that small
+ * records do not each pay the overhead of a message. A packed message carries the {@link
+ * ConnectorUtils#CPS_PACKED_ATTRIBUTE} attribute set to {@link #FORMAT_VERSION}, and its body is
+ * the entries of the records one after the other. An entry is the record's offset as a zigzag
+ * varint, the number of attributes as a varint, the name and the value of every attribute and then
+ * the data, each of the last three as a varint length followed by the bytes. The key of a record is
+ * one of its attributes. A packer is reused for many packed messages and is not thread-safe.
+ */
+public class MessagePacker {
+
+  public static final String FORMAT_VERSION = "1";
+  // The most an entry takes beyond the serialized size of its message, for the offset.
+  private static final int MAX_ENTRY_OVERHEAD_BYTES = 10;
+
+  private ByteString.Output buffer = ByteString.newOutput();
+  private CodedOutputStream out = CodedOutputStream.newInstance(buffer);
+  private int count = 0;
+  private long lastOffset = -1;
+
+  /** Add the attributes and data of {@code message}, the record at {@code offset}. */
+  public void add(PubsubMessage message, long offset) {
+    try {
+      out.writeSInt64NoTag(offset);
+      out.writeUInt32NoTag(message.getAttributesCount());
+      for (Map.Entry<String, String> attribute : message.getAttributesMap().entrySet()) {
+        out.writeStringNoTag(attribute.getKey());
+        out.writeStringNoTag(attribute.getValue());
+      }
+      out.writeBytesNoTag(message.getData());
+    } catch (IOException e) {
+      throw new DataException("Could not pack the record at offset " + offset + ".", e);
+    }
+    ++count;
+    lastOffset = offset;
+  }
+
+  /** Return whether adding {@code message} would make the packed body larger than {@code bytes}. */
+  public boolean wouldExceed(PubsubMessage message, int bytes) {
+    return size() + message.getSerializedSize() + MAX_ENTRY_OVERHEAD_BYTES > bytes;
+  }
+
+  /** Return the number of records added since the last {@link #drain}. */
+  public int count() {
+    return count;
+  }
+
+  /** Return whether no records were added since the last {@link #drain}. */
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /** Return the size of the packed body so far. */
+  public int size() {
+    return out.getTotalBytesWritten();
+  }
+
+  /** Return the offset of the record added last. */
+  public long lastOffset() {
+    return lastOffset;
+  }
+
+  /** Return the packed body of the records added so far and start a new one. */
+  public ByteString drain() {
+    try {
+      out.flush();
+    } catch (IOException e) {
+      throw new DataException("Could not pack records.", e);
+    }
+    ByteString body = buffer.toByteString();
+    buffer.reset();
+    out = CodedOutputStream.newInstance(buffer);
+    count = 0;
+    lastOffset = -1;
+    return body;
+  }
+
+  /** Return whether {@code message} is a packed message. */
+  public static boolean isPacked(PubsubMessage message) {
+    return message.containsAttributes(ConnectorUtils.CPS_PACKED_ATTRIBUTE);
+  }
+
+  /**
+   * Return the messages of the records packed into {@code message}, whose body is {@code body} once
+   * decompressed. They have the publish time of {@code message}, and their ids are its id followed
+   * by the record's offset.
+   */
+  public static List<PubsubMessage> unpack(PubsubMessage message, ByteString body) {
+    String version = message.getAttributesOrDefault(ConnectorUtils.CPS_PACKED_ATTRIBUTE, null);
+    if (!FORMAT_VERSION.equals(version)) {
+      throw new DataException(
+          "Message " + message.getMessageId() + " is packed in the unknown format " + version);
+    }
+    List<PubsubMessage> messages = new ArrayList<>();
+    CodedInputStream in = body.newCodedInput();
+    try {
+      while (!in.isAtEnd()) {
+        long offset = in.readSInt64();
+        int attributes = in.readUInt32();
+        PubsubMessage.Builder builder =
+            PubsubMessage.newBuilder()
+                .setMessageId(message.getMessageId() + ":" + offset)
+                .setPublishTime(message.getPublishTime());
+        for (int i = 0; i < attributes; ++i) {
+          builder.putAttributes(in.readStringRequireUtf8(), in.readStringRequireUtf8());
+        }
+        messages.add(builder.setData(in.readBytes()).build());
+      }
+    } catch (IOException e) {
+      throw new DataException("Message " + message.getMessageId() + " is not packed correctly.", e);
+    }
+    return messages;
+  }
+}
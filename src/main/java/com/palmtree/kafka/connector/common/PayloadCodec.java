@@ -0,0 +1,181 @@
+package com.palmtree.kafka.connector.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.connect.errors.DataException;
+
+/**
+ * The codecs the sink connector can compress message bodies with. A compressed message carries
+ * the name of its codec in the {@link ConnectorUtils#CPS_CODEC_ATTRIBUTE} attribute, which the
+ * source connector uses to decompress it. lz4 bodies start with the uncompressed size as a 4 byte
+ * big-endian integer, followed by an LZ4 block. Since any publisher can set the codec attribute,
+ * compressed bodies are untrusted input and are decompressed with bounds checks, failing with a
+ * {@link DataException} when they are malformed. This class is thread-safe.
+ */
+public enum PayloadCodec {
+  NONE("none"),
+  GZIP("gzip"),
+  LZ4("lz4");
+
+  private static final int LZ4_SIZE_BYTES = 4;
+  // Bodies are at most 10MB, so a corrupt size must not make us allocate more than that.
+  private static final int MAX_UNCOMPRESSED_BYTES = 10 * 1024 * 1024;
+  // An LZ4 block can not expand its input by more than this, which bounds a plausible size.
+  private static final int LZ4_MAX_RATIO = 255;
+  private static final LZ4Factory lz4 = LZ4Factory.fastestInstance();
+  private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+  // Per-thread buffers that bodies are staged in, so that only the result is allocated.
+  private static final ThreadLocal<byte[]> inputBuffer = new ThreadLocal<>();
+  private static final ThreadLocal<byte[]> outputBuffer = new ThreadLocal<>();
+
+  private String value;
+
+  PayloadCodec(String value) {
+    this.value = value;
+  }
+
+  public String toString() {
+    return value;
+  }
+
+  public static PayloadCodec getEnum(String value) {
+    if (value.equals("none")) {
+      return PayloadCodec.NONE;
+    } else if (value.equals("gzip")) {
+      return PayloadCodec.GZIP;
+    } else if (value.equals("lz4")) {
+      return PayloadCodec.LZ4;
+    } else {
+      return null;
+    }
+  }
+
+  /** Return {@code data} compressed with this codec. */
+  public ByteString compress(ByteString data) {
+    switch (this) {
+      case GZIP:
+        try {
+          ByteString.Output out = ByteString.newOutput(data.size() / 2 + 32);
+          OutputStream gzip = new GZIPOutputStream(out);
+          try {
+            data.writeTo(gzip);
+          } finally {
+            // Closing finishes the stream and releases the native Deflater right away.
+            gzip.close();
+          }
+          return out.toByteString();
+        } catch (IOException e) {
+          throw new DataException("Could not compress a message with gzip.", e);
+        }
+      case LZ4:
+        LZ4Compressor compressor = lz4.fastCompressor();
+        int size = data.size();
+        byte[] source = buffer(inputBuffer, size);
+        data.copyTo(source, 0);
+        byte[] compressed =
+            buffer(outputBuffer, LZ4_SIZE_BYTES + compressor.maxCompressedLength(size));
+        ByteBuffer.wrap(compressed).putInt(size);
+        int compressedSize =
+            compressor.compress(
+                source, 0, size, compressed, LZ4_SIZE_BYTES, compressed.length - LZ4_SIZE_BYTES);
+        return ByteString.copyFrom(compressed, 0, LZ4_SIZE_BYTES + compressedSize);
+      default:
+        return data;
+    }
+  }
+
+  /** Return {@code data}, which was compressed with this codec, decompressed. */
+  public ByteString decompress(ByteString data) {
+    switch (this) {
+      case GZIP:
+        try {
+          byte[] buffer = buffer(outputBuffer, INITIAL_BUFFER_BYTES);
+          InputStream gzip = new GZIPInputStream(data.newInput());
+          int size = 0;
+          try {
+            int read;
+            while ((read = gzip.read(buffer, size, buffer.length - size)) != -1) {
+              size += read;
+              if (size == buffer.length) {
+                if (size >= MAX_UNCOMPRESSED_BYTES) {
+                  throw new DataException("A gzip message body is larger than 10MB.");
+                }
+                byte[] larger = new byte[Math.min(buffer.length * 2, MAX_UNCOMPRESSED_BYTES)];
+                System.arraycopy(buffer, 0, larger, 0, size);
+                buffer = larger;
+                outputBuffer.set(buffer);
+              }
+            }
+          } finally {
+            // Release the native Inflater now rather than when the stream is finalized.
+            gzip.close();
+          }
+          return ByteString.copyFrom(buffer, 0, size);
+        } catch (IOException e) {
+          throw new DataException("Could not decompress a message with gzip.", e);
+        }
+      case LZ4:
+        if (data.size() < LZ4_SIZE_BYTES) {
+          throw new DataException("An lz4 message body is too short.");
+        }
+        byte[] source = buffer(inputBuffer, data.size());
+        data.copyTo(source, 0);
+        int size = ByteBuffer.wrap(source).getInt();
+        int blockSize = data.size() - LZ4_SIZE_BYTES;
+        if (size < 0 || size > MAX_UNCOMPRESSED_BYTES || size > (long) blockSize * LZ4_MAX_RATIO) {
+          throw new DataException("An lz4 message body has an invalid size " + size + ".");
+        }
+        // The safe decompressor never reads or writes past the arrays, whatever the input.
+        LZ4SafeDecompressor decompressor = lz4.safeDecompressor();
+        byte[] decompressed = new byte[size];
+        int decompressedSize;
+        try {
+          decompressedSize =
+              decompressor.decompress(source, LZ4_SIZE_BYTES, blockSize, decompressed, 0, size);
+        } catch (RuntimeException e) {
+          throw new DataException("Could not decompress a message with lz4.", e);
+        }
+        if (decompressedSize != size) {
+          throw new DataException(
+              "An lz4 message body decompressed to " + decompressedSize + " bytes instead of "
+                  + size + ".");
+        }
+        // The array is not shared, so the body can wrap it instead of copying it.
+        return UnsafeByteOperations.unsafeWrap(decompressed);
+      default:
+        return data;
+    }
+  }
+
+  /** Return this thread's buffer held by {@code local}, grown to at least {@code size} bytes. */
+  private static byte[] buffer(ThreadLocal<byte[]> local, int size) {
+    byte[] buffer = local.get();
+    if (buffer == null || buffer.length < size) {
+      buffer = new byte[Math.max(size, INITIAL_BUFFER_BYTES)];
+      local.set(buffer);
+    }
+    return buffer;
+  }
+
+  /** Validator class for {@link PayloadCodec}. */
+  public static class Validator implements ConfigDef.Validator {
+
+    @Override
+    public void ensureValid(String name, Object o) {
+      if (getEnum((String) o) == null) {
+        throw new ConfigException("Valid values for " + name + " are none, gzip and lz4");
+      }
+    }
+  }
+}
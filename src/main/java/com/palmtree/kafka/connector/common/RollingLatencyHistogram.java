@@ -0,0 +1,82 @@
+package com.palmtree.kafka.connector.common;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A {@link LatencyHistogram} that forgets old values. Values are recorded in windows of a fixed
+ * length, and percentiles cover the current window and the last complete one, so they follow
+ * changes in the recorded values within two windows however long the histogram has been in use.
+ * Windows are rolled over when values are recorded or percentiles read. This class is thread-safe.
+ */
+public class RollingLatencyHistogram {
+
+  private final long windowMs;
+  private volatile LatencyHistogram current = new LatencyHistogram();
+  private volatile LatencyHistogram previous = new LatencyHistogram();
+  private volatile long windowStartMs = System.currentTimeMillis();
+
+  /** @param windowMs how long a window lasts */
+  public RollingLatencyHistogram(long windowMs) {
+    this.windowMs = windowMs;
+  }
+
+  /** Record one occurrence of {@code value}. Negative values are recorded as 0. */
+  public void record(long value) {
+    record(value, System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  void record(long value, long nowMs) {
+    roll(nowMs);
+    current.record(value);
+  }
+
+  /** Return the number of values recorded in the current and the last complete window. */
+  public long count() {
+    return count(System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  long count(long nowMs) {
+    roll(nowMs);
+    return previous.count() + current.count();
+  }
+
+  /**
+   * Return an upper bound of the value below which {@code percentile} (between 0 and 1) of the
+   * values recorded in the current and the last complete window fall, or -1 if there are none.
+   */
+  public long percentile(double percentile) {
+    return percentile(percentile, System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  long percentile(double percentile, long nowMs) {
+    roll(nowMs);
+    return LatencyHistogram.percentile(percentile, previous, current);
+  }
+
+  /** Discard all recorded values. */
+  public synchronized void reset() {
+    previous = new LatencyHistogram();
+    current = new LatencyHistogram();
+  }
+
+  /** Start a new window if the current one has lasted long enough at {@code nowMs}. */
+  private void roll(long nowMs) {
+    if (nowMs - windowStartMs < windowMs) {
+      return;
+    }
+    synchronized (this) {
+      long elapsedMs = nowMs - windowStartMs;
+      if (elapsedMs < windowMs) {
+        return;
+      }
+      // Values recorded into the old window while it is swapped out still count towards it. A
+      // window that ended more than a window ago holds nothing recent, so it is dropped as well.
+      previous = elapsedMs < 2 * windowMs ? current : new LatencyHistogram();
+      current = new LatencyHistogram();
+      windowStartMs = nowMs;
+    }
+  }
+}
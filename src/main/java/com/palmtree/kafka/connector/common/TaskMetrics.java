@@ -0,0 +1,282 @@
+package com.palmtree.kafka.connector.common;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics of one task, exposed over JMX as the read-only attributes of an MBean named {@code
+ * com.palmtree.kafka.connector:type=<type>,connector=<connector>,task=<n>}. Metrics are created
+ * when the task starts and updated on the hot paths without locking or allocating:
+ *
+ * <ul>
+ *   <li>a counter is an {@link AtomicLong} exposed as its total and as {@code <name>Rate}, the
+ *       average per second over the last window;
+ *   <li>a histogram is a {@link LatencyHistogram} exposed as {@code <name>P50}, {@code <name>P99}
+ *       and {@code <name>Count} over the last window;
+ *   <li>a ratio is the increase of one counter over the increase of another over the last window;
+ *   <li>a gauge is read when its attribute is.
+ * </ul>
+ *
+ * A window lasts a minute. Windows are rolled over when attributes are read, so metrics that
+ * nobody reads cost nothing beyond their updates. This class is thread-safe.
+ */
+public class TaskMetrics implements DynamicMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(TaskMetrics.class);
+  public static final String DOMAIN = "com.palmtree.kafka.connector";
+  private static final long WINDOW_MS = 60 * 1000;
+  // Tells apart the tasks of a connector, which do not know their own number.
+  private static final AtomicInteger nextTask = new AtomicInteger();
+
+  /** A value that is read when its attribute is. */
+  public interface Gauge {
+    long value();
+  }
+
+  /** A counter, its value when the window started and its increase over the last window. */
+  private static class Counter {
+    final AtomicLong value = new AtomicLong();
+    long windowStart = 0;
+    long lastWindowDelta = 0;
+  }
+
+  /** A histogram and the percentiles of its last complete window. */
+  private static class Histogram {
+    final LatencyHistogram live = new LatencyHistogram();
+    long p50 = -1;
+    long p99 = -1;
+    long count = 0;
+  }
+
+  private final ObjectName name;
+  private final Map<String, Counter> counters = new LinkedHashMap<>();
+  private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+  private final Map<String, String[]> ratios = new LinkedHashMap<>();
+  private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+  private long windowStartMs = System.currentTimeMillis();
+  private long lastWindowMs = 0;
+
+  /** Create the metrics of a task of {@code connector}, which is of {@code type}. */
+  public TaskMetrics(String type, String connector) {
+    name =
+        objectName(
+            DOMAIN
+                + ":type="
+                + ObjectName.quote(type)
+                + ",connector="
+                + ObjectName.quote(connector == null ? "unknown" : connector)
+                + ",task="
+                + nextTask.getAndIncrement());
+  }
+
+  /**
+   * Create the metrics of something that the tasks of a JVM share, which is of {@code type}, named
+   * {@code com.palmtree.kafka.connector:type=<type>}.
+   */
+  public TaskMetrics(String type) {
+    name = objectName(DOMAIN + ":type=" + ObjectName.quote(type));
+  }
+
+  private static ObjectName objectName(String name) {
+    try {
+      return new ObjectName(name);
+    } catch (JMException e) {
+      throw new IllegalArgumentException("Invalid metrics name " + name, e);
+    }
+  }
+
+  /** Return the counter called {@code name}, creating it if needed. */
+  public synchronized AtomicLong counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      counters.put(name, counter);
+    }
+    return counter.value;
+  }
+
+  /** Return the histogram called {@code name}, creating it if needed. */
+  public synchronized LatencyHistogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram();
+      histograms.put(name, histogram);
+    }
+    return histogram.live;
+  }
+
+  /** Expose the ratio of the counters {@code numerator} and {@code denominator} as {@code name}. */
+  public synchronized void ratio(String name, String numerator, String denominator) {
+    counter(numerator);
+    counter(denominator);
+    ratios.put(name, new String[] {numerator, denominator});
+  }
+
+  /** Expose {@code gauge} as {@code name}. */
+  public synchronized void gauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /** Make the metrics visible over JMX. */
+  public void register() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      log.warn("Could not register the metrics " + name + ": " + e);
+    }
+  }
+
+  /** Remove the metrics from JMX. Unregistering metrics that are not registered has no effect. */
+  public void unregister() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      log.warn("Could not unregister the metrics " + name + ": " + e);
+    }
+  }
+
+  /** Return the JMX name of the metrics. */
+  public ObjectName getObjectName() {
+    return name;
+  }
+
+  /** Close the current window if it has lasted long enough at {@code nowMs}. */
+  private void roll(long nowMs) {
+    if (nowMs - windowStartMs >= WINDOW_MS) {
+      rollNow(nowMs);
+    }
+  }
+
+  /** Close the current window at {@code nowMs}. */
+  @VisibleForTesting
+  synchronized void rollNow(long nowMs) {
+    for (Counter counter : counters.values()) {
+      long value = counter.value.get();
+      counter.lastWindowDelta = value - counter.windowStart;
+      counter.windowStart = value;
+    }
+    for (Histogram histogram : histograms.values()) {
+      histogram.p50 = histogram.live.percentile(0.5);
+      histogram.p99 = histogram.live.percentile(0.99);
+      histogram.count = histogram.live.count();
+      histogram.live.reset();
+    }
+    lastWindowMs = Math.max(1, nowMs - windowStartMs);
+    windowStartMs = nowMs;
+  }
+
+  @Override
+  public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException {
+    roll(System.currentTimeMillis());
+    if (counters.containsKey(attribute)) {
+      return counters.get(attribute).value.get();
+    }
+    if (gauges.containsKey(attribute)) {
+      return gauges.get(attribute).value();
+    }
+    if (ratios.containsKey(attribute)) {
+      String[] parts = ratios.get(attribute);
+      long denominator = counters.get(parts[1]).lastWindowDelta;
+      return denominator == 0 ? 0.0 : (double) counters.get(parts[0]).lastWindowDelta / denominator;
+    }
+    if (attribute.endsWith("Rate")) {
+      Counter counter = counters.get(attribute.substring(0, attribute.length() - 4));
+      if (counter != null) {
+        return lastWindowMs == 0 ? 0.0 : counter.lastWindowDelta * 1000.0 / lastWindowMs;
+      }
+    }
+    if (attribute.endsWith("P50") || attribute.endsWith("P99")) {
+      Histogram histogram = histograms.get(attribute.substring(0, attribute.length() - 3));
+      if (histogram != null) {
+        return attribute.endsWith("P50") ? histogram.p50 : histogram.p99;
+      }
+    }
+    if (attribute.endsWith("Count")) {
+      Histogram histogram = histograms.get(attribute.substring(0, attribute.length() - 5));
+      if (histogram != null) {
+        return histogram.count;
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  @Override
+  public synchronized AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // Attributes that do not exist are left out, as the MBean server expects.
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException("Metrics have no operations.");
+  }
+
+  @Override
+  public synchronized MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+    for (String counter : counters.keySet()) {
+      attributes.add(attribute(counter, "long", "Total since the task started"));
+      attributes.add(attribute(counter + "Rate", "double", "Per second over the last window"));
+    }
+    for (String histogram : histograms.keySet()) {
+      attributes.add(attribute(histogram + "P50", "long", "Median over the last window"));
+      attributes.add(attribute(histogram + "P99", "long", "99th percentile over the last window"));
+      attributes.add(attribute(histogram + "Count", "long", "Values in the last window"));
+    }
+    for (String ratio : ratios.keySet()) {
+      attributes.add(attribute(ratio, "double", "Ratio over the last window"));
+    }
+    for (String gauge : gauges.keySet()) {
+      attributes.add(attribute(gauge, "long", "Current value"));
+    }
+    return new MBeanInfo(
+        getClass().getName(),
+        "Metrics of a task",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+        null,
+        null,
+        null);
+  }
+
+  private static MBeanAttributeInfo attribute(String name, String type, String description) {
+    return new MBeanAttributeInfo(name, type, description, true, false, false);
+  }
+}
@@ -1,6 +1,7 @@
 package com.palmtree.kafka.connector.sink;
 
 import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.PayloadCodec;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -36,6 +37,22 @@ public class SampleSinkConnector extends SinkConnector {
   public static final String CPS_MESSAGE_BODY_NAME = "messageBodyName";
   public static final String DEFAULT_MESSAGE_BODY_NAME = "cps_message_body";
   public static final String PUBLISH_KAFKA_METADATA = "metadata.publish";
+  public static final String CPS_COMPRESSION_CONFIG = "cps.compression";
+  public static final String CPS_COMPRESSION_MIN_BYTES_CONFIG = "cps.compression.minBytes";
+  public static final String DEFAULT_CPS_COMPRESSION = PayloadCodec.NONE.toString();
+  public static final int DEFAULT_CPS_COMPRESSION_MIN_BYTES = 512;
+  public static final String CPS_MAX_OUTSTANDING_MESSAGES_CONFIG = "cps.maxOutstandingMessages";
+  public static final String CPS_MAX_OUTSTANDING_BYTES_CONFIG = "cps.maxOutstandingBytes";
+  public static final int DEFAULT_CPS_MAX_OUTSTANDING_MESSAGES = 10000;
+  public static final long DEFAULT_CPS_MAX_OUTSTANDING_BYTES = 100000000L;
+  public static final String CPS_PUBLISHER_COUNT_CONFIG = "cps.publisherCount";
+  public static final int DEFAULT_CPS_PUBLISHER_COUNT = 1;
+  public static final String CPS_PACKING_MAX_RECORDS_CONFIG = "cps.packing.maxRecords";
+  public static final String CPS_PACKING_MAX_BYTES_CONFIG = "cps.packing.maxBytes";
+  public static final int DEFAULT_CPS_PACKING_MAX_RECORDS = 1;
+  public static final int DEFAULT_CPS_PACKING_MAX_BYTES = 65536;
+  // Leaves room under the 10MB limit of Cloud Pub/Sub for the last record of a packed message.
+  public static final int MAX_CPS_PACKING_MAX_BYTES = 5 * 1024 * 1024;
   private Map<String, String> props;
 
   @Override
@@ -129,7 +146,78 @@ public class SampleSinkConnector extends SinkConnector {
             DEFAULT_MESSAGE_BODY_NAME,
             Importance.MEDIUM,
             "When using a struct or map value schema, this field or key name indicates that the "
-                + "corresponding value will go into the Pub/Sub message body.");
+                + "corresponding value will go into the Pub/Sub message body.")
+        .define(
+            CPS_COMPRESSION_CONFIG,
+            Type.STRING,
+            DEFAULT_CPS_COMPRESSION,
+            new PayloadCodec.Validator(),
+            Importance.MEDIUM,
+            "The codec message bodies are compressed with before they are published: none, gzip "
+                + "or lz4. Compressed messages carry the codec in the "
+                + ConnectorUtils.CPS_CODEC_ATTRIBUTE
+                + " attribute, which the source connector decompresses them by.")
+        .define(
+            CPS_COMPRESSION_MIN_BYTES_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_COMPRESSION_MIN_BYTES,
+            ConfigDef.Range.atLeast(0),
+            Importance.LOW,
+            "Message bodies smaller than this are published uncompressed. Bodies that do not "
+                + "get smaller when compressed are published uncompressed as well.")
+        .define(
+            CPS_MAX_OUTSTANDING_MESSAGES_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_MAX_OUTSTANDING_MESSAGES,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.MEDIUM,
+            "The maximum number of messages a task may be publishing at once. Once it is "
+                + "reached the partitions being published from are paused until half of the "
+                + "messages have been published.")
+        .define(
+            CPS_MAX_OUTSTANDING_BYTES_CONFIG,
+            Type.LONG,
+            DEFAULT_CPS_MAX_OUTSTANDING_BYTES,
+            ConfigDef.Range.between(1, Long.MAX_VALUE),
+            Importance.MEDIUM,
+            "The maximum total size of the messages a task may be publishing at once. Once it is "
+                + "reached the partitions being published from are paused until half of the "
+                + "bytes have been published.")
+        .define(
+            CPS_PACKING_MAX_RECORDS_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_PACKING_MAX_RECORDS,
+            ConfigDef.Range.atLeast(1),
+            Importance.MEDIUM,
+            "The maximum number of consecutive records of a Kafka partition packed into one "
+                + "message. 1 disables packing. Packed messages carry the "
+                + ConnectorUtils.CPS_PACKED_ATTRIBUTE
+                + " attribute, and the source connector unpacks them into a record each.")
+        .define(
+            CPS_PACKING_MAX_BYTES_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_PACKING_MAX_BYTES,
+            ConfigDef.Range.between(1, MAX_CPS_PACKING_MAX_BYTES),
+            Importance.MEDIUM,
+            "The maximum size of the body of a packed message before compression. A record "
+                + "larger than this is packed on its own.")
+        .define(
+            CPS_PUBLISHER_COUNT_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_PUBLISHER_COUNT,
+            ConfigDef.Range.between(1, 256),
+            Importance.LOW,
+            "The number of publishers each task publishes with. Every publisher batches on its "
+                + "own and gets its own channel while there are enough in the pool, and all the "
+                + "records of a Kafka partition go through the same publisher.")
+        .define(
+            ConnectorUtils.CPS_CHANNEL_POOL_SIZE_CONFIG,
+            Type.INT,
+            ConnectorUtils.DEFAULT_CPS_CHANNEL_POOL_SIZE,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The number of gRPC channels to Cloud Pub/Sub shared by all tasks in a worker. When "
+                + "connectors ask for different sizes the largest one is used.");
   }
 
   @Override
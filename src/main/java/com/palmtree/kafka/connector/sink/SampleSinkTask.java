@@ -1,22 +1,40 @@
 package com.palmtree.kafka.connector.sink;
 
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
 import com.google.api.core.ApiFutures;
 import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
 import com.google.api.gax.retrying.RetrySettings;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
 import com.google.cloud.pubsub.v1.Publisher;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.palmtree.kafka.connector.common.ChannelPool;
 import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.LatencyHistogram;
+import com.palmtree.kafka.connector.common.MessagePacker;
+import com.palmtree.kafka.connector.common.PayloadCodec;
+import com.palmtree.kafka.connector.common.TaskMetrics;
 import com.google.pubsub.v1.ProjectTopicName;
 import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
@@ -24,6 +42,7 @@ import org.apache.kafka.connect.data.Field;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.Schema.Type;
 import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.errors.DataException;
 import org.apache.kafka.connect.sink.SinkRecord;
 import org.apache.kafka.connect.sink.SinkTask;
@@ -38,6 +57,11 @@ import org.threeten.bp.Duration;
 public class SampleSinkTask extends SinkTask {
 
   private static final Logger log = LoggerFactory.getLogger(SampleSinkTask.class);
+  // The name Kafka Connect gives the connector in the configs of its tasks.
+  private static final String CONNECTOR_NAME_CONFIG = "name";
+  private static final int INITIAL_ENCODE_BYTES = 4 * 1024;
+  // A larger encode buffer is dropped after use, so that one huge array does not pin it.
+  private static final int MAX_RETAINED_ENCODE_BYTES = 1024 * 1024;
 
   // Maps a topic to another map which contains the outstanding futures per partition
   private Map<String, Map<Integer, OutstandingFuturesForPartition>> allOutstandingFutures =
@@ -51,11 +75,127 @@ public class SampleSinkTask extends SinkTask {
   private int maxRequestTimeoutMs;
   private int maxTotalTimeoutMs;
   private boolean includeMetadata;
-  private com.google.cloud.pubsub.v1.Publisher publisher;
+  private int channelPoolSize;
+  private PayloadCodec compression;
+  private int compressionMinBytes;
+  private int packingMaxRecords;
+  private int packingMaxBytes;
+  // The records of a put() that are being packed, by topic and partition.
+  private final Map<String, Map<Integer, MessagePacker>> packers = new HashMap<>();
+  private AtomicLong recordsPacked;
+  private int maxOutstandingMessages;
+  private long maxOutstandingBytes;
+  private int publisherCount;
+  // Records are published by the publisher of their partition, see publisherFor().
+  private List<com.google.cloud.pubsub.v1.Publisher> publishers;
+  // Only set when the publishers were created by the task, with a lease per publisher.
+  private ChannelPool channelPool;
+  private List<ChannelPool.Lease> channelLeases;
+  // Reused for every message, since put() is only ever called by one thread.
+  private final PubsubMessage.Builder messageBuilder = PubsubMessage.newBuilder();
+  // The string forms of the partitions seen so far, by partition.
+  private String[] partitionStrings = new String[0];
+  // Primitive and array values are encoded here before being copied into their message body once.
+  private ByteBuffer encodeBuffer = ByteBuffer.allocate(INITIAL_ENCODE_BYTES);
+  private TaskMetrics metrics;
+  private AtomicLong messagesPublished;
+  private AtomicLong bytesPublished;
+  private AtomicLong publishFailures;
+  private final AtomicLong outstandingPublishes = new AtomicLong();
+  private final AtomicLong outstandingBytes = new AtomicLong();
+  // The partitions paused because too much was being published.
+  private final Set<TopicPartition> pausedPartitions = new HashSet<>();
+  private AtomicLong partitionPauses;
+  private LatencyHistogram publishLatencyMs;
+  private LatencyHistogram conversionNanos;
+  private LatencyHistogram outstandingPerPartition;
 
-  /** Holds a list of the publishing futures that have not been processed for a single partition. */
+  /**
+   * Holds the publishes of a single partition that have not all completed yet, and the offset up to
+   * which every record of the partition was published. Publishes complete on the publisher's
+   * threads, so this class is thread-safe.
+   */
   private class OutstandingFuturesForPartition {
-    public List<ApiFuture<String>> futures = new ArrayList<>();
+    // In the order the records were put, which is the order of their offsets.
+    private final ArrayDeque<PendingPublish> publishes = new ArrayDeque<>();
+    // The offset of the first record put for the partition, where it is rewound to if a publish
+    // fails before anything is committable.
+    private final long firstOffset;
+    // The offset of the next record Kafka should deliver, or -1 if nothing was published yet.
+    private long committableOffset = -1;
+    private Throwable failure;
+
+    OutstandingFuturesForPartition(long firstOffset) {
+      this.firstOffset = firstOffset;
+    }
+
+    synchronized void add(PendingPublish publish) {
+      publishes.addLast(publish);
+    }
+
+    synchronized void completed(PendingPublish publish) {
+      publish.done = true;
+      while (!publishes.isEmpty() && publishes.peekFirst().done) {
+        committableOffset = publishes.pollFirst().offset + 1;
+      }
+    }
+
+    synchronized void failed(Throwable t) {
+      if (failure == null) {
+        failure = t;
+      }
+    }
+
+    synchronized long committableOffset() {
+      return committableOffset;
+    }
+
+    /** Return the offset from which the records of the partition must be published again. */
+    synchronized long rewindOffset() {
+      return committableOffset >= 0 ? committableOffset : firstOffset;
+    }
+
+    synchronized Throwable failure() {
+      return failure;
+    }
+
+    synchronized int size() {
+      return publishes.size();
+    }
+  }
+
+  /** A publish of the record at {@code offset}, which updates its partition when it completes. */
+  private class PendingPublish implements ApiFutureCallback<String> {
+    private final OutstandingFuturesForPartition partition;
+    private final long offset;
+    private final int bytes;
+    private final long startMs;
+    // Guarded by the partition.
+    private boolean done = false;
+
+    PendingPublish(OutstandingFuturesForPartition partition, long offset, int bytes) {
+      this.partition = partition;
+      this.offset = offset;
+      this.bytes = bytes;
+      this.startMs = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onSuccess(String messageId) {
+      outstandingPublishes.decrementAndGet();
+      outstandingBytes.addAndGet(-bytes);
+      publishLatencyMs.record(System.currentTimeMillis() - startMs);
+      partition.completed(this);
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+      outstandingPublishes.decrementAndGet();
+      outstandingBytes.addAndGet(-bytes);
+      publishFailures.incrementAndGet();
+      // The partition stops advancing here, so the record is never committed.
+      partition.failed(t);
+    }
   }
 
   /**
@@ -71,7 +211,12 @@ public class SampleSinkTask extends SinkTask {
 
   @VisibleForTesting
   public SampleSinkTask(Publisher publisher) {
-    this.publisher = publisher;
+    this(Collections.singletonList(publisher));
+  }
+
+  @VisibleForTesting
+  public SampleSinkTask(List<Publisher> publishers) {
+    this.publishers = publishers;
   }
 
   @Override
@@ -94,38 +239,240 @@ public class SampleSinkTask extends SinkTask {
         (Integer) validatedProps.get(SampleSinkConnector.MAX_TOTAL_TIMEOUT_MS);
     messageBodyName = (String) validatedProps.get(SampleSinkConnector.CPS_MESSAGE_BODY_NAME);
     includeMetadata = (Boolean) validatedProps.get(SampleSinkConnector.PUBLISH_KAFKA_METADATA);
-    if (publisher == null) {
+    channelPoolSize = (Integer) validatedProps.get(ConnectorUtils.CPS_CHANNEL_POOL_SIZE_CONFIG);
+    compression =
+        PayloadCodec.getEnum(
+            (String) validatedProps.get(SampleSinkConnector.CPS_COMPRESSION_CONFIG));
+    compressionMinBytes =
+        (Integer) validatedProps.get(SampleSinkConnector.CPS_COMPRESSION_MIN_BYTES_CONFIG);
+    packingMaxRecords =
+        (Integer) validatedProps.get(SampleSinkConnector.CPS_PACKING_MAX_RECORDS_CONFIG);
+    packingMaxBytes =
+        (Integer) validatedProps.get(SampleSinkConnector.CPS_PACKING_MAX_BYTES_CONFIG);
+    maxOutstandingMessages =
+        (Integer) validatedProps.get(SampleSinkConnector.CPS_MAX_OUTSTANDING_MESSAGES_CONFIG);
+    maxOutstandingBytes =
+        (Long) validatedProps.get(SampleSinkConnector.CPS_MAX_OUTSTANDING_BYTES_CONFIG);
+    publisherCount = (Integer) validatedProps.get(SampleSinkConnector.CPS_PUBLISHER_COUNT_CONFIG);
+    if (publishers == null) {
       // Only do this if we did not use the constructor.
-      createPublisher();
+      createPublishers();
     }
+    createMetrics(props.get(CONNECTOR_NAME_CONFIG));
     log.info("Start SampleSinkTask");
   }
 
+  private void createMetrics(String connector) {
+    metrics = new TaskMetrics("sink-task", connector);
+    messagesPublished = metrics.counter("MessagesPublished");
+    bytesPublished = metrics.counter("BytesPublished");
+    publishFailures = metrics.counter("PublishFailures");
+    metrics.gauge(
+        "OutstandingPublishes",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return outstandingPublishes.get();
+          }
+        });
+    metrics.gauge(
+        "OutstandingBytes",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return outstandingBytes.get();
+          }
+        });
+    partitionPauses = metrics.counter("PartitionPauses");
+    recordsPacked = metrics.counter("RecordsPacked");
+    publishLatencyMs = metrics.histogram("PublishLatencyMs");
+    conversionNanos = metrics.histogram("ConversionNanos");
+    // The publishes of a partition still behind its committable offset, at each commit.
+    outstandingPerPartition = metrics.histogram("OutstandingPerPartition");
+    metrics.register();
+  }
+
   @Override
   public void put(Collection<SinkRecord> sinkRecords) {
-    log.debug("Received " + sinkRecords.size() + " messages to send to CPS.");
-    PubsubMessage.Builder builder = PubsubMessage.newBuilder();
+    log.debug("Received {} messages to send to CPS.", sinkRecords.size());
+    resumeIfDrained();
     for (SinkRecord record : sinkRecords) {
-      log.trace("Received record: " + record.toString());
-      Map<String, String> attributes = new HashMap<>();
-      ByteString value = handleValue(record.valueSchema(), record.value(), attributes);
-      if (record.key() != null) {
-        String key = record.key().toString();
-        attributes.put(ConnectorUtils.CPS_MESSAGE_KEY_ATTRIBUTE, key);
+      if (log.isTraceEnabled()) {
+        log.trace("Received record: " + record.toString());
+      }
+      // Track the partition from its first record, which packed messages are published after.
+      outstandingFuturesFor(record.topic(), record.kafkaPartition(), record.kafkaOffset());
+      long startNs = System.nanoTime();
+      PubsubMessage message = convertRecord(record);
+      conversionNanos.record(System.nanoTime() - startNs);
+      if (packingMaxRecords > 1) {
+        pack(record, message);
+      } else {
+        publishMessage(record.topic(), record.kafkaPartition(), record.kafkaOffset(), message);
+      }
+    }
+    // Records are not held back for later puts, so that their offsets can be committed.
+    for (Map.Entry<String, Map<Integer, MessagePacker>> topic : packers.entrySet()) {
+      for (Map.Entry<Integer, MessagePacker> partition : topic.getValue().entrySet()) {
+        if (!partition.getValue().isEmpty()) {
+          publishPacked(topic.getKey(), partition.getKey(), partition.getValue());
+        }
       }
-      if (includeMetadata) {
-        attributes.put(ConnectorUtils.KAFKA_TOPIC_ATTRIBUTE, record.topic());
-        attributes.put(
-            ConnectorUtils.KAFKA_PARTITION_ATTRIBUTE, record.kafkaPartition().toString());
-        attributes.put(ConnectorUtils.KAFKA_OFFSET_ATTRIBUTE, Long.toString(record.kafkaOffset()));
-        attributes.put(ConnectorUtils.KAFKA_TIMESTAMP_ATTRIBUTE, record.timestamp().toString());
+    }
+    pauseIfFull();
+  }
+
+  /**
+   * Add {@code message} of {@code record} to the packed message of the record's partition,
+   * publishing the packed message when it is full.
+   */
+  private void pack(SinkRecord record, PubsubMessage message) {
+    Map<Integer, MessagePacker> packersForTopic = packers.get(record.topic());
+    if (packersForTopic == null) {
+      packersForTopic = new HashMap<>();
+      packers.put(record.topic(), packersForTopic);
+    }
+    MessagePacker packer = packersForTopic.get(record.kafkaPartition());
+    if (packer == null) {
+      packer = new MessagePacker();
+      packersForTopic.put(record.kafkaPartition(), packer);
+    }
+    if (!packer.isEmpty() && packer.wouldExceed(message, packingMaxBytes)) {
+      publishPacked(record.topic(), record.kafkaPartition(), packer);
+    }
+    packer.add(message, record.kafkaOffset());
+    if (packer.count() >= packingMaxRecords) {
+      publishPacked(record.topic(), record.kafkaPartition(), packer);
+    }
+  }
+
+  /** Publish the records in {@code packer} as one message, compressed as a whole. */
+  private void publishPacked(String topic, Integer partition, MessagePacker packer) {
+    recordsPacked.addAndGet(packer.count());
+    // The packed message is done once its last record is, since they are all published together.
+    long lastOffset = packer.lastOffset();
+    PubsubMessage.Builder builder =
+        messageBuilder
+            .clear()
+            .putAttributes(ConnectorUtils.CPS_PACKED_ATTRIBUTE, MessagePacker.FORMAT_VERSION);
+    ByteString body = compress(packer.drain(), builder);
+    publishMessage(topic, partition, lastOffset, builder.setData(body).build());
+  }
+
+  /**
+   * Return {@code data} compressed with the configured codec if that makes it smaller, in which
+   * case the codec is added to the attributes of {@code message}.
+   */
+  private ByteString compress(ByteString data, PubsubMessage.Builder message) {
+    if (compression == PayloadCodec.NONE || data.size() < compressionMinBytes) {
+      return data;
+    }
+    ByteString compressed = compression.compress(data);
+    if (compressed.size() >= data.size()) {
+      return data;
+    }
+    message.putAttributes(ConnectorUtils.CPS_CODEC_ATTRIBUTE, compression.toString());
+    return compressed;
+  }
+
+  /**
+   * Pause the partitions being published from if the task is publishing as many messages or bytes
+   * as it may, so that Kafka Connect stops handing it records that would pile up in memory.
+   */
+  private void pauseIfFull() {
+    if (outstandingPublishes.get() < maxOutstandingMessages
+        && outstandingBytes.get() < maxOutstandingBytes) {
+      return;
+    }
+    List<TopicPartition> partitions = new ArrayList<>();
+    for (Map.Entry<String, Map<Integer, OutstandingFuturesForPartition>> topic :
+        allOutstandingFutures.entrySet()) {
+      for (Map.Entry<Integer, OutstandingFuturesForPartition> partition :
+          topic.getValue().entrySet()) {
+        TopicPartition topicPartition = new TopicPartition(topic.getKey(), partition.getKey());
+        if (partition.getValue().size() > 0 && pausedPartitions.add(topicPartition)) {
+          partitions.add(topicPartition);
+        }
       }
-      PubsubMessage message = builder.setData(value).putAllAttributes(attributes).build();
-      publishMessage(record.topic(), record.kafkaPartition(), message);
     }
+    if (!partitions.isEmpty()) {
+      log.debug(
+          "Pausing {} while {} messages of {} bytes are being published.",
+          partitions,
+          outstandingPublishes.get(),
+          outstandingBytes.get());
+      partitionPauses.addAndGet(partitions.size());
+      context.pause(partitions.toArray(new TopicPartition[partitions.size()]));
+    }
+  }
+
+  /**
+   * Resume the paused partitions once half of the messages and bytes they were paused for have
+   * been published. This is only called from put() and preCommit(), since the consumer may only be
+   * used by the thread that calls them.
+   */
+  private void resumeIfDrained() {
+    if (pausedPartitions.isEmpty()
+        || outstandingPublishes.get() > maxOutstandingMessages / 2
+        || outstandingBytes.get() > maxOutstandingBytes / 2) {
+      return;
+    }
+    log.debug("Resuming {}.", pausedPartitions);
+    context.resume(pausedPartitions.toArray(new TopicPartition[pausedPartitions.size()]));
+    pausedPartitions.clear();
   }
 
-  private ByteString handleValue(Schema schema, Object value, Map<String, String> attributes) {
+  /** Convert {@code record} to the message to publish for it. */
+  @VisibleForTesting
+  PubsubMessage convertRecord(SinkRecord record) {
+    // Attributes go straight into the builder, which is cleared so that none carry over from the
+    // previous record.
+    PubsubMessage.Builder builder = messageBuilder.clear();
+    ByteString value = handleValue(record.valueSchema(), record.value(), builder);
+    if (packingMaxRecords <= 1) {
+      // Packed records are compressed together instead.
+      value = compress(value, builder);
+    }
+    if (record.key() != null) {
+      builder.putAttributes(ConnectorUtils.CPS_MESSAGE_KEY_ATTRIBUTE, record.key().toString());
+    }
+    if (includeMetadata) {
+      builder.putAttributes(ConnectorUtils.KAFKA_TOPIC_ATTRIBUTE, record.topic());
+      builder.putAttributes(
+          ConnectorUtils.KAFKA_PARTITION_ATTRIBUTE, partitionString(record.kafkaPartition()));
+      builder.putAttributes(
+          ConnectorUtils.KAFKA_OFFSET_ATTRIBUTE, Long.toString(record.kafkaOffset()));
+      if (record.timestamp() != null) {
+        builder.putAttributes(
+            ConnectorUtils.KAFKA_TIMESTAMP_ATTRIBUTE, Long.toString(record.timestamp()));
+      }
+    }
+    return builder.setData(value).build();
+  }
+
+  /** Return {@code partition} as a string, which is cached since a task sees few partitions. */
+  private String partitionString(int partition) {
+    if (partition < 0) {
+      return Integer.toString(partition);
+    }
+    if (partition >= partitionStrings.length) {
+      partitionStrings =
+          Arrays.copyOf(partitionStrings, Math.max(partition + 1, partitionStrings.length * 2));
+    }
+    String string = partitionStrings[partition];
+    if (string == null) {
+      string = Integer.toString(partition);
+      partitionStrings[partition] = string;
+    }
+    return string;
+  }
+
+  /**
+   * Return the message body for {@code value} of {@code schema}, adding the fields of a struct or
+   * map other than the body to the attributes of {@code message}.
+   */
+  @VisibleForTesting
+  ByteString handleValue(Schema schema, Object value, PubsubMessage.Builder message) {
     if (schema == null) {
       String str = value.toString();
       return ByteString.copyFromUtf8(str);
@@ -133,33 +480,20 @@ public class SampleSinkTask extends SinkTask {
     Schema.Type t = schema.type();
     switch (t) {
       case INT8:
-        byte b = (Byte) value;
-        byte[] arr = {b};
-        return ByteString.copyFrom(arr);
       case INT16:
-        ByteBuffer shortBuf = ByteBuffer.allocate(2);
-        shortBuf.putShort((Short) value);
-        return ByteString.copyFrom(shortBuf);
       case INT32:
-        ByteBuffer intBuf = ByteBuffer.allocate(4);
-        intBuf.putInt((Integer) value);
-        return ByteString.copyFrom(intBuf);
       case INT64:
-        ByteBuffer longBuf = ByteBuffer.allocate(8);
-        longBuf.putLong((Long) value);
-        return ByteString.copyFrom(longBuf);
       case FLOAT32:
-        ByteBuffer floatBuf = ByteBuffer.allocate(4);
-        floatBuf.putFloat((Float) value);
-        return ByteString.copyFrom(floatBuf);
       case FLOAT64:
-        ByteBuffer doubleBuf = ByteBuffer.allocate(8);
-        doubleBuf.putDouble((Double) value);
-        return ByteString.copyFrom(doubleBuf);
       case BOOLEAN:
-        byte bool = (byte) ((Boolean) value ? 1 : 0);
-        byte[] boolArr = {bool};
-        return ByteString.copyFrom(boolArr);
+      case ARRAY:
+        encodeBuffer.clear();
+        encode(schema, value);
+        ByteString encoded = ByteString.copyFrom(encodeBuffer.array(), 0, encodeBuffer.position());
+        if (encodeBuffer.capacity() > MAX_RETAINED_ENCODE_BYTES) {
+          encodeBuffer = ByteBuffer.allocate(INITIAL_ENCODE_BYTES);
+        }
+        return encoded;
       case STRING:
         String str = (String) value;
         return ByteString.copyFromUtf8(str);
@@ -195,7 +529,7 @@ public class SampleSinkTask extends SinkTask {
             Schema bodySchema = f.schema();
             msgBody = handleValue(bodySchema, val, null);
           } else {
-            attributes.put(f.name(), val.toString());
+            message.putAttributes(f.name(), val.toString());
           }
         }
         if (msgBody != null) {
@@ -211,7 +545,7 @@ public class SampleSinkTask extends SinkTask {
           if (key.equals(messageBodyName)) {
             mapBody = ByteString.copyFromUtf8(map.get(key).toString());
           } else {
-            attributes.put(key.toString(), map.get(key).toString());
+            message.putAttributes(key.toString(), map.get(key).toString());
           }
         }
         if (mapBody != null) {
@@ -219,49 +553,169 @@ public class SampleSinkTask extends SinkTask {
         } else {
           return ByteString.EMPTY;
         }
+    }
+    return ByteString.EMPTY;
+  }
+
+  /**
+   * Append {@code value} of {@code schema}, which is a primitive or an array, to the encode buffer.
+   * Array elements are appended one after the other.
+   */
+  private void encode(Schema schema, Object value) {
+    switch (schema.type()) {
+      case INT8:
+        encodeCapacity(1).put((Byte) value);
+        break;
+      case INT16:
+        encodeCapacity(2).putShort((Short) value);
+        break;
+      case INT32:
+        encodeCapacity(4).putInt((Integer) value);
+        break;
+      case INT64:
+        encodeCapacity(8).putLong((Long) value);
+        break;
+      case FLOAT32:
+        encodeCapacity(4).putFloat((Float) value);
+        break;
+      case FLOAT64:
+        encodeCapacity(8).putDouble((Double) value);
+        break;
+      case BOOLEAN:
+        encodeCapacity(1).put((byte) ((Boolean) value ? 1 : 0));
+        break;
+      case STRING:
+        byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+        encodeCapacity(utf8.length).put(utf8);
+        break;
+      case BYTES:
+        if (value instanceof ByteString) {
+          ByteString bytes = (ByteString) value;
+          ByteBuffer buffer = encodeCapacity(bytes.size());
+          bytes.copyTo(buffer.array(), buffer.position());
+          buffer.position(buffer.position() + bytes.size());
+        } else if (value instanceof byte[]) {
+          byte[] bytes = (byte[]) value;
+          encodeCapacity(bytes.length).put(bytes);
+        } else if (value instanceof ByteBuffer) {
+          ByteBuffer bytes = ((ByteBuffer) value).duplicate();
+          encodeCapacity(bytes.remaining()).put(bytes);
+        } else {
+          throw new DataException("Unexpected value class with BYTES schema type.");
+        }
+        break;
       case ARRAY:
-        Schema.Type arrType = schema.valueSchema().type();
+        Schema elementSchema = schema.valueSchema();
+        Schema.Type arrType = elementSchema.type();
         if (arrType == Type.MAP || arrType == Type.STRUCT) {
           throw new DataException("Array type does not support Map or Struct types.");
         }
-        ByteString out = ByteString.EMPTY;
-        Object[] objArr = (Object[]) value;
-        for (Object o : objArr) {
-          out = out.concat(handleValue(schema.valueSchema(), o, null));
+        if (value instanceof List) {
+          for (Object o : (List<?>) value) {
+            encode(elementSchema, o);
+          }
+        } else {
+          for (Object o : (Object[]) value) {
+            encode(elementSchema, o);
+          }
         }
-        return out;
+        break;
+      default:
+        throw new DataException("Unexpected schema type " + schema.type() + ".");
     }
-    return ByteString.EMPTY;
   }
 
+  /** Return the encode buffer, grown to fit at least {@code bytes} more bytes. */
+  private ByteBuffer encodeCapacity(int bytes) {
+    if (encodeBuffer.remaining() < bytes) {
+      int capacity = Math.max(encodeBuffer.capacity() * 2, encodeBuffer.position() + bytes);
+      ByteBuffer larger = ByteBuffer.allocate(capacity);
+      encodeBuffer.flip();
+      larger.put(encodeBuffer);
+      encodeBuffer = larger;
+    }
+    return encodeBuffer;
+  }
+
+  /**
+   * Return the offsets up to which every record of each partition was published, without waiting
+   * for the publishes still in flight, so a slow partition holds back its own commits rather than
+   * stalling the consumer. A partition with a failed publish is rewound to the offset up to which
+   * its records were published instead, and its records from there on are put and tracked again.
+   */
   @Override
-  public void flush(Map<TopicPartition, OffsetAndMetadata> partitionOffsets) {
-    log.debug("Flushing...");
-    // Process results of all the outstanding futures specified by each TopicPartition.
-    for (Map.Entry<TopicPartition, OffsetAndMetadata> partitionOffset :
-        partitionOffsets.entrySet()) {
-      log.trace("Received flush for partition " + partitionOffset.getKey().toString());
-      Map<Integer, OutstandingFuturesForPartition> outstandingFuturesForTopic =
-          allOutstandingFutures.get(partitionOffset.getKey().topic());
-      if (outstandingFuturesForTopic == null) {
-        continue;
+  public Map<TopicPartition, OffsetAndMetadata> preCommit(
+      Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
+    resumeIfDrained();
+    Map<TopicPartition, OffsetAndMetadata> committable = new HashMap<>();
+    for (Iterator<Map.Entry<String, Map<Integer, OutstandingFuturesForPartition>>> topics =
+            allOutstandingFutures.entrySet().iterator();
+        topics.hasNext(); ) {
+      Map.Entry<String, Map<Integer, OutstandingFuturesForPartition>> topic = topics.next();
+      for (Iterator<Map.Entry<Integer, OutstandingFuturesForPartition>> partitions =
+              topic.getValue().entrySet().iterator();
+          partitions.hasNext(); ) {
+        Map.Entry<Integer, OutstandingFuturesForPartition> partition = partitions.next();
+        OutstandingFuturesForPartition outstanding = partition.getValue();
+        TopicPartition topicPartition = new TopicPartition(topic.getKey(), partition.getKey());
+        Throwable failure = outstanding.failure();
+        if (failure != null) {
+          // Publishes of the partition that are still in flight complete unobserved.
+          long offset = outstanding.rewindOffset();
+          log.error("A publish for " + topicPartition + " failed, rewinding to " + offset, failure);
+          partitions.remove();
+          context.offset(topicPartition, offset);
+          continue;
+        }
+        outstandingPerPartition.record(outstanding.size());
+        long offset = outstanding.committableOffset();
+        if (offset >= 0) {
+          committable.put(topicPartition, new OffsetAndMetadata(offset));
+        }
       }
-      OutstandingFuturesForPartition outstandingFutures =
-          outstandingFuturesForTopic.get(partitionOffset.getKey().partition());
-      if (outstandingFutures == null) {
-        continue;
+      if (topic.getValue().isEmpty()) {
+        topics.remove();
       }
-      try {
-        ApiFutures.allAsList(outstandingFutures.futures).get();
-      } catch (Exception e) {
-        throw new RuntimeException(e);
+    }
+    log.debug("Committable offsets: {}", committable);
+    return committable;
+  }
+
+  @Override
+  public void close(Collection<TopicPartition> partitions) {
+    // Publishes of these partitions that are still in flight complete unobserved. Whichever task
+    // is assigned them next starts from the offsets committed before this.
+    List<TopicPartition> revokedPaused = new ArrayList<>();
+    for (TopicPartition partition : partitions) {
+      if (pausedPartitions.remove(partition)) {
+        revokedPaused.add(partition);
       }
+      Map<Integer, MessagePacker> packersForTopic = packers.get(partition.topic());
+      if (packersForTopic != null) {
+        packersForTopic.remove(partition.partition());
+      }
+      Map<Integer, OutstandingFuturesForPartition> outstandingFuturesForTopic =
+          allOutstandingFutures.get(partition.topic());
+      if (outstandingFuturesForTopic != null) {
+        outstandingFuturesForTopic.remove(partition.partition());
+        if (outstandingFuturesForTopic.isEmpty()) {
+          allOutstandingFutures.remove(partition.topic());
+        }
+      }
+    }
+    if (!revokedPaused.isEmpty()) {
+      // The worker remembers paused partitions and would pause them again if they came back to
+      // this task, where nothing would resume them.
+      context.resume(revokedPaused.toArray(new TopicPartition[revokedPaused.size()]));
     }
-    allOutstandingFutures.clear();
   }
 
-  /** Publish all the messages in a partition and store the Future's for each publish request. */
-  private void publishMessage(String topic, Integer partition, PubsubMessage message) {
+  /**
+   * Return the outstanding futures of a partition, which starts being tracked at {@code offset} if
+   * it is not yet.
+   */
+  private OutstandingFuturesForPartition outstandingFuturesFor(
+      String topic, Integer partition, long offset) {
     // Get a map containing all futures per partition for the passed in topic.
     Map<Integer, OutstandingFuturesForPartition> outstandingFuturesForTopic =
         allOutstandingFutures.get(topic);
@@ -272,13 +726,42 @@ public class SampleSinkTask extends SinkTask {
     // Get the object containing the outstanding futures for this topic and partition..
     OutstandingFuturesForPartition outstandingFutures = outstandingFuturesForTopic.get(partition);
     if (outstandingFutures == null) {
-      outstandingFutures = new OutstandingFuturesForPartition();
+      outstandingFutures = new OutstandingFuturesForPartition(offset);
       outstandingFuturesForTopic.put(partition, outstandingFutures);
     }
-    outstandingFutures.futures.add(publisher.publish(message));
+    return outstandingFutures;
+  }
+
+  /** Publish {@code message} for the record at {@code offset} of a partition and track it. */
+  private void publishMessage(String topic, Integer partition, long offset, PubsubMessage message) {
+    OutstandingFuturesForPartition outstandingFutures =
+        outstandingFuturesFor(topic, partition, offset);
+    int bytes = message.getSerializedSize();
+    ApiFuture<String> future = publisherFor(topic, partition).publish(message);
+    outstandingPublishes.incrementAndGet();
+    outstandingBytes.addAndGet(bytes);
+    messagesPublished.incrementAndGet();
+    bytesPublished.addAndGet(bytes);
+    // The publish is tracked before its callback is added, which may run it right away.
+    PendingPublish publish = new PendingPublish(outstandingFutures, offset, bytes);
+    outstandingFutures.add(publish);
+    ApiFutures.addCallback(future, publish);
+  }
+
+  /**
+   * Return the publisher of {@code partition} of {@code topic}. A partition always has the same
+   * publisher, so that its messages are batched and published in the order they were put.
+   */
+  private Publisher publisherFor(String topic, Integer partition) {
+    if (publishers.size() == 1) {
+      return publishers.get(0);
+    }
+    int hash = 31 * topic.hashCode() + (partition == null ? 0 : partition);
+    return publishers.get((hash & Integer.MAX_VALUE) % publishers.size());
   }
 
-  private void createPublisher() {
+  /** Create {@code publisherCount} publishers, each on its own channel when the pool has enough. */
+  private void createPublishers() {
     ProjectTopicName fullTopic = ProjectTopicName.of(cpsProject, cpsTopic);
     com.google.cloud.pubsub.v1.Publisher.Builder builder =
         com.google.cloud.pubsub.v1.Publisher.newBuilder(fullTopic)
@@ -300,13 +783,63 @@ public class SampleSinkTask extends SinkTask {
                     .setInitialRpcTimeout(Duration.ofSeconds(10))
                     .setRpcTimeoutMultiplier(2)
                     .build());
+    if (publisherCount > 1) {
+      // Each publisher would otherwise start a thread per core of its own.
+      int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / publisherCount);
+      builder.setExecutorProvider(
+          InstantiatingExecutorProvider.newBuilder().setExecutorThreadCount(threads).build());
+    }
     try {
-      publisher = builder.build();
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+      channelPool = ChannelPool.acquire(channelPoolSize);
+    } catch (IOException e) {
+      throw new ConnectException("Could not create the channel pool for Cloud Pub/Sub.", e);
+    }
+    builder.setCredentialsProvider(FixedCredentialsProvider.create(channelPool.getCredentials()));
+    publishers = new ArrayList<>(publisherCount);
+    channelLeases = new ArrayList<>(publisherCount);
+    for (int i = 0; i < publisherCount; ++i) {
+      ChannelPool.Lease lease;
+      try {
+        // The pool leases the channel with the fewest leases, so publishers only share channels
+        // when there are more publishers than channels.
+        lease = channelPool.lease();
+      } catch (IOException e) {
+        throw new ConnectException("Could not create a channel to Cloud Pub/Sub.", e);
+      }
+      channelLeases.add(lease);
+      // The publisher does not shut down a fixed channel, so the lease stays in charge of it.
+      builder.setChannelProvider(
+          FixedTransportChannelProvider.create(
+              GrpcTransportChannel.create(lease.getManagedChannel())));
+      try {
+        publishers.add(builder.build());
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
     }
   }
 
   @Override
-  public void stop() {}
+  public void stop() {
+    if (metrics != null) {
+      metrics.unregister();
+    }
+    if (channelPool == null) {
+      return;
+    }
+    for (Publisher publisher : publishers) {
+      try {
+        publisher.shutdown();
+      } catch (Exception e) {
+        log.error("An exception occurred shutting down the publisher: " + e);
+      }
+    }
+    publishers = null;
+    for (ChannelPool.Lease lease : channelLeases) {
+      lease.release();
+    }
+    channelLeases = null;
+    channelPool.release();
+    channelPool = null;
+  }
 }
@@ -0,0 +1,280 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends acks for the delivered ack ids in an {@link AckStateTable}. Delivered ids are flushed as
+ * soon as there are enough of them to fill a request by count or by bytes, or once the oldest of
+ * them has waited for the linger time, so acks go out even while the task is idle. Every request
+ * is bounded by count and bytes, a backlog is split over several requests, and at most a fixed
+ * number of ack requests are outstanding at once. When a request fails only its own ack ids are
+ * queued for another attempt. Closing the dispatcher sends every delivered ack before it returns.
+ * This class is thread-safe.
+ */
+public class AckDispatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(AckDispatcher.class);
+  // How long close() keeps sending acks before leaving the rest to be redelivered.
+  private static final long MAX_CLOSE_WAIT_MS = 10 * 1000;
+
+  private final SampleSubscriber subscriber;
+  private final AckStateTable ackStates;
+  private final String subscription;
+  private final int maxBatchSize;
+  private final long maxBatchBytes;
+  private final long lingerMs;
+  private final int maxOutstandingRequests;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("cps-ack-dispatcher-%d")
+              .build());
+  private final Runnable flushTask =
+      new Runnable() {
+        @Override
+        public void run() {
+          synchronized (AckDispatcher.this) {
+            flushScheduled = false;
+          }
+          flush();
+        }
+      };
+  private int outstandingRequests = 0;
+  private boolean flushScheduled = false;
+  private boolean lingerScheduled = false;
+  private boolean flushing = false;
+  private boolean flushRequested = false;
+  private boolean closed = false;
+
+  public AckDispatcher(
+      SampleSubscriber subscriber,
+      AckStateTable ackStates,
+      String subscription,
+      int maxBatchSize,
+      long maxBatchBytes,
+      long lingerMs,
+      int maxOutstandingRequests) {
+    this.subscriber = subscriber;
+    this.ackStates = ackStates;
+    this.subscription = subscription;
+    this.maxBatchSize = maxBatchSize;
+    // Leave room for the subscription name, which every request carries.
+    this.maxBatchBytes =
+        maxBatchBytes
+            - CodedOutputStream.computeStringSize(
+                AcknowledgeRequest.SUBSCRIPTION_FIELD_NUMBER, subscription);
+    this.lingerMs = lingerMs;
+    this.maxOutstandingRequests = maxOutstandingRequests;
+  }
+
+  /**
+   * Mark the record for {@code ackId} as committed to Kafka. The ack is sent immediately if a
+   * request full by count or by bytes is waiting, and otherwise within the linger time.
+   */
+  public void delivered(String ackId) {
+    ackStates.deliver(ackId);
+    if (ackStates.count(AckStateTable.State.DELIVERED) >= maxBatchSize
+        || ackStates.deliveredBytes() >= maxBatchBytes) {
+      submitFlush(0);
+    } else {
+      scheduleLinger();
+    }
+  }
+
+  /**
+   * Send acks for every delivered ack id, as far as the outstanding request limit allows. Only one
+   * flush runs at a time; a flush requested while another is running is carried out by the
+   * running one once it is done.
+   */
+  public void flush() {
+    synchronized (this) {
+      if (flushing) {
+        flushRequested = true;
+        return;
+      }
+      flushing = true;
+    }
+    try {
+      boolean again = true;
+      while (again && flushDelivered()) {
+        synchronized (this) {
+          again = flushRequested;
+          flushRequested = false;
+          flushing = again;
+          if (!flushing) {
+            notifyAll();
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        flushing = false;
+        notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Send the ids that are delivered now. Returns false if the outstanding request limit was
+   * reached, in which case the flush is over and the next completed request starts another one.
+   */
+  private boolean flushDelivered() {
+    // Only send the ids that are delivered now, so that ids of a request that fails while this
+    // flush is running are not retried right away.
+    int remaining = ackStates.count(AckStateTable.State.DELIVERED);
+    while (remaining > 0) {
+      final List<String> batch;
+      synchronized (this) {
+        if (closed || outstandingRequests >= maxOutstandingRequests) {
+          // Give up the flush under the same lock that completed requests check it with.
+          flushing = false;
+          flushRequested = false;
+          notifyAll();
+          return false;
+        }
+        batch = ackStates.drainDelivered(Math.min(maxBatchSize, remaining), maxBatchBytes);
+        if (batch.isEmpty()) {
+          return true;
+        }
+        ++outstandingRequests;
+      }
+      remaining -= batch.size();
+      send(batch);
+    }
+    return true;
+  }
+
+  /**
+   * Send every delivered ack, waiting for running flushes and outstanding requests to complete and
+   * retrying failed requests after the linger time, then stop the background flushes. Gives up
+   * after {@link #MAX_CLOSE_WAIT_MS}, leaving the messages that were not acked to be redelivered.
+   */
+  public void close() {
+    long deadline = System.currentTimeMillis() + MAX_CLOSE_WAIT_MS;
+    try {
+      while (true) {
+        flush();
+        synchronized (this) {
+          boolean busy = flushing || outstandingRequests > 0;
+          if (!busy && ackStates.count(AckStateTable.State.DELIVERED) == 0) {
+            break;
+          }
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            log.warn(
+                "Closing with {} acks not sent, their messages will be redelivered.",
+                ackStates.count(AckStateTable.State.DELIVERED)
+                    + ackStates.count(AckStateTable.State.IN_FLIGHT));
+            break;
+          }
+          // Completed flushes and requests wake us up. Acks that failed are only waiting for
+          // another attempt, which is made after the linger time as in the background.
+          wait(busy ? remaining : Math.max(1, Math.min(remaining, lingerMs)));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      closed = true;
+    }
+    executor.shutdown();
+  }
+
+  private void send(final List<String> batch) {
+    AcknowledgeRequest request =
+        AcknowledgeRequest.newBuilder().setSubscription(subscription).addAllAckIds(batch).build();
+    ListenableFuture<Empty> response;
+    try {
+      response = subscriber.ackMessages(request);
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        response,
+        new FutureCallback<Empty>() {
+          @Override
+          public void onSuccess(Empty result) {
+            ackStates.acked(batch);
+            log.trace("Successfully acked a set of messages. {}", batch.size());
+            requestCompleted(0, false);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            ackStates.ackFailed(batch);
+            log.error("An exception occurred acking " + batch.size() + " messages: " + t);
+            // Give the failure some time to clear before retrying this slice.
+            requestCompleted(lingerMs, true);
+          }
+        });
+  }
+
+  private void requestCompleted(long flushDelayMs, boolean failed) {
+    synchronized (this) {
+      --outstandingRequests;
+      notifyAll();
+      if (flushing && !failed) {
+        // The running flush sends whatever is left.
+        return;
+      }
+    }
+    if (ackStates.count(AckStateTable.State.DELIVERED) > 0) {
+      submitFlush(flushDelayMs);
+    }
+  }
+
+  /** Make sure a flush runs within the linger time. */
+  private void scheduleLinger() {
+    synchronized (this) {
+      if (lingerScheduled || closed) {
+        return;
+      }
+      lingerScheduled = true;
+    }
+    submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            synchronized (AckDispatcher.this) {
+              lingerScheduled = false;
+            }
+            flush();
+          }
+        },
+        lingerMs);
+  }
+
+  private void submitFlush(long delayMs) {
+    synchronized (this) {
+      if (flushScheduled) {
+        return;
+      }
+      flushScheduled = true;
+    }
+    submit(flushTask, delayMs);
+  }
+
+  private void submit(Runnable task, long delayMs) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extends the ack deadline of messages that have been pulled but not yet acked, so that Cloud
+ * Pub/Sub does not redeliver them while their records wait to be committed to Kafka. Once a
+ * second the manager looks for ack ids in an {@link AckStateTable} whose deadline is about to
+ * expire and extends them in batched ModifyAckDeadline requests. The new deadline is the 99th
+ * percentile of the time between receiving a message and committing its record over the last
+ * minute or two, so it adapts when Kafka slows down and again once it has recovered. Messages are
+ * no longer extended once they have been outstanding for the maximum extension period. This class
+ * is thread-safe.
+ */
+public class AckLeaseManager {
+
+  private static final Logger log = LoggerFactory.getLogger(AckLeaseManager.class);
+  private static final long CHECK_INTERVAL_MS = 1000;
+  // Deadlines are extended once they are closer than this, to allow for the request's latency.
+  private static final long PADDING_MS = 5 * 1000;
+  public static final int MIN_ACK_DEADLINE_SECONDS = 10;
+  public static final int MAX_ACK_DEADLINE_SECONDS = 600;
+
+  private final SampleSubscriber subscriber;
+  private final AckStateTable ackStates;
+  private final String subscription;
+  private final int maxBatchSize;
+  private final long maxBatchBytes;
+  private final int defaultDeadlineSeconds;
+  private final long maxExtensionPeriodMs;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cps-ack-lease-%d").build());
+
+  public AckLeaseManager(
+      SampleSubscriber subscriber,
+      AckStateTable ackStates,
+      String subscription,
+      int maxBatchSize,
+      long maxBatchBytes,
+      int defaultDeadlineSeconds,
+      long maxExtensionPeriodMs) {
+    this.subscriber = subscriber;
+    this.ackStates = ackStates;
+    this.subscription = subscription;
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchBytes = maxBatchBytes;
+    this.defaultDeadlineSeconds = defaultDeadlineSeconds;
+    this.maxExtensionPeriodMs = maxExtensionPeriodMs;
+  }
+
+  /** Start extending deadlines in the background. */
+  public void start() {
+    executor.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              extendDeadlines();
+            } catch (RuntimeException e) {
+              log.error("An exception occurred extending ack deadlines: " + e);
+            }
+          }
+        },
+        CHECK_INTERVAL_MS,
+        CHECK_INTERVAL_MS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /** Extend the deadline of every ack id that would otherwise expire before the next check. */
+  @VisibleForTesting
+  void extendDeadlines() {
+    long now = System.currentTimeMillis();
+    List<String> expiring =
+        ackStates.expiringBefore(now + CHECK_INTERVAL_MS + PADDING_MS, now - maxExtensionPeriodMs);
+    if (expiring.isEmpty()) {
+      return;
+    }
+    int deadlineSeconds = deadlineSeconds();
+    ackStates.setDeadline(expiring, now + deadlineSeconds * 1000L);
+    log.debug(
+        "Extending the ack deadline of {} messages by {}s.", expiring.size(), deadlineSeconds);
+    int start = 0;
+    while (start < expiring.size()) {
+      int end = start;
+      long bytes = 0;
+      while (end < expiring.size() && end - start < maxBatchSize) {
+        long size = AckStateTable.encodedSize(expiring.get(end));
+        if (end > start && bytes + size > maxBatchBytes) {
+          break;
+        }
+        bytes += size;
+        ++end;
+      }
+      send(expiring.subList(start, end), deadlineSeconds);
+      start = end;
+    }
+  }
+
+  /**
+   * Return the deadline to extend by: the 99th percentile of the recent commit latencies rounded
+   * up to whole seconds and clamped to what Cloud Pub/Sub accepts.
+   */
+  @VisibleForTesting
+  int deadlineSeconds() {
+    long p99Ms = ackStates.commitLatencies().percentile(0.99);
+    if (p99Ms < 0) {
+      return defaultDeadlineSeconds;
+    }
+    long seconds = (p99Ms + 999) / 1000;
+    return (int) Math.max(MIN_ACK_DEADLINE_SECONDS, Math.min(MAX_ACK_DEADLINE_SECONDS, seconds));
+  }
+
+  private void send(final List<String> batch, int deadlineSeconds) {
+    ModifyAckDeadlineRequest request =
+        ModifyAckDeadlineRequest.newBuilder()
+            .setSubscription(subscription)
+            .addAllAckIds(batch)
+            .setAckDeadlineSeconds(deadlineSeconds)
+            .build();
+    ListenableFuture<Empty> response;
+    try {
+      response = subscriber.modifyAckDeadline(request);
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        response,
+        new FutureCallback<Empty>() {
+          @Override
+          public void onSuccess(Empty result) {
+            log.trace("Extended the ack deadline of a set of messages. {}", batch.size());
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Retry these ack ids on the next check.
+            ackStates.setDeadline(batch, System.currentTimeMillis());
+            log.error("An exception occurred extending ack deadlines: " + t);
+          }
+        });
+  }
+}
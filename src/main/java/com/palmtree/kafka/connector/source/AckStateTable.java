@@ -0,0 +1,258 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.palmtree.kafka.connector.common.RollingLatencyHistogram;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Tracks the state of every ack id handed out by a {@link SampleSourceTask} until the message has
+ * been acked in Cloud Pub/Sub. Each ack id has exactly one entry that moves through {@link
+ * State#RECEIVED}, {@link State#DELIVERED} and {@link State#IN_FLIGHT} with atomic
+ * compare-and-set transitions, and is removed once it is acked. Delivered ids are also queued so
+ * that they can be drained in batches without scanning the table. Every entry also records when
+ * its ack deadline expires so that the deadline can be extended while the message waits for
+ * Kafka. This class is thread-safe and takes no global lock.
+ */
+public class AckStateTable {
+
+  public static final long DEFAULT_ACK_DEADLINE_MS = 10 * 1000;
+  public static final long COMMIT_LATENCY_WINDOW_MS = 60 * 1000;
+
+  /** The state of a single ack id. */
+  public enum State {
+    /** The message was pulled and handed to Kafka Connect but not yet committed to Kafka. */
+    RECEIVED,
+    /** The record was committed to Kafka and the message is waiting to be acked. */
+    DELIVERED,
+    /** An ack for the message has been sent and has not completed yet. */
+    IN_FLIGHT
+  }
+
+  /** The entry for a single ack id. */
+  private static class Ack {
+    static final AtomicReferenceFieldUpdater<Ack, State> STATE =
+        AtomicReferenceFieldUpdater.newUpdater(Ack.class, State.class, "state");
+
+    final long receivedAtMs;
+    // The size of the message, which is held in memory until its record is committed.
+    final long bytes;
+    volatile State state;
+    volatile long deadlineMs;
+
+    Ack(State state, long receivedAtMs, long deadlineMs, long bytes) {
+      this.state = state;
+      this.receivedAtMs = receivedAtMs;
+      this.deadlineMs = deadlineMs;
+      this.bytes = bytes;
+    }
+
+    boolean transition(State from, State to) {
+      return STATE.compareAndSet(this, from, to);
+    }
+  }
+
+  private final long ackDeadlineMs;
+  private final ConcurrentHashMap<String, Ack> acks = new ConcurrentHashMap<>();
+  private final Queue<String> delivered = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger receivedCount = new AtomicInteger();
+  private final AtomicInteger deliveredCount = new AtomicInteger();
+  private final AtomicInteger inFlightCount = new AtomicInteger();
+  private final AtomicLong receivedBytes = new AtomicLong();
+  // The encoded size of the ack ids in the DELIVERED state.
+  private final AtomicLong deliveredBytes = new AtomicLong();
+  private final RollingLatencyHistogram commitLatencies =
+      new RollingLatencyHistogram(COMMIT_LATENCY_WINDOW_MS);
+
+  public AckStateTable() {
+    this(DEFAULT_ACK_DEADLINE_MS);
+  }
+
+  /** @param ackDeadlineMs the ack deadline a message has when it is received */
+  public AckStateTable(long ackDeadlineMs) {
+    this.ackDeadlineMs = ackDeadlineMs;
+  }
+
+  /**
+   * Start tracking {@code ackId}. Returns false if the ack id is already tracked in any state, in
+   * which case the message is a redelivery that must not be handed to Kafka again.
+   */
+  public boolean receive(String ackId) {
+    return receive(ackId, 0);
+  }
+
+  /**
+   * Start tracking {@code ackId} for a message of {@code bytes} bytes, which count towards {@link
+   * #receivedBytes()} until it is delivered. Returns false as {@link #receive(String)} does.
+   */
+  public boolean receive(String ackId, long bytes) {
+    long now = System.currentTimeMillis();
+    if (acks.putIfAbsent(ackId, new Ack(State.RECEIVED, now, now + ackDeadlineMs, bytes))
+        != null) {
+      return false;
+    }
+    receivedCount.incrementAndGet();
+    receivedBytes.addAndGet(bytes);
+    return true;
+  }
+
+  /**
+   * Mark the record for {@code ackId} as committed to Kafka so that its message gets acked. The
+   * time since the message was received is recorded in {@link #commitLatencies()}.
+   */
+  public void deliver(String ackId) {
+    Ack ack = acks.get(ackId);
+    if (ack != null) {
+      if (!ack.transition(State.RECEIVED, State.DELIVERED)) {
+        // Already delivered or being acked.
+        return;
+      }
+      receivedCount.decrementAndGet();
+      receivedBytes.addAndGet(-ack.bytes);
+      commitLatencies.record(System.currentTimeMillis() - ack.receivedAtMs);
+    } else {
+      long now = System.currentTimeMillis();
+      if (acks.putIfAbsent(ackId, new Ack(State.DELIVERED, now, now + ackDeadlineMs, 0))
+          != null) {
+        return;
+      }
+    }
+    deliveredCount.incrementAndGet();
+    deliveredBytes.addAndGet(encodedSize(ackId));
+    delivered.add(ackId);
+  }
+
+  /**
+   * Move delivered ack ids to {@link State#IN_FLIGHT} and return them, stopping before the batch
+   * holds more than {@code maxIds} ids or more than {@code maxBytes} bytes once encoded in an
+   * {@link AcknowledgeRequest}. A batch always holds at least one id if any is delivered. The
+   * caller must report the outcome with {@link #acked} or {@link #ackFailed}. Batches may be
+   * drained by only one thread at a time.
+   */
+  public List<String> drainDelivered(int maxIds, long maxBytes) {
+    List<String> batch = new ArrayList<>();
+    long bytes = 0;
+    while (batch.size() < maxIds) {
+      String ackId = delivered.peek();
+      if (ackId == null) {
+        break;
+      }
+      long size = encodedSize(ackId);
+      if (!batch.isEmpty() && bytes + size > maxBytes) {
+        break;
+      }
+      delivered.poll();
+      Ack ack = acks.get(ackId);
+      if (ack != null && ack.transition(State.DELIVERED, State.IN_FLIGHT)) {
+        deliveredCount.decrementAndGet();
+        deliveredBytes.addAndGet(-size);
+        inFlightCount.incrementAndGet();
+        batch.add(ackId);
+        bytes += size;
+      }
+    }
+    return batch;
+  }
+
+  /** Return the number of bytes {@code ackId} takes up in an AcknowledgeRequest. */
+  public static long encodedSize(String ackId) {
+    return CodedOutputStream.computeStringSize(AcknowledgeRequest.ACK_IDS_FIELD_NUMBER, ackId);
+  }
+
+  /** Stop tracking {@code ackIds} since their acks succeeded. */
+  public void acked(Collection<String> ackIds) {
+    for (String ackId : ackIds) {
+      Ack ack = acks.get(ackId);
+      if (ack != null && ack.state == State.IN_FLIGHT && acks.remove(ackId, ack)) {
+        inFlightCount.decrementAndGet();
+      }
+    }
+  }
+
+  /** Return {@code ackIds} to {@link State#DELIVERED} so that they are acked again. */
+  public void ackFailed(Collection<String> ackIds) {
+    for (String ackId : ackIds) {
+      Ack ack = acks.get(ackId);
+      if (ack != null && ack.transition(State.IN_FLIGHT, State.DELIVERED)) {
+        inFlightCount.decrementAndGet();
+        deliveredCount.incrementAndGet();
+        deliveredBytes.addAndGet(encodedSize(ackId));
+        delivered.add(ackId);
+      }
+    }
+  }
+
+  /**
+   * Return the tracked ack ids whose ack deadline expires before {@code expiresBeforeMs}, leaving
+   * out those received before {@code receivedAfterMs}. This walks the whole table without
+   * blocking concurrent updates.
+   */
+  public List<String> expiringBefore(long expiresBeforeMs, long receivedAfterMs) {
+    List<String> expiring = new ArrayList<>();
+    for (Map.Entry<String, Ack> entry : acks.entrySet()) {
+      Ack ack = entry.getValue();
+      if (ack.deadlineMs < expiresBeforeMs && ack.receivedAtMs >= receivedAfterMs) {
+        expiring.add(entry.getKey());
+      }
+    }
+    return expiring;
+  }
+
+  /** Record that the ack deadline of {@code ackIds} now expires at {@code deadlineMs}. */
+  public void setDeadline(Collection<String> ackIds, long deadlineMs) {
+    for (String ackId : ackIds) {
+      Ack ack = acks.get(ackId);
+      if (ack != null) {
+        ack.deadlineMs = deadlineMs;
+      }
+    }
+  }
+
+  /** Return the current state of {@code ackId}, or null if it is not tracked. */
+  public State get(String ackId) {
+    Ack ack = acks.get(ackId);
+    return ack == null ? null : ack.state;
+  }
+
+  /** Return the number of ack ids in {@code state}. */
+  public int count(State state) {
+    switch (state) {
+      case RECEIVED:
+        return receivedCount.get();
+      case DELIVERED:
+        return deliveredCount.get();
+      default:
+        return inFlightCount.get();
+    }
+  }
+
+  /** Return the total size of the messages in {@link State#RECEIVED}. */
+  public long receivedBytes() {
+    return receivedBytes.get();
+  }
+
+  /**
+   * Return the total size of the ack ids in {@link State#DELIVERED} once encoded in an {@link
+   * AcknowledgeRequest}.
+   */
+  public long deliveredBytes() {
+    return deliveredBytes.get();
+  }
+
+  /**
+   * Return the distribution of the time between receiving messages and committing them over the
+   * last one to two {@link #COMMIT_LATENCY_WINDOW_MS} windows.
+   */
+  public RollingLatencyHistogram commitLatencies() {
+    return commitLatencies;
+  }
+}
@@ -0,0 +1,134 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.palmtree.kafka.connector.common.LatencyHistogram;
+import com.palmtree.kafka.connector.common.TaskMetrics;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SampleSubscriber} that records the latency, outcome and size of the calls it passes on
+ * to another subscriber in a {@link TaskMetrics}. Subscribers of the same task share the metrics.
+ * This class is thread-safe.
+ */
+public class MeteredSubscriber implements SampleSubscriber {
+
+  public static final String PULLS = "Pulls";
+  public static final String EMPTY_PULLS = "EmptyPulls";
+  public static final String EMPTY_PULL_RATIO = "EmptyPullRatio";
+  public static final String PULL_FAILURES = "PullFailures";
+  public static final String PULL_LATENCY_MS = "PullLatencyMs";
+  public static final String MESSAGES_PULLED = "MessagesPulled";
+  public static final String BYTES_PULLED = "BytesPulled";
+  public static final String ACK_REQUESTS = "AckRequests";
+  public static final String ACK_FAILURES = "AckFailures";
+  public static final String ACK_LATENCY_MS = "AckLatencyMs";
+  public static final String MODIFY_ACK_DEADLINE_REQUESTS = "ModifyAckDeadlineRequests";
+  public static final String MODIFY_ACK_DEADLINE_FAILURES = "ModifyAckDeadlineFailures";
+
+  private final SampleSubscriber subscriber;
+  private final AtomicLong pulls;
+  private final AtomicLong emptyPulls;
+  private final AtomicLong pullFailures;
+  private final LatencyHistogram pullLatencyMs;
+  private final AtomicLong messagesPulled;
+  private final AtomicLong bytesPulled;
+  private final AtomicLong ackRequests;
+  private final AtomicLong ackFailures;
+  private final LatencyHistogram ackLatencyMs;
+  private final AtomicLong modifyAckDeadlineRequests;
+  private final AtomicLong modifyAckDeadlineFailures;
+
+  public MeteredSubscriber(SampleSubscriber subscriber, TaskMetrics metrics) {
+    this.subscriber = subscriber;
+    pulls = metrics.counter(PULLS);
+    emptyPulls = metrics.counter(EMPTY_PULLS);
+    metrics.ratio(EMPTY_PULL_RATIO, EMPTY_PULLS, PULLS);
+    pullFailures = metrics.counter(PULL_FAILURES);
+    pullLatencyMs = metrics.histogram(PULL_LATENCY_MS);
+    messagesPulled = metrics.counter(MESSAGES_PULLED);
+    bytesPulled = metrics.counter(BYTES_PULLED);
+    ackRequests = metrics.counter(ACK_REQUESTS);
+    ackFailures = metrics.counter(ACK_FAILURES);
+    ackLatencyMs = metrics.histogram(ACK_LATENCY_MS);
+    modifyAckDeadlineRequests = metrics.counter(MODIFY_ACK_DEADLINE_REQUESTS);
+    modifyAckDeadlineFailures = metrics.counter(MODIFY_ACK_DEADLINE_FAILURES);
+  }
+
+  @Override
+  public ListenableFuture<PullResponse> pull(PullRequest request) {
+    final long startMs = System.currentTimeMillis();
+    ListenableFuture<PullResponse> response = subscriber.pull(request);
+    Futures.addCallback(
+        response,
+        new FutureCallback<PullResponse>() {
+          @Override
+          public void onSuccess(PullResponse result) {
+            pullLatencyMs.record(System.currentTimeMillis() - startMs);
+            pulls.incrementAndGet();
+            int messages = result.getReceivedMessagesCount();
+            if (messages == 0) {
+              emptyPulls.incrementAndGet();
+            }
+            messagesPulled.addAndGet(messages);
+            bytesPulled.addAndGet(result.getSerializedSize());
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            pullFailures.incrementAndGet();
+          }
+        });
+    return response;
+  }
+
+  @Override
+  public ListenableFuture<Empty> ackMessages(AcknowledgeRequest request) {
+    final long startMs = System.currentTimeMillis();
+    ackRequests.incrementAndGet();
+    ListenableFuture<Empty> response = subscriber.ackMessages(request);
+    Futures.addCallback(
+        response,
+        new FutureCallback<Empty>() {
+          @Override
+          public void onSuccess(Empty result) {
+            ackLatencyMs.record(System.currentTimeMillis() - startMs);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            ackFailures.incrementAndGet();
+          }
+        });
+    return response;
+  }
+
+  @Override
+  public ListenableFuture<Empty> modifyAckDeadline(ModifyAckDeadlineRequest request) {
+    modifyAckDeadlineRequests.incrementAndGet();
+    ListenableFuture<Empty> response = subscriber.modifyAckDeadline(request);
+    Futures.addCallback(
+        response,
+        new FutureCallback<Empty>() {
+          @Override
+          public void onSuccess(Empty result) {}
+
+          @Override
+          public void onFailure(Throwable t) {
+            modifyAckDeadlineFailures.incrementAndGet();
+          }
+        });
+    return response;
+  }
+
+  @Override
+  public void close() {
+    subscriber.close();
+  }
+}
@@ -0,0 +1,93 @@
+package com.palmtree.kafka.connector.source;
+
+import com.palmtree.kafka.connector.source.SampleSourceConnector.BatchSizing;
+
+/**
+ * Chooses how many messages a pull asks Cloud Pub/Sub for. With {@link BatchSizing#FIXED} that is
+ * always the maximum. Otherwise the size adapts between a minimum and a maximum to the responses
+ * of earlier pulls: it grows while responses come back full and within the target latency, as
+ * happens while a backlog drains, and shrinks towards the number of messages received when they
+ * are not full, as happens at steady state, or when full responses are slower than the target.
+ * The size is also capped so that a response is expected to stay under a target number of bytes
+ * given the moving average of the message size. {@link BatchSizing#LOW_LATENCY} starts small,
+ * grows slowly and aims for small and fast responses, while {@link BatchSizing#THROUGHPUT} starts
+ * at the maximum, grows quickly and allows large and slow ones. This class is thread-safe.
+ */
+public class PullBatchSizer {
+
+  // A response with at least this fraction of the messages asked for counts as full.
+  private static final double FULL_FILL_RATIO = 0.9;
+  // A response with less than this fraction of the messages asked for counts as not full.
+  private static final double LOW_FILL_RATIO = 0.5;
+  // The weight of the newest response in the average message size.
+  private static final double MESSAGE_SIZE_ALPHA = 0.2;
+
+  private final BatchSizing sizing;
+  private final int minBatchSize;
+  private final int maxBatchSize;
+  private final double growFactor;
+  private final double shrinkFactor;
+  private final long targetLatencyMs;
+  private final long targetResponseBytes;
+  private double batchSize;
+  // -1 until a response with messages has been seen.
+  private double averageMessageBytes = -1;
+
+  public PullBatchSizer(BatchSizing sizing, int minBatchSize, int maxBatchSize) {
+    this.sizing = sizing;
+    this.maxBatchSize = maxBatchSize;
+    this.minBatchSize = Math.min(minBatchSize, maxBatchSize);
+    if (sizing == BatchSizing.LOW_LATENCY) {
+      growFactor = 1.25;
+      shrinkFactor = 0.5;
+      targetLatencyMs = 200;
+      targetResponseBytes = 1000000L;
+      batchSize = this.minBatchSize;
+    } else {
+      growFactor = 2;
+      shrinkFactor = 0.9;
+      targetLatencyMs = 2000;
+      targetResponseBytes = 10000000L;
+      batchSize = maxBatchSize;
+    }
+  }
+
+  /** Return the number of messages the next pull should ask for. */
+  public synchronized int batchSize() {
+    return (int) batchSize;
+  }
+
+  /** Return the moving average of the size of a pulled message, or -1 if none was pulled. */
+  public synchronized double averageMessageBytes() {
+    return averageMessageBytes;
+  }
+
+  /**
+   * Adapt the batch size to a pull that asked for {@code requested} messages and got {@code
+   * received} messages holding {@code bytes} bytes after {@code latencyMs} milliseconds.
+   */
+  public synchronized void record(int requested, int received, long bytes, long latencyMs) {
+    if (sizing == BatchSizing.FIXED || requested <= 0) {
+      return;
+    }
+    if (received > 0) {
+      double messageBytes = (double) bytes / received;
+      averageMessageBytes =
+          averageMessageBytes < 0
+              ? messageBytes
+              : MESSAGE_SIZE_ALPHA * messageBytes + (1 - MESSAGE_SIZE_ALPHA) * averageMessageBytes;
+    }
+    double fill = (double) received / requested;
+    double size = batchSize;
+    if (fill >= FULL_FILL_RATIO) {
+      size = latencyMs <= targetLatencyMs ? size * growFactor : size * shrinkFactor;
+    } else if (fill < LOW_FILL_RATIO) {
+      // Keep some headroom over what arrived so that a rising rate is noticed.
+      size = Math.max(size * shrinkFactor, received * 2);
+    }
+    if (averageMessageBytes > 0) {
+      size = Math.min(size, targetResponseBytes / averageMessageBytes);
+    }
+    batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, size));
+  }
+}
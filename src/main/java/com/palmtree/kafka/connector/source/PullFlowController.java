@@ -0,0 +1,133 @@
+package com.palmtree.kafka.connector.source;
+
+import com.palmtree.kafka.connector.source.AckStateTable.State;
+import java.util.Collection;
+
+/**
+ * Bounds the number and the size of the messages a {@link SampleSourceTask} has pulled but whose
+ * records have not been committed to Kafka yet, so that a slow Kafka cluster can not make the
+ * task buffer messages until the worker runs out of memory. The outstanding messages are the ones
+ * in {@link State#RECEIVED} in the {@link AckStateTable}s of the task's subscriptions. Pulls ask
+ * for no more messages than fit under the message limit, counting the messages already asked for
+ * by pulls in flight, and are not issued at all while either limit is reached; they resume once
+ * committed records free capacity. The byte limit can be exceeded by the responses of pulls that
+ * are in flight when it is reached, since the size of a response is not known in advance. This
+ * class is thread-safe.
+ */
+public class PullFlowController {
+
+  private final Collection<AckStateTable> ackStates;
+  private final int maxOutstandingMessages;
+  private final long maxOutstandingBytes;
+  // The messages asked for by pulls that have not completed yet.
+  private int reservedMessages = 0;
+  private long throttledPulls = 0;
+
+  /**
+   * @param ackStates the tables of every subscription the task pulls from, whose messages count
+   *     towards the same limits
+   */
+  public PullFlowController(
+      Collection<AckStateTable> ackStates, int maxOutstandingMessages, long maxOutstandingBytes) {
+    this.ackStates = ackStates;
+    this.maxOutstandingMessages = maxOutstandingMessages;
+    this.maxOutstandingBytes = maxOutstandingBytes;
+  }
+
+  /**
+   * Return how many messages the next pull may ask for, at most {@code maxBatchSize}, or 0 if no
+   * pull should be issued until capacity is freed. The messages are reserved for the pull until
+   * {@link #pullCompleted} is called, so that concurrent pulls do not ask for the same room.
+   */
+  public synchronized int allowedMessages(int maxBatchSize) {
+    int room = maxOutstandingMessages - outstandingMessages() - reservedMessages;
+    if (room <= 0 || outstandingBytes() >= maxOutstandingBytes) {
+      ++throttledPulls;
+      return 0;
+    }
+    int allowed = Math.min(maxBatchSize, room);
+    reservedMessages += allowed;
+    return allowed;
+  }
+
+  /** Release the reservation of a pull that asked for {@code requested} messages. */
+  public synchronized void pullCompleted(int requested) {
+    reservedMessages -= requested;
+    notifyAll();
+  }
+
+  /**
+   * Wait until a pull may be issued, for at most {@code timeoutMs} milliseconds. Returns whether
+   * one may be issued.
+   */
+  public synchronized boolean awaitCapacity(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (!hasCapacity()) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /** Wake up pulls waiting for capacity. Called after records have been committed. */
+  public synchronized void released() {
+    notifyAll();
+  }
+
+  private boolean hasCapacity() {
+    return outstandingMessages() + reservedMessages < maxOutstandingMessages
+        && outstandingBytes() < maxOutstandingBytes;
+  }
+
+  /**
+   * Return whether a subscriber that buffers {@code bufferedMessages} messages of {@code
+   * bufferedBytes} bytes ahead of the pulls may receive more. The buffered messages count towards
+   * the limits along with the outstanding ones, but not the reserved ones, since those are the
+   * pulls the buffer is drained by.
+   */
+  public boolean allowsBuffering(int bufferedMessages, long bufferedBytes) {
+    return outstandingMessages() + bufferedMessages < maxOutstandingMessages
+        && outstandingBytes() + bufferedBytes < maxOutstandingBytes;
+  }
+
+  /** Return the number of messages that have been pulled but not committed. */
+  public int outstandingMessages() {
+    int messages = 0;
+    for (AckStateTable table : ackStates) {
+      messages += table.count(State.RECEIVED);
+    }
+    return messages;
+  }
+
+  /** Return the total size of the messages that have been pulled but not committed. */
+  public long outstandingBytes() {
+    long bytes = 0;
+    for (AckStateTable table : ackStates) {
+      bytes += table.receivedBytes();
+    }
+    return bytes;
+  }
+
+  /** Return the number of messages asked for by pulls that have not completed. */
+  public synchronized int reservedMessages() {
+    return reservedMessages;
+  }
+
+  /** Return the fraction of the message limit in use. */
+  public double messageUtilization() {
+    return (double) outstandingMessages() / maxOutstandingMessages;
+  }
+
+  /** Return the fraction of the byte limit in use. */
+  public double byteUtilization() {
+    return (double) outstandingBytes() / maxOutstandingBytes;
+  }
+
+  /** Return the number of times a pull was held back because a limit was reached. */
+  public synchronized long throttledPulls() {
+    return throttledPulls;
+  }
+}
@@ -0,0 +1,200 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps several pulls to Cloud Pub/Sub in flight at once. As soon as a {@link PullResponse}
+ * arrives it is converted to {@link SourceRecord}s and buffered until the next {@link #poll},
+ * which returns the records of every response that has arrived and issues pulls to make up for
+ * them. When prefetching, the next pull is also issued as soon as a response arrives, so that
+ * pulls continue while Kafka Connect is busy producing the records of the previous ones. The
+ * number of pulls that are either in flight or buffered is bounded by the depth, and no new pull
+ * is issued while the buffered responses hold more than the configured number of bytes. A pull
+ * that fails with a {@link ConnectException} means that pulls can not succeed again, so it is
+ * rethrown by the next {@link #poll}.
+ */
+public class PullPrefetcher {
+
+  private static final Logger log = LoggerFactory.getLogger(PullPrefetcher.class);
+  // The maximum amount of time poll() waits for an outstanding pull before returning empty.
+  private static final long MAX_POLL_WAIT_MS = 1000;
+
+  /** Issues pulls and converts their responses for a {@link PullPrefetcher}. */
+  public interface Handler {
+
+    /** Returns the request to use for the next pull, or null if no pull may be issued now. */
+    PullRequest nextRequest();
+
+    /** Issues {@code request}. */
+    ListenableFuture<PullResponse> pull(PullRequest request);
+
+    /**
+     * Converts {@code response} to {@code request} into records. Called on the thread that
+     * completed the pull, but never concurrently with itself.
+     */
+    List<SourceRecord> convert(PullRequest request, PullResponse response);
+  }
+
+  /** The converted records of one {@link PullResponse} and the size of the response. */
+  private static class Batch {
+    final List<SourceRecord> records;
+    final long bytes;
+
+    Batch(List<SourceRecord> records, long bytes) {
+      this.records = records;
+      this.bytes = bytes;
+    }
+  }
+
+  private final Handler handler;
+  private final int depth;
+  private final boolean prefetch;
+  private final long maxBufferedBytes;
+  private final Object convertLock = new Object();
+  private final Deque<Batch> ready = new ArrayDeque<>();
+  private int inFlight = 0;
+  private long bufferedBytes = 0;
+  private boolean stopped = false;
+  private ConnectException failure;
+
+  /**
+   * @param depth the number of pulls that may be in flight or buffered
+   * @param prefetch whether to issue the next pull as soon as a response arrives rather than only
+   *     from {@link #poll}
+   * @param maxBufferedBytes no pull is issued while the buffered responses hold more bytes
+   */
+  public PullPrefetcher(Handler handler, int depth, boolean prefetch, long maxBufferedBytes) {
+    this.handler = handler;
+    this.depth = depth;
+    this.prefetch = prefetch;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * Returns the records of every response that has arrived since the last call. If none has
+   * arrived yet this waits for an outstanding pull to complete, returning an empty list if none
+   * does within {@link #MAX_POLL_WAIT_MS}.
+   */
+  public List<SourceRecord> poll() throws InterruptedException {
+    fill();
+    List<SourceRecord> records = new ArrayList<>();
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + MAX_POLL_WAIT_MS;
+      while (ready.isEmpty() && inFlight > 0 && !stopped && failure == null) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        wait(remaining);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      while (!ready.isEmpty()) {
+        Batch batch = ready.poll();
+        bufferedBytes -= batch.bytes;
+        records.addAll(batch.records);
+      }
+    }
+    fill();
+    return records;
+  }
+
+  /** Stops issuing pulls. Records that were prefetched but not returned are dropped. */
+  public synchronized void stop() {
+    stopped = true;
+    ready.clear();
+    bufferedBytes = 0;
+    notifyAll();
+  }
+
+  /** Issues pulls until the prefetch depth or the byte limit is reached. */
+  private void fill() {
+    int toIssue;
+    synchronized (this) {
+      if (stopped || failure != null || bufferedBytes >= maxBufferedBytes) {
+        return;
+      }
+      toIssue = depth - inFlight - ready.size();
+      if (toIssue <= 0) {
+        return;
+      }
+      inFlight += toIssue;
+    }
+    for (int i = 0; i < toIssue; ++i) {
+      issuePull();
+    }
+  }
+
+  private void issuePull() {
+    final PullRequest request = handler.nextRequest();
+    if (request == null) {
+      synchronized (this) {
+        --inFlight;
+        notifyAll();
+      }
+      return;
+    }
+    ListenableFuture<PullResponse> response;
+    try {
+      response = handler.pull(request);
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        response,
+        new FutureCallback<PullResponse>() {
+          @Override
+          public void onSuccess(PullResponse result) {
+            List<SourceRecord> records;
+            synchronized (convertLock) {
+              try {
+                records = handler.convert(request, result);
+              } catch (RuntimeException e) {
+                log.info("Error while converting prefetched records, dropping them. " + e);
+                records = new ArrayList<>();
+              }
+            }
+            synchronized (PullPrefetcher.this) {
+              --inFlight;
+              if (!stopped && !records.isEmpty()) {
+                long bytes = result.getSerializedSize();
+                ready.add(new Batch(records, bytes));
+                bufferedBytes += bytes;
+              }
+              PullPrefetcher.this.notifyAll();
+            }
+            // An empty response means there is nothing to prefetch right now, so leave it to the
+            // next poll() to issue another pull rather than spinning here.
+            if (prefetch && !records.isEmpty()) {
+              fill();
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            synchronized (PullPrefetcher.this) {
+              if (t instanceof ConnectException) {
+                failure = (ConnectException) t;
+              } else {
+                log.info("Error while prefetching records, the next poll will retry. " + t);
+              }
+              --inFlight;
+              PullPrefetcher.this.notifyAll();
+            }
+          }
+        });
+  }
+}
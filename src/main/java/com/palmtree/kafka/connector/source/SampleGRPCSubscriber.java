@@ -1,57 +1,77 @@
 package com.palmtree.kafka.connector.source;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.Empty;
-import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.ChannelPool;
 import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
 import com.google.pubsub.v1.PullRequest;
 import com.google.pubsub.v1.PullResponse;
 import com.google.pubsub.v1.SubscriberGrpc;
 import com.google.pubsub.v1.SubscriberGrpc.SubscriberFutureStub;
+import io.grpc.Status;
 import java.io.IOException;
-import java.util.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A {@link SampleSubscriber} that uses <a href="http://www.grpc.io/">gRPC</a> to pull messages
- * from <a href="https://cloud.google.com/pubsub">Google Cloud Pub/Sub</a>. This class is not
- * thread-safe.
+ * from <a href="https://cloud.google.com/pubsub">Google Cloud Pub/Sub</a>. The subscriber keeps
+ * one channel leased from a {@link ChannelPool} for its whole life; the pool rotates the channel
+ * underneath it, and the subscriber asks for a rotation when a call fails because the server went
+ * away. This class is thread-safe.
  */
 public class SampleGRPCSubscriber implements SampleSubscriber {
 
   private static final Logger log = LoggerFactory.getLogger(SampleGRPCSubscriber.class);
-  private long nextSubscriberResetTime = 0;
-  private SubscriberFutureStub subscriber;
-  private Random rand = new Random(System.currentTimeMillis());
+  private final ChannelPool.Lease lease;
+  private final SubscriberFutureStub subscriber;
+  private final FutureCallback<Object> rotateOnUnavailable =
+      new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {}
 
-  SampleGRPCSubscriber() {
-    makeSubscriber();
+        @Override
+        public void onFailure(Throwable t) {
+          // A GOAWAY from the server fails the calls in flight with UNAVAILABLE.
+          if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+            log.info("Cloud Pub/Sub is unavailable on the current channel, rotating it. " + t);
+            lease.rotate();
+          }
+        }
+      };
+
+  SampleGRPCSubscriber(ChannelPool channelPool) {
+    try {
+      log.info("Creating subscriber.");
+      lease = channelPool.lease();
+    } catch (IOException e) {
+      throw new RuntimeException("Could not create subscriber stub; no subscribing can occur.", e);
+    }
+    subscriber = SubscriberGrpc.newFutureStub(lease.getChannel());
   }
 
   public ListenableFuture<PullResponse> pull(PullRequest request) {
-    if (System.currentTimeMillis() > nextSubscriberResetTime) {
-      makeSubscriber();
-    }
-    return subscriber.pull(request);
+    return watch(subscriber.pull(request));
   }
 
   public ListenableFuture<Empty> ackMessages(AcknowledgeRequest request) {
-    if (System.currentTimeMillis() > nextSubscriberResetTime) {
-      makeSubscriber();
-    }
-    return subscriber.acknowledge(request);
+    return watch(subscriber.acknowledge(request));
   }
 
-  private void makeSubscriber() {
-    try {
-      log.info("Creating subscriber.");
-      subscriber = SubscriberGrpc.newFutureStub(ConnectorUtils.getChannel());
-      // We change the subscriber every 25 - 35 minutes in order to avoid GOAWAY errors.
-      nextSubscriberResetTime =
-          System.currentTimeMillis() + rand.nextInt(10 * 60 * 1000) + 25 * 60 * 1000;
-    } catch (IOException e) {
-      throw new RuntimeException("Could not create subscriber stub; no subscribing can occur.", e);
-    }
+  public ListenableFuture<Empty> modifyAckDeadline(ModifyAckDeadlineRequest request) {
+    return watch(subscriber.modifyAckDeadline(request));
+  }
+
+  @Override
+  public void close() {
+    lease.release();
+  }
+
+  private <T> ListenableFuture<T> watch(ListenableFuture<T> response) {
+    Futures.addCallback(response, rotateOnUnavailable);
+    return response;
   }
 }
@@ -0,0 +1,184 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Empty;
+import com.palmtree.kafka.connector.common.ChannelPool;
+import com.palmtree.kafka.connector.source.SampleSourceConnector.LoadBalancingPolicy;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SampleSubscriber} that spreads requests over a set of {@link SampleSubscriber}s by how
+ * well each of them is doing, rather than blindly in turn. Depending on the {@link
+ * LoadBalancingPolicy} a request goes to the subscriber with the fewest outstanding requests, or
+ * to the one with the lowest exponentially weighted moving average of its latency scaled by its
+ * outstanding requests. Subscribers whose last request failed are skipped for a while, unless all
+ * of them are unhealthy. Ties are broken by rotating through the subscribers. This class is
+ * thread-safe.
+ */
+public class SampleLoadBalancingSubscriber implements SampleSubscriber {
+
+  // A failed subscriber is skipped for this long.
+  private static final long UNHEALTHY_PERIOD_MS = 5 * 1000;
+  // The weight of the newest latency sample in the moving average.
+  private static final double EWMA_ALPHA = 0.2;
+
+  private final List<Backend> backends = new ArrayList<>();
+  private final LoadBalancingPolicy policy;
+  private final AtomicInteger nextStart = new AtomicInteger();
+
+  /** A subscriber along with the state used to pick it. */
+  private static class Backend {
+    final SampleSubscriber subscriber;
+    final AtomicInteger outstanding = new AtomicInteger();
+    // The bits of the latency average in milliseconds, or of -1 before the first sample.
+    final AtomicLong ewmaLatencyMsBits = new AtomicLong(Double.doubleToLongBits(-1));
+    volatile long unhealthyUntilMs = 0;
+
+    Backend(SampleSubscriber subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    double ewmaLatencyMs() {
+      return Double.longBitsToDouble(ewmaLatencyMsBits.get());
+    }
+
+    void recordLatency(double latencyMs) {
+      while (true) {
+        long bits = ewmaLatencyMsBits.get();
+        double average = Double.longBitsToDouble(bits);
+        double updated =
+            average < 0 ? latencyMs : EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * average;
+        if (ewmaLatencyMsBits.compareAndSet(bits, Double.doubleToLongBits(updated))) {
+          return;
+        }
+      }
+    }
+  }
+
+  public SampleLoadBalancingSubscriber(
+      ChannelPool channelPool, int subscriberCount, LoadBalancingPolicy policy) {
+    this.policy = policy;
+    for (int i = 0; i < subscriberCount; ++i) {
+      backends.add(new Backend(new SampleGRPCSubscriber(channelPool)));
+    }
+  }
+
+  @VisibleForTesting
+  public SampleLoadBalancingSubscriber(
+      List<SampleSubscriber> subscribers, LoadBalancingPolicy policy) {
+    this.policy = policy;
+    for (SampleSubscriber subscriber : subscribers) {
+      backends.add(new Backend(subscriber));
+    }
+  }
+
+  @Override
+  public ListenableFuture<PullResponse> pull(PullRequest request) {
+    Backend backend = choose();
+    backend.outstanding.incrementAndGet();
+    ListenableFuture<PullResponse> response;
+    try {
+      response = backend.subscriber.pull(request);
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    return track(backend, response);
+  }
+
+  @Override
+  public ListenableFuture<Empty> ackMessages(AcknowledgeRequest request) {
+    Backend backend = choose();
+    backend.outstanding.incrementAndGet();
+    ListenableFuture<Empty> response;
+    try {
+      response = backend.subscriber.ackMessages(request);
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    return track(backend, response);
+  }
+
+  @Override
+  public ListenableFuture<Empty> modifyAckDeadline(ModifyAckDeadlineRequest request) {
+    Backend backend = choose();
+    backend.outstanding.incrementAndGet();
+    ListenableFuture<Empty> response;
+    try {
+      response = backend.subscriber.modifyAckDeadline(request);
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    return track(backend, response);
+  }
+
+  @Override
+  public void close() {
+    for (Backend backend : backends) {
+      backend.subscriber.close();
+    }
+  }
+
+  /** Pick the healthy backend with the best score, or the best one if none is healthy. */
+  private Backend choose() {
+    long now = System.currentTimeMillis();
+    int start = (nextStart.getAndIncrement() & Integer.MAX_VALUE) % backends.size();
+    Backend best = null;
+    double bestScore = 0;
+    boolean bestHealthy = false;
+    for (int i = 0; i < backends.size(); ++i) {
+      Backend backend = backends.get((start + i) % backends.size());
+      boolean healthy = backend.unhealthyUntilMs <= now;
+      if (policy == LoadBalancingPolicy.ROUND_ROBIN && healthy) {
+        return backend;
+      }
+      double score = score(backend);
+      if (best == null
+          || (healthy && !bestHealthy)
+          || (healthy == bestHealthy && score < bestScore)) {
+        best = backend;
+        bestScore = score;
+        bestHealthy = healthy;
+      }
+    }
+    return best;
+  }
+
+  private double score(Backend backend) {
+    int outstanding = backend.outstanding.get();
+    if (policy == LoadBalancingPolicy.EWMA_LATENCY) {
+      // Backends without samples score 0 so that they get tried.
+      return Math.max(backend.ewmaLatencyMs(), 0) * (outstanding + 1);
+    }
+    return outstanding;
+  }
+
+  private <T> ListenableFuture<T> track(final Backend backend, ListenableFuture<T> response) {
+    final long startNanos = System.nanoTime();
+    Futures.addCallback(
+        response,
+        new FutureCallback<T>() {
+          @Override
+          public void onSuccess(T result) {
+            backend.outstanding.decrementAndGet();
+            backend.recordLatency((System.nanoTime() - startNanos) / 1e6);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            backend.outstanding.decrementAndGet();
+            backend.unhealthyUntilMs = System.currentTimeMillis() + UNHEALTHY_PERIOD_MS;
+          }
+        });
+    return response;
+  }
+}
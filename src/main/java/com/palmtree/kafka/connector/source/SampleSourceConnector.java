@@ -1,6 +1,7 @@
 package com.palmtree.kafka.connector.source;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.palmtree.kafka.connector.common.ChannelPool;
 import com.palmtree.kafka.connector.common.ConnectorUtils;
 import com.google.pubsub.v1.GetSubscriptionRequest;
 import com.google.pubsub.v1.SubscriberGrpc;
@@ -30,20 +31,65 @@ public class SampleSourceConnector extends SourceConnector {
 
   public static final String KAFKA_PARTITIONS_CONFIG = "kafka.partition.count";
   public static final String KAFKA_PARTITION_SCHEME_CONFIG = "kafka.partition.scheme";
+  public static final String KAFKA_STICKY_PARTITION_BYTES_CONFIG = "kafka.partition.sticky.bytes";
+  public static final String KAFKA_STICKY_PARTITION_RECORDS_CONFIG =
+      "kafka.partition.sticky.records";
   public static final String KAFKA_MESSAGE_KEY_CONFIG = "kafka.key.attribute";
   public static final String KAFKA_MESSAGE_TIMESTAMP_CONFIG = "kafka.timestamp.attribute";
   public static final String KAFKA_TOPIC_CONFIG = "kafka.topic";
+  public static final String KAFKA_SCHEMA_CACHE_SIZE_CONFIG = "kafka.schema.cache.size";
+  public static final String KAFKA_PAYLOAD_ZERO_COPY_CONFIG = "kafka.payload.zero.copy";
   public static final String CPS_SUBSCRIPTION_CONFIG = "cps.subscription";
+  public static final String CPS_SUBSCRIPTIONS_CONFIG = "cps.subscriptions";
   public static final String CPS_MAX_BATCH_SIZE_CONFIG = "cps.maxBatchSize";
+  public static final String CPS_MIN_BATCH_SIZE_CONFIG = "cps.minBatchSize";
+  public static final String CPS_BATCH_SIZING_CONFIG = "cps.batchSizing";
+  public static final String CPS_PULL_MODE_CONFIG = "cps.pullMode";
+  public static final String CPS_LOAD_BALANCING_POLICY_CONFIG = "cps.loadBalancingPolicy";
+  public static final String CPS_STREAMING_PULL_BUFFER_SIZE_CONFIG = "cps.streamingPullBufferSize";
+  public static final String CPS_CONCURRENT_PULLS_CONFIG = "cps.concurrentPulls";
+  public static final String CPS_PREFETCH_DEPTH_CONFIG = "cps.prefetchDepth";
+  public static final String CPS_PREFETCH_MAX_BYTES_CONFIG = "cps.prefetchMaxBytes";
+  public static final String CPS_MAX_OUTSTANDING_MESSAGES_CONFIG = "cps.maxOutstandingMessages";
+  public static final String CPS_MAX_OUTSTANDING_BYTES_CONFIG = "cps.maxOutstandingBytes";
+  public static final String CPS_ACK_BATCH_SIZE_CONFIG = "cps.ackBatchSize";
+  public static final String CPS_ACK_BATCH_BYTES_CONFIG = "cps.ackBatchBytes";
+  public static final String CPS_ACK_LINGER_MS_CONFIG = "cps.ackLingerMs";
+  public static final String CPS_MAX_OUTSTANDING_ACKS_CONFIG = "cps.maxOutstandingAckRequests";
+  public static final String CPS_ACK_DEADLINE_SECONDS_CONFIG = "cps.ackDeadlineSeconds";
+  public static final String CPS_MAX_ACK_EXTENSION_PERIOD_CONFIG =
+      "cps.maxAckExtensionPeriodSeconds";
   public static final int DEFAULT_CPS_MAX_BATCH_SIZE = 100;
+  public static final int DEFAULT_CPS_MIN_BATCH_SIZE = 10;
+  public static final String DEFAULT_CPS_BATCH_SIZING = "fixed";
+  public static final String DEFAULT_CPS_PULL_MODE = "pull";
+  public static final String DEFAULT_CPS_LOAD_BALANCING_POLICY = "least_outstanding";
+  public static final int DEFAULT_CPS_STREAMING_PULL_BUFFER_SIZE = 1000;
+  public static final int DEFAULT_CPS_CONCURRENT_PULLS = 1;
+  public static final int DEFAULT_CPS_PREFETCH_DEPTH = 0;
+  public static final long DEFAULT_CPS_PREFETCH_MAX_BYTES = 50000000L;
+  public static final int DEFAULT_CPS_MAX_OUTSTANDING_MESSAGES = 10000;
+  public static final long DEFAULT_CPS_MAX_OUTSTANDING_BYTES = 100000000L;
+  public static final int DEFAULT_CPS_ACK_BATCH_SIZE = 2500;
+  // Cloud Pub/Sub rejects requests larger than 512KiB.
+  public static final long DEFAULT_CPS_ACK_BATCH_BYTES = 500000L;
+  public static final int DEFAULT_CPS_ACK_LINGER_MS = 100;
+  public static final int DEFAULT_CPS_MAX_OUTSTANDING_ACKS = 10;
+  public static final int DEFAULT_CPS_ACK_DEADLINE_SECONDS = 10;
+  public static final int DEFAULT_CPS_MAX_ACK_EXTENSION_PERIOD_SECONDS = 3600;
   public static final int DEFAULT_KAFKA_PARTITIONS = 1;
   public static final String DEFAULT_KAFKA_PARTITION_SCHEME = "round_robin";
+  public static final long DEFAULT_KAFKA_STICKY_PARTITION_BYTES = 64 * 1024;
+  public static final int DEFAULT_KAFKA_STICKY_PARTITION_RECORDS = 1000;
+  public static final int DEFAULT_KAFKA_SCHEMA_CACHE_SIZE = 100;
 
   /** Defines the accepted values for the {@link #KAFKA_PARTITION_SCHEME_CONFIG}. */
   public enum PartitionScheme {
     ROUND_ROBIN("round_robin"),
     HASH_KEY("hash_key"),
-    HASH_VALUE("hash_value");
+    HASH_VALUE("hash_value"),
+    STICKY("sticky"),
+    MURMUR2("murmur2");
 
     private String value;
 
@@ -62,6 +108,10 @@ public class SampleSourceConnector extends SourceConnector {
         return PartitionScheme.HASH_KEY;
       } else if (value.equals("hash_value")) {
         return PartitionScheme.HASH_VALUE;
+      } else if (value.equals("sticky")) {
+        return PartitionScheme.STICKY;
+      } else if (value.equals("murmur2")) {
+        return PartitionScheme.MURMUR2;
       } else {
         return null;
       }
@@ -75,17 +125,152 @@ public class SampleSourceConnector extends SourceConnector {
         String value = (String) o;
         if (!value.equals(SampleSourceConnector.PartitionScheme.ROUND_ROBIN.toString())
             && !value.equals(SampleSourceConnector.PartitionScheme.HASH_VALUE.toString())
-            && !value.equals(SampleSourceConnector.PartitionScheme.HASH_KEY.toString())) {
+            && !value.equals(SampleSourceConnector.PartitionScheme.HASH_KEY.toString())
+            && !value.equals(SampleSourceConnector.PartitionScheme.STICKY.toString())
+            && !value.equals(SampleSourceConnector.PartitionScheme.MURMUR2.toString())) {
           throw new ConfigException(
               "Valid values for "
                   + SampleSourceConnector.KAFKA_PARTITION_SCHEME_CONFIG
-                  + " are hash_value, hash_key and round_robin");
+                  + " are hash_value, hash_key, round_robin, sticky and murmur2");
+        }
+      }
+    }
+  }
+
+  /** Defines the accepted values for the {@link #CPS_PULL_MODE_CONFIG}. */
+  public enum PullMode {
+    PULL("pull"),
+    STREAMING_PULL("streaming_pull");
+
+    private String value;
+
+    PullMode(String value) {
+      this.value = value;
+    }
+
+    public String toString() {
+      return value;
+    }
+
+    public static PullMode getEnum(String value) {
+      if (value.equals("pull")) {
+        return PullMode.PULL;
+      } else if (value.equals("streaming_pull")) {
+        return PullMode.STREAMING_PULL;
+      } else {
+        return null;
+      }
+    }
+
+    /** Validator class for {@link SampleSourceConnector.PullMode}. */
+    public static class Validator implements ConfigDef.Validator {
+
+      @Override
+      public void ensureValid(String name, Object o) {
+        String value = (String) o;
+        if (getEnum(value) == null) {
+          throw new ConfigException(
+              "Valid values for "
+                  + SampleSourceConnector.CPS_PULL_MODE_CONFIG
+                  + " are pull and streaming_pull");
+        }
+      }
+    }
+  }
+
+  /** Defines the accepted values for the {@link #CPS_LOAD_BALANCING_POLICY_CONFIG}. */
+  public enum LoadBalancingPolicy {
+    ROUND_ROBIN("round_robin"),
+    LEAST_OUTSTANDING("least_outstanding"),
+    EWMA_LATENCY("ewma_latency");
+
+    private String value;
+
+    LoadBalancingPolicy(String value) {
+      this.value = value;
+    }
+
+    public String toString() {
+      return value;
+    }
+
+    public static LoadBalancingPolicy getEnum(String value) {
+      if (value.equals("round_robin")) {
+        return LoadBalancingPolicy.ROUND_ROBIN;
+      } else if (value.equals("least_outstanding")) {
+        return LoadBalancingPolicy.LEAST_OUTSTANDING;
+      } else if (value.equals("ewma_latency")) {
+        return LoadBalancingPolicy.EWMA_LATENCY;
+      } else {
+        return null;
+      }
+    }
+
+    /** Validator class for {@link SampleSourceConnector.LoadBalancingPolicy}. */
+    public static class Validator implements ConfigDef.Validator {
+
+      @Override
+      public void ensureValid(String name, Object o) {
+        String value = (String) o;
+        if (getEnum(value) == null) {
+          throw new ConfigException(
+              "Valid values for "
+                  + SampleSourceConnector.CPS_LOAD_BALANCING_POLICY_CONFIG
+                  + " are round_robin, least_outstanding and ewma_latency");
+        }
+      }
+    }
+  }
+
+  /** Defines the accepted values for the {@link #CPS_BATCH_SIZING_CONFIG}. */
+  public enum BatchSizing {
+    FIXED("fixed"),
+    LOW_LATENCY("low_latency"),
+    THROUGHPUT("throughput");
+
+    private String value;
+
+    BatchSizing(String value) {
+      this.value = value;
+    }
+
+    public String toString() {
+      return value;
+    }
+
+    public static BatchSizing getEnum(String value) {
+      if (value.equals("fixed")) {
+        return BatchSizing.FIXED;
+      } else if (value.equals("low_latency")) {
+        return BatchSizing.LOW_LATENCY;
+      } else if (value.equals("throughput")) {
+        return BatchSizing.THROUGHPUT;
+      } else {
+        return null;
+      }
+    }
+
+    /** Validator class for {@link SampleSourceConnector.BatchSizing}. */
+    public static class Validator implements ConfigDef.Validator {
+
+      @Override
+      public void ensureValid(String name, Object o) {
+        String value = (String) o;
+        if (getEnum(value) == null) {
+          throw new ConfigException(
+              "Valid values for "
+                  + SampleSourceConnector.CPS_BATCH_SIZING_CONFIG
+                  + " are fixed, low_latency and throughput");
         }
       }
     }
   }
 
   private Map<String, String> props;
+  private Map<String, Integer> subscriptionWeights;
+  // Whether the subscriptions are spread over the tasks rather than shared by all of them.
+  private boolean sharded = false;
+  private int channelPoolSize = ConnectorUtils.DEFAULT_CPS_CHANNEL_POOL_SIZE;
 
   @Override
   public String version() {
@@ -96,10 +281,14 @@ public class SampleSourceConnector extends SourceConnector {
   public void start(Map<String, String> props) {
     // Do a validation of configs here too so that we do not pass null objects to
     // verifySubscription().
-    config().parse(props);
+    Map<String, Object> validatedProps = config().parse(props);
+    channelPoolSize = (Integer) validatedProps.get(ConnectorUtils.CPS_CHANNEL_POOL_SIZE_CONFIG);
     String cpsProject = props.get(ConnectorUtils.CPS_PROJECT_CONFIG);
-    String cpsSubscription = props.get(CPS_SUBSCRIPTION_CONFIG);
-    verifySubscription(cpsProject, cpsSubscription);
+    subscriptionWeights = SubscriptionAssigner.fromConfig(validatedProps);
+    for (String cpsSubscription : subscriptionWeights.keySet()) {
+      verifySubscription(cpsProject, cpsSubscription);
+    }
+    sharded = !((List<?>) validatedProps.get(CPS_SUBSCRIPTIONS_CONFIG)).isEmpty();
     this.props = props;
     log.info("Started the SampleSourceConnector");
   }
@@ -111,10 +300,20 @@ public class SampleSourceConnector extends SourceConnector {
 
   @Override
   public List<Map<String, String>> taskConfigs(int maxTasks) {
-    // Each task will get the exact same configuration. Delegate config validation to the task.
     ArrayList<Map<String, String>> configs = new ArrayList<>();
-    for (int i = 0; i < maxTasks; i++) {
+    if (!sharded) {
+      // Each task will get the exact same configuration. Delegate config validation to the task.
+      for (int i = 0; i < maxTasks; i++) {
+        Map<String, String> config = new HashMap<>(props);
+        configs.add(config);
+      }
+      return configs;
+    }
+    // Otherwise each task gets its share of the subscriptions.
+    for (Map<String, Integer> assignment :
+        SubscriptionAssigner.assign(subscriptionWeights, maxTasks)) {
       Map<String, String> config = new HashMap<>(props);
+      config.put(CPS_SUBSCRIPTIONS_CONFIG, SubscriptionAssigner.format(assignment));
       configs.add(config);
     }
     return configs;
@@ -136,8 +335,22 @@ public class SampleSourceConnector extends SourceConnector {
         .define(
             CPS_SUBSCRIPTION_CONFIG,
             Type.STRING,
+            "",
+            Importance.HIGH,
+            "The name of the subscription to Cloud Pub/Sub. Required unless "
+                + CPS_SUBSCRIPTIONS_CONFIG
+                + " is set.")
+        .define(
+            CPS_SUBSCRIPTIONS_CONFIG,
+            Type.LIST,
+            "",
             Importance.HIGH,
-            "The name of the subscription to Cloud Pub/Sub.")
+            "A list of subscriptions to Cloud Pub/Sub to pull from, each given as name or "
+                + "name:weight. The subscriptions are spread over the tasks by weight, and a "
+                + "task with several subscriptions pulls from them in proportion to their "
+                + "weights. Takes precedence over "
+                + CPS_SUBSCRIPTION_CONFIG
+                + ".")
         .define(
             CPS_MAX_BATCH_SIZE_CONFIG,
             Type.INT,
@@ -145,6 +358,29 @@ public class SampleSourceConnector extends SourceConnector {
             ConfigDef.Range.between(1, Integer.MAX_VALUE),
             Importance.MEDIUM,
             "The minimum number of messages to batch per pull request to Cloud Pub/Sub.")
+        .define(
+            CPS_MIN_BATCH_SIZE_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_MIN_BATCH_SIZE,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The smallest number of messages a pull asks for when "
+                + CPS_BATCH_SIZING_CONFIG
+                + " is not fixed.")
+        .define(
+            CPS_BATCH_SIZING_CONFIG,
+            Type.STRING,
+            DEFAULT_CPS_BATCH_SIZING,
+            new BatchSizing.Validator(),
+            Importance.LOW,
+            "How the number of messages asked for per pull is chosen. \"fixed\" always asks "
+                + "for "
+                + CPS_MAX_BATCH_SIZE_CONFIG
+                + ", while \"low_latency\" and \"throughput\" adapt it between "
+                + CPS_MIN_BATCH_SIZE_CONFIG
+                + " and "
+                + CPS_MAX_BATCH_SIZE_CONFIG
+                + " to how full recent responses were, their latency and the message size.")
         .define(
             KAFKA_MESSAGE_KEY_CONFIG,
             Type.STRING,
@@ -172,7 +408,179 @@ public class SampleSourceConnector extends SourceConnector {
             DEFAULT_KAFKA_PARTITION_SCHEME,
             new PartitionScheme.Validator(),
             Importance.MEDIUM,
-            "The scheme for assigning a message to a partition in Kafka.");
+            "The scheme for assigning a message to a partition in Kafka.")
+        .define(
+            KAFKA_STICKY_PARTITION_BYTES_CONFIG,
+            Type.LONG,
+            DEFAULT_KAFKA_STICKY_PARTITION_BYTES,
+            ConfigDef.Range.between(1, Long.MAX_VALUE),
+            Importance.LOW,
+            "With the sticky and murmur2 partition schemes, the number of message bytes sent to "
+                + "a partition after which the next batch goes to the next partition.")
+        .define(
+            KAFKA_STICKY_PARTITION_RECORDS_CONFIG,
+            Type.INT,
+            DEFAULT_KAFKA_STICKY_PARTITION_RECORDS,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "With the sticky and murmur2 partition schemes, the number of records sent to a "
+                + "partition after which the next batch goes to the next partition.")
+        .define(
+            KAFKA_SCHEMA_CACHE_SIZE_CONFIG,
+            Type.INT,
+            DEFAULT_KAFKA_SCHEMA_CACHE_SIZE,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The number of distinct attribute name sets whose struct value schemas are cached. "
+                + "Messages with the same attribute names share one schema.")
+        .define(
+            KAFKA_PAYLOAD_ZERO_COPY_CONFIG,
+            Type.BOOLEAN,
+            false,
+            Importance.LOW,
+            "When true, message bodies are handed to Kafka Connect as read-only ByteBuffers "
+                + "that share the bytes of the pulled message instead of as copied byte arrays. "
+                + "The value converter must read ByteBuffer values of BYTES schemas without "
+                + "calling ByteBuffer.array(), which read-only buffers do not support. The "
+                + "converters that ship with Kafka 0.10.2 do not: JsonConverter fails every "
+                + "record with a ReadOnlyBufferException and StringConverter writes the "
+                + "description of the buffer instead of its contents, so this requires a custom "
+                + "converter.")
+        .define(
+            CPS_PULL_MODE_CONFIG,
+            Type.STRING,
+            DEFAULT_CPS_PULL_MODE,
+            new PullMode.Validator(),
+            Importance.MEDIUM,
+            "How messages are retrieved from Cloud Pub/Sub. \"pull\" issues one unary Pull "
+                + "request per poll, \"streaming_pull\" keeps long-lived StreamingPull streams "
+                + "open and buffers the messages they deliver.")
+        .define(
+            CPS_LOAD_BALANCING_POLICY_CONFIG,
+            Type.STRING,
+            DEFAULT_CPS_LOAD_BALANCING_POLICY,
+            new LoadBalancingPolicy.Validator(),
+            Importance.LOW,
+            "How requests are spread over the task's channels when pulling. \"round_robin\" "
+                + "takes turns, \"least_outstanding\" picks the channel with the fewest requests "
+                + "in flight and \"ewma_latency\" the one with the lowest average latency scaled "
+                + "by its requests in flight. Channels whose last request failed are avoided for "
+                + "a while.")
+        .define(
+            CPS_STREAMING_PULL_BUFFER_SIZE_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_STREAMING_PULL_BUFFER_SIZE,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The number of messages received over StreamingPull that may be buffered locally "
+                + "before the streams stop requesting more. The bound is approximate: responses "
+                + "already requested when the buffer fills up are still buffered, up to two per "
+                + "stream. Buffered messages also count towards "
+                + CPS_MAX_OUTSTANDING_MESSAGES_CONFIG
+                + " and "
+                + CPS_MAX_OUTSTANDING_BYTES_CONFIG
+                + ", and their deadlines are extended until they are polled. Only used when "
+                + CPS_PULL_MODE_CONFIG + " is streaming_pull.")
+        .define(
+            CPS_CONCURRENT_PULLS_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_CONCURRENT_PULLS,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.MEDIUM,
+            "The number of pulls a task keeps in flight at once, spread over its channels. "
+                + "poll() returns the records of every pull that has completed and issues pulls "
+                + "to make up for them.")
+        .define(
+            CPS_PREFETCH_DEPTH_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_PREFETCH_DEPTH,
+            ConfigDef.Range.between(0, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The number of pulls that may be in flight or waiting to be returned by poll() while "
+                + "Kafka Connect produces earlier records. 0 disables prefetching, in which case "
+                + "each poll() issues one pull and waits for it.")
+        .define(
+            CPS_PREFETCH_MAX_BYTES_CONFIG,
+            Type.LONG,
+            DEFAULT_CPS_PREFETCH_MAX_BYTES,
+            ConfigDef.Range.between(1, Long.MAX_VALUE),
+            Importance.LOW,
+            "No new pull is prefetched while the prefetched responses that have not been "
+                + "returned by poll() hold more than this many bytes.")
+        .define(
+            CPS_MAX_OUTSTANDING_MESSAGES_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_MAX_OUTSTANDING_MESSAGES,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.MEDIUM,
+            "The maximum number of messages that may have been pulled without their records "
+                + "being committed to Kafka. Pulls ask for fewer messages as the limit is "
+                + "approached and stop once it is reached.")
+        .define(
+            CPS_MAX_OUTSTANDING_BYTES_CONFIG,
+            Type.LONG,
+            DEFAULT_CPS_MAX_OUTSTANDING_BYTES,
+            ConfigDef.Range.between(1, Long.MAX_VALUE),
+            Importance.MEDIUM,
+            "The maximum total size of the messages that may have been pulled without their "
+                + "records being committed to Kafka. No pull is issued while it is reached.")
+        .define(
+            CPS_ACK_BATCH_SIZE_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_ACK_BATCH_SIZE,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The maximum number of ack ids per acknowledge request. Acks are sent as soon as "
+                + "this many are waiting.")
+        .define(
+            CPS_ACK_BATCH_BYTES_CONFIG,
+            Type.LONG,
+            DEFAULT_CPS_ACK_BATCH_BYTES,
+            ConfigDef.Range.between(1024, 512 * 1024),
+            Importance.LOW,
+            "The maximum size in bytes of an acknowledge request. Acks are sent as soon as this "
+                + "many bytes are waiting, and larger batches are split over several requests.")
+        .define(
+            CPS_ACK_LINGER_MS_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_ACK_LINGER_MS,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The maximum amount of time an ack waits for more acks to batch with before it is "
+                + "sent to Cloud Pub/Sub. Offset commits send the waiting acks right away.")
+        .define(
+            CPS_MAX_OUTSTANDING_ACKS_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_MAX_OUTSTANDING_ACKS,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The maximum number of acknowledge requests that may be in flight at once.")
+        .define(
+            CPS_ACK_DEADLINE_SECONDS_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_ACK_DEADLINE_SECONDS,
+            ConfigDef.Range.between(
+                AckLeaseManager.MIN_ACK_DEADLINE_SECONDS, AckLeaseManager.MAX_ACK_DEADLINE_SECONDS),
+            Importance.LOW,
+            "The ack deadline messages have when they are received. With pull this must match "
+                + "the ack deadline of the subscription; with streaming_pull it is used as the "
+                + "stream's ack deadline.")
+        .define(
+            CPS_MAX_ACK_EXTENSION_PERIOD_CONFIG,
+            Type.INT,
+            DEFAULT_CPS_MAX_ACK_EXTENSION_PERIOD_SECONDS,
+            ConfigDef.Range.between(0, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The maximum amount of time the ack deadline of a message that has not been "
+                + "committed to Kafka is extended for. 0 disables deadline extension.")
+        .define(
+            ConnectorUtils.CPS_CHANNEL_POOL_SIZE_CONFIG,
+            Type.INT,
+            ConnectorUtils.DEFAULT_CPS_CHANNEL_POOL_SIZE,
+            ConfigDef.Range.between(1, Integer.MAX_VALUE),
+            Importance.LOW,
+            "The number of gRPC channels to Cloud Pub/Sub shared by all tasks in a worker. When "
+                + "connectors ask for different sizes the largest one is used.");
   }
 
   /**
@@ -181,8 +589,12 @@ public class SampleSourceConnector extends SourceConnector {
    */
   @VisibleForTesting
   public void verifySubscription(String cpsProject, String cpsSubscription) {
+    ChannelPool channelPool = null;
+    ChannelPool.Lease lease = null;
     try {
-      SubscriberFutureStub stub = SubscriberGrpc.newFutureStub(ConnectorUtils.getChannel());
+      channelPool = ChannelPool.acquire(channelPoolSize);
+      lease = channelPool.lease();
+      SubscriberFutureStub stub = SubscriberGrpc.newFutureStub(lease.getChannel());
       GetSubscriptionRequest request =
           GetSubscriptionRequest.newBuilder()
               .setSubscription(
@@ -193,6 +605,13 @@ public class SampleSourceConnector extends SourceConnector {
     } catch (Exception e) {
       throw new ConnectException(
           "Error verifying the subscription " + cpsSubscription + " for project " + cpsProject, e);
+    } finally {
+      if (lease != null) {
+        lease.release();
+      }
+      if (channelPool != null) {
+        channelPool.release();
+      }
     }
   }
 
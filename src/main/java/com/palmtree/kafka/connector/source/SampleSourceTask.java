@@ -5,26 +5,41 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.Empty;
 import com.google.protobuf.util.Timestamps;
+import com.palmtree.kafka.connector.common.ChannelPool;
 import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.MessagePacker;
+import com.palmtree.kafka.connector.common.PayloadCodec;
+import com.palmtree.kafka.connector.common.TaskMetrics;
+import com.palmtree.kafka.connector.source.SampleSourceConnector.BatchSizing;
+import com.palmtree.kafka.connector.source.SampleSourceConnector.LoadBalancingPolicy;
 import com.palmtree.kafka.connector.source.SampleSourceConnector.PartitionScheme;
-import com.google.pubsub.v1.AcknowledgeRequest;
+import com.palmtree.kafka.connector.source.SampleSourceConnector.PullMode;
 import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.PullRequest;
 import com.google.pubsub.v1.PullResponse;
 import com.google.pubsub.v1.ReceivedMessage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.common.utils.Utils;
 import org.apache.kafka.connect.data.Field;
 import org.apache.kafka.connect.data.Schema;
-import org.apache.kafka.connect.data.SchemaBuilder;
 import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.errors.DataException;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.apache.kafka.connect.source.SourceTask;
 import org.slf4j.Logger;
@@ -39,22 +54,82 @@ public class SampleSourceTask extends SourceTask {
 
   private static final Logger log = LoggerFactory.getLogger(SampleSourceTask.class);
   private static final int NUM_CPS_SUBSCRIBERS = 10;
+  // How long poll() waits for committed records to free capacity before returning empty.
+  private static final long MAX_FLOW_CONTROL_WAIT_MS = 1000;
+  // The name Kafka Connect gives the connector in the configs of its tasks.
+  private static final String CONNECTOR_NAME_CONFIG = "name";
 
   private String kafkaTopic;
-  private String cpsSubscription;
   private String kafkaMessageKeyAttribute;
   private String kafkaMessageTimestampAttribute;
   private int kafkaPartitions;
   private PartitionScheme kafkaPartitionScheme;
   private int cpsMaxBatchSize;
+  private boolean kafkaPayloadZeroCopy;
+  private PullMode cpsPullMode;
+  private LoadBalancingPolicy cpsLoadBalancingPolicy;
+  private int cpsStreamingPullBufferSize;
+  private int cpsConcurrentPulls;
+  private int cpsPrefetchDepth;
+  private long cpsPrefetchMaxBytes;
   // Keeps track of the current partition to publish to if the partition scheme is round robin.
   private int currentRoundRobinPartition = -1;
-  // Keep track of all ack ids that have not been sent correctly acked yet.
-  private Set<String> deliveredAckIds = Collections.synchronizedSet(new HashSet<String>());
-  private Set<String> ackIds = Collections.synchronizedSet(new HashSet<String>());
+  // Keeps track of the partition to publish to if the partition scheme is sticky, and of how much
+  // has been published to it.
+  private int stickyPartition;
+  private long stickyPartitionBytes = 0;
+  private int stickyPartitionRecords = 0;
+  private long kafkaStickyPartitionBytes;
+  private int kafkaStickyPartitionRecords;
+  // The subscriptions to pull from by their full name, which is also the key of record offsets.
+  private final Map<String, Subscription> subscriptions = new LinkedHashMap<>();
+  private int totalSubscriptionWeight = 0;
   private SampleSubscriber subscriber;
-  private Set<String> ackIdsInFlight = Collections.synchronizedSet(new HashSet<String>());
+  // Only set when the subscriber was created by the task.
+  private ChannelPool channelPool;
+  private PullPrefetcher prefetcher;
+  private PullFlowController flowController;
   private final Set<String> standardAttributes = new HashSet<>();
+  private SchemaCache schemaCache;
+  private TaskMetrics metrics;
+  private AtomicLong duplicateMessages;
+  private AtomicLong recordsUnpacked;
+  private AtomicLong undecodableMessages;
+  private AtomicLong unknownCodecMessages;
+
+  /** The state the task keeps for one of the subscriptions it pulls from. */
+  private static class Subscription {
+    final String name;
+    final int weight;
+    final SampleSubscriber subscriber;
+    // Whether the subscriber belongs to this subscription alone and is closed along with it.
+    final boolean ownsSubscriber;
+    // Keep track of all ack ids that have not been sent correctly acked yet.
+    final AckStateTable ackStates;
+    final PullBatchSizer batchSizer;
+    // The number of records of each packed message that have not been committed yet, by ack id.
+    // A packed message is acked once all of its records are committed.
+    final Map<String, AtomicInteger> packedRecords = new ConcurrentHashMap<>();
+    AckDispatcher ackDispatcher;
+    AckLeaseManager ackLeaseManager;
+    // The running weight of smooth weighted round robin between the subscriptions.
+    int currentWeight = 0;
+
+    Subscription(
+        String name,
+        int weight,
+        SampleSubscriber subscriber,
+        boolean ownsSubscriber,
+        AckStateTable ackStates,
+        PullBatchSizer batchSizer) {
+      this.name = name;
+      this.weight = weight;
+      this.subscriber = subscriber;
+      this.ownsSubscriber = ownsSubscriber;
+      this.ackStates = ackStates;
+      this.batchSizer = batchSizer;
+    }
+  }
 
   public SampleSourceTask() {}
 
@@ -71,14 +146,31 @@ public class SampleSourceTask extends SourceTask {
   @Override
   public void start(Map<String, String> props) {
     Map<String, Object> validatedProps = new SampleSourceConnector().config().parse(props);
-    cpsSubscription =
-        String.format(
-            ConnectorUtils.CPS_SUBSCRIPTION_FORMAT,
-            validatedProps.get(ConnectorUtils.CPS_PROJECT_CONFIG).toString(),
-            validatedProps.get(SampleSourceConnector.CPS_SUBSCRIPTION_CONFIG).toString());
+    String cpsProject = validatedProps.get(ConnectorUtils.CPS_PROJECT_CONFIG).toString();
+    Map<String, Integer> subscriptionWeights = SubscriptionAssigner.fromConfig(validatedProps);
     kafkaTopic = validatedProps.get(SampleSourceConnector.KAFKA_TOPIC_CONFIG).toString();
     cpsMaxBatchSize =
         (Integer) validatedProps.get(SampleSourceConnector.CPS_MAX_BATCH_SIZE_CONFIG);
+    kafkaPayloadZeroCopy =
+        (Boolean) validatedProps.get(SampleSourceConnector.KAFKA_PAYLOAD_ZERO_COPY_CONFIG);
+    BatchSizing cpsBatchSizing =
+        BatchSizing.getEnum(
+            (String) validatedProps.get(SampleSourceConnector.CPS_BATCH_SIZING_CONFIG));
+    int cpsMinBatchSize =
+        (Integer) validatedProps.get(SampleSourceConnector.CPS_MIN_BATCH_SIZE_CONFIG);
+    cpsPullMode =
+        PullMode.getEnum((String) validatedProps.get(SampleSourceConnector.CPS_PULL_MODE_CONFIG));
+    cpsLoadBalancingPolicy =
+        LoadBalancingPolicy.getEnum(
+            (String) validatedProps.get(SampleSourceConnector.CPS_LOAD_BALANCING_POLICY_CONFIG));
+    cpsStreamingPullBufferSize =
+        (Integer) validatedProps.get(SampleSourceConnector.CPS_STREAMING_PULL_BUFFER_SIZE_CONFIG);
+    cpsConcurrentPulls =
+        (Integer) validatedProps.get(SampleSourceConnector.CPS_CONCURRENT_PULLS_CONFIG);
+    cpsPrefetchDepth =
+        (Integer) validatedProps.get(SampleSourceConnector.CPS_PREFETCH_DEPTH_CONFIG);
+    cpsPrefetchMaxBytes =
+        (Long) validatedProps.get(SampleSourceConnector.CPS_PREFETCH_MAX_BYTES_CONFIG);
     kafkaPartitions =
         (Integer) validatedProps.get(SampleSourceConnector.KAFKA_PARTITIONS_CONFIG);
     kafkaMessageKeyAttribute =
@@ -88,154 +180,534 @@ public class SampleSourceTask extends SourceTask {
     kafkaPartitionScheme =
         PartitionScheme.getEnum(
             (String) validatedProps.get(SampleSourceConnector.KAFKA_PARTITION_SCHEME_CONFIG));
+    kafkaStickyPartitionBytes =
+        (Long) validatedProps.get(SampleSourceConnector.KAFKA_STICKY_PARTITION_BYTES_CONFIG);
+    kafkaStickyPartitionRecords =
+        (Integer) validatedProps.get(SampleSourceConnector.KAFKA_STICKY_PARTITION_RECORDS_CONFIG);
+    // Start tasks on different partitions so that they do not all fill the same one.
+    stickyPartition = new Random().nextInt(kafkaPartitions);
+    int cpsAckDeadlineSeconds =
+        (Integer) validatedProps.get(SampleSourceConnector.CPS_ACK_DEADLINE_SECONDS_CONFIG);
+    int cpsMaxAckExtensionPeriodSeconds =
+        (Integer) validatedProps.get(SampleSourceConnector.CPS_MAX_ACK_EXTENSION_PERIOD_CONFIG);
+    metrics = new TaskMetrics("source-task", props.get(CONNECTOR_NAME_CONFIG));
+    duplicateMessages = metrics.counter("DuplicateMessages");
+    recordsUnpacked = metrics.counter("RecordsUnpacked");
+    undecodableMessages = metrics.counter("UndecodableMessages");
+    unknownCodecMessages = metrics.counter("UnknownCodecMessages");
+    schemaCache =
+        new SchemaCache(
+            (Integer) validatedProps.get(SampleSourceConnector.KAFKA_SCHEMA_CACHE_SIZE_CONFIG),
+            kafkaMessageKeyAttribute,
+            metrics.counter("SchemaCacheHits"),
+            metrics.counter("SchemaCacheMisses"));
     if (subscriber == null) {
       // Only do this if we did not set through the constructor.
-      subscriber = new SampleRoundRobinSubscriber(NUM_CPS_SUBSCRIBERS);
+      try {
+        channelPool =
+            ChannelPool.acquire(
+                (Integer) validatedProps.get(ConnectorUtils.CPS_CHANNEL_POOL_SIZE_CONFIG));
+      } catch (IOException e) {
+        throw new ConnectException("Could not create the channel pool for Cloud Pub/Sub.", e);
+      }
+      // Streaming pull subscribers are bound to one subscription, so those are created below.
+      if (cpsPullMode != PullMode.STREAMING_PULL) {
+        subscriber =
+            new SampleLoadBalancingSubscriber(
+                channelPool, NUM_CPS_SUBSCRIBERS, cpsLoadBalancingPolicy);
+      }
+    }
+    int cpsAckBatchSize =
+        (Integer) validatedProps.get(SampleSourceConnector.CPS_ACK_BATCH_SIZE_CONFIG);
+    long cpsAckBatchBytes =
+        (Long) validatedProps.get(SampleSourceConnector.CPS_ACK_BATCH_BYTES_CONFIG);
+    final List<AckStateTable> ackStateTables = new ArrayList<>();
+    // The tables are added below, as the subscriptions are created.
+    flowController =
+        new PullFlowController(
+            ackStateTables,
+            (Integer) validatedProps.get(SampleSourceConnector.CPS_MAX_OUTSTANDING_MESSAGES_CONFIG),
+            (Long) validatedProps.get(SampleSourceConnector.CPS_MAX_OUTSTANDING_BYTES_CONFIG));
+    for (Map.Entry<String, Integer> entry : subscriptionWeights.entrySet()) {
+      String name =
+          String.format(ConnectorUtils.CPS_SUBSCRIPTION_FORMAT, cpsProject, entry.getKey());
+      SampleSubscriber subscriptionSubscriber = subscriber;
+      boolean ownsSubscriber = subscriptionSubscriber == null;
+      if (ownsSubscriber) {
+        subscriptionSubscriber =
+            new SampleStreamingPullSubscriber(
+                channelPool,
+                Math.max(1, NUM_CPS_SUBSCRIBERS / subscriptionWeights.size()),
+                cpsStreamingPullBufferSize,
+                cpsAckDeadlineSeconds,
+                flowController);
+      }
+      Subscription subscription =
+          new Subscription(
+              name,
+              entry.getValue(),
+              new MeteredSubscriber(subscriptionSubscriber, metrics),
+              ownsSubscriber,
+              new AckStateTable(cpsAckDeadlineSeconds * 1000L),
+              new PullBatchSizer(cpsBatchSizing, cpsMinBatchSize, cpsMaxBatchSize));
+      subscription.ackDispatcher =
+          new AckDispatcher(
+              subscription.subscriber,
+              subscription.ackStates,
+              name,
+              cpsAckBatchSize,
+              cpsAckBatchBytes,
+              (Integer) validatedProps.get(SampleSourceConnector.CPS_ACK_LINGER_MS_CONFIG),
+              (Integer) validatedProps.get(SampleSourceConnector.CPS_MAX_OUTSTANDING_ACKS_CONFIG));
+      if (cpsMaxAckExtensionPeriodSeconds > 0) {
+        subscription.ackLeaseManager =
+            new AckLeaseManager(
+                subscription.subscriber,
+                subscription.ackStates,
+                name,
+                cpsAckBatchSize,
+                cpsAckBatchBytes,
+                cpsAckDeadlineSeconds,
+                cpsMaxAckExtensionPeriodSeconds * 1000L);
+        subscription.ackLeaseManager.start();
+      }
+      registerBatchSizeGauges(entry.getKey(), subscription.batchSizer);
+      subscriptions.put(name, subscription);
+      totalSubscriptionWeight += subscription.weight;
+      ackStateTables.add(subscription.ackStates);
     }
+    if (cpsPrefetchDepth > 0 || cpsConcurrentPulls > 1) {
+      prefetcher =
+          new PullPrefetcher(
+              new PullPrefetcher.Handler() {
+                @Override
+                public PullRequest nextRequest() {
+                  return createPullRequest();
+                }
+
+                @Override
+                public ListenableFuture<PullResponse> pull(PullRequest request) {
+                  return SampleSourceTask.this.pull(request);
+                }
+
+                @Override
+                public List<SourceRecord> convert(PullRequest request, PullResponse response) {
+                  return convertMessages(request, response);
+                }
+              },
+              Math.max(cpsPrefetchDepth, cpsConcurrentPulls),
+              cpsPrefetchDepth > 0,
+              cpsPrefetchMaxBytes);
+    }
+    registerAckStateGauges(ackStateTables);
+    registerFlowControlGauges();
+    metrics.register();
     standardAttributes.add(kafkaMessageKeyAttribute);
     standardAttributes.add(kafkaMessageTimestampAttribute);
     log.info("Started a SampleSourceTask.");
   }
 
-  @Override
-  public List<SourceRecord> poll() throws InterruptedException {
-    ackMessages();
-    log.debug("Polling...");
-    PullRequest request =
-        PullRequest.newBuilder()
-            .setSubscription(cpsSubscription)
-            .setReturnImmediately(false)
-            .setMaxMessages(cpsMaxBatchSize)
-            .build();
-    try {
-      PullResponse response = subscriber.pull(request).get();
-      List<SourceRecord> sourceRecords = new ArrayList<>();
-      log.trace("Received " + response.getReceivedMessagesList().size() + " messages");
-      for (ReceivedMessage rm : response.getReceivedMessagesList()) {
-        PubsubMessage message = rm.getMessage();
-        String ackId = rm.getAckId();
-        // If we are receiving this message a second (or more) times because the ack for it failed
-        // then do not create a SourceRecord for this message. In case we are waiting for ack
-        // response we also skip the message
-        if (ackIds.contains(ackId) || deliveredAckIds.contains(ackId) || ackIdsInFlight.contains(ackId)) {
-          continue;
-        }
-        ackIds.add(ackId);
-        Map<String, String> messageAttributes = message.getAttributes();
-        String key = messageAttributes.get(kafkaMessageKeyAttribute);
-        Long timestamp = getLongValue(messageAttributes.get(kafkaMessageTimestampAttribute));
-        if (timestamp == null){
-          timestamp = Timestamps.toMillis(message.getPublishTime());
-        }
-        ByteString messageData = message.getData();
-        byte[] messageBytes = messageData.toByteArray();
-
-        boolean hasCustomAttributes = !standardAttributes.containsAll(messageAttributes.keySet());
-
-        Map<String,String> ack = Collections.singletonMap(cpsSubscription, ackId);
-        SourceRecord record = null;
-        if (hasCustomAttributes) {
-          SchemaBuilder valueSchemaBuilder = SchemaBuilder.struct().field(
-              ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD,
-              Schema.BYTES_SCHEMA);
-
-          for (Entry<String, String> attribute :
-               messageAttributes.entrySet()) {
-            if (!attribute.getKey().equals(kafkaMessageKeyAttribute)) {
-              valueSchemaBuilder.field(attribute.getKey(),
-                                       Schema.STRING_SCHEMA);
+  /** Expose the number of ack ids in each state, summed over {@code ackStateTables}. */
+  private void registerAckStateGauges(final List<AckStateTable> ackStateTables) {
+    registerAckStateGauge("ReceivedAcks", AckStateTable.State.RECEIVED, ackStateTables);
+    registerAckStateGauge("DeliveredAcks", AckStateTable.State.DELIVERED, ackStateTables);
+    registerAckStateGauge("InFlightAcks", AckStateTable.State.IN_FLIGHT, ackStateTables);
+    metrics.gauge(
+        "ReceivedBytes",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            long bytes = 0;
+            for (AckStateTable ackStates : ackStateTables) {
+              bytes += ackStates.receivedBytes();
             }
+            return bytes;
+          }
+        });
+  }
+
+  /**
+   * Expose how much of the outstanding message and byte limits is in use, in percent, and how
+   * often pulls were held back by them.
+   */
+  private void registerFlowControlGauges() {
+    metrics.gauge(
+        "MessageUtilizationPercent",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return Math.round(flowController.messageUtilization() * 100);
+          }
+        });
+    metrics.gauge(
+        "ByteUtilizationPercent",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return Math.round(flowController.byteUtilization() * 100);
           }
+        });
+    metrics.gauge(
+        "ThrottledPulls",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return flowController.throttledPulls();
+          }
+        });
+  }
+
+  /**
+   * Expose the batch size that pulls from {@code subscription} currently ask for, and the average
+   * size of its messages that the batch size is bounded by, or -1 before any message was pulled.
+   */
+  private void registerBatchSizeGauges(String subscription, final PullBatchSizer batchSizer) {
+    metrics.gauge(
+        "BatchSize-" + subscription,
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return batchSizer.batchSize();
+          }
+        });
+    metrics.gauge(
+        "AverageMessageBytes-" + subscription,
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return Math.round(batchSizer.averageMessageBytes());
+          }
+        });
+  }
 
-          Schema valueSchema = valueSchemaBuilder.build();
-          Struct value =
-              new Struct(valueSchema)
-                  .put(ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD,
-                       messageBytes);
-          for (Field field : valueSchema.fields()) {
-            if (!field.name().equals(
-                    ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD)) {
-              value.put(field.name(), messageAttributes.get(field.name()));
+  private void registerAckStateGauge(
+      String name, final AckStateTable.State state, final List<AckStateTable> ackStateTables) {
+    metrics.gauge(
+        name,
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            long count = 0;
+            for (AckStateTable ackStates : ackStateTables) {
+              count += ackStates.count(state);
             }
+            return count;
           }
-          record =
-            new SourceRecord(
-                null,
-                ack,
-                kafkaTopic,
-                selectPartition(key, value),
-                Schema.OPTIONAL_STRING_SCHEMA,
-                key,
-                valueSchema,
-                value,
-                timestamp);
-        } else {
-          record =
-            new SourceRecord(
-                null,
-                ack,
-                kafkaTopic,
-                selectPartition(key, messageBytes),
-                Schema.OPTIONAL_STRING_SCHEMA,
-                key,
-                Schema.BYTES_SCHEMA,
-                messageBytes,
-                timestamp);
-        }
-        sourceRecords.add(record);
+        });
+  }
+
+  @Override
+  public List<SourceRecord> poll() throws InterruptedException {
+    // Acks are not flushed here: each AckDispatcher sends them once a request fills up or the
+    // linger time passes, and commit() forces out the rest.
+    log.debug("Polling...");
+    if (prefetcher != null) {
+      List<SourceRecord> records = prefetcher.poll();
+      if (records.isEmpty()) {
+        // Nothing may have been pulled because of flow control, so do not spin.
+        flowController.awaitCapacity(MAX_FLOW_CONTROL_WAIT_MS);
       }
-      return sourceRecords;
+      return records;
+    }
+    if (!flowController.awaitCapacity(MAX_FLOW_CONTROL_WAIT_MS)) {
+      log.debug("Too many messages are waiting to be committed, not pulling.");
+      return new ArrayList<>();
+    }
+    try {
+      PullRequest request = createPullRequest();
+      if (request == null) {
+        return new ArrayList<>();
+      }
+      PullResponse response = pull(request).get();
+      return convertMessages(request, response);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ConnectException) {
+        // The subscriber can not recover, for instance because the subscription does not exist.
+        throw (ConnectException) e.getCause();
+      }
+      log.info("Error while retrieving records, treating as an empty poll. " + e);
+      return new ArrayList<>();
     } catch (Exception e) {
       log.info("Error while retrieving records, treating as an empty poll. " + e);
       return new ArrayList<>();
     }
   }
 
-  @Override
-  public void commit() throws InterruptedException {
-    ackMessages();
+  /**
+   * Send the acks of every delivered ack id of every subscription without waiting for the linger
+   * time, as far as the outstanding request limits allow.
+   */
+  private void flushAcks() {
+    for (Subscription subscription : subscriptions.values()) {
+      subscription.ackDispatcher.flush();
+    }
   }
 
   /**
-   * Attempt to ack all ids in {@link #deliveredAckIds}.
+   * Pick the subscription to pull from next by smooth weighted round robin, so that over time
+   * each subscription gets a share of the pulls in proportion to its weight and pulls from
+   * different subscriptions are interleaved.
    */
-  private void ackMessages() {
-    if (deliveredAckIds.size() != 0) {
-      AcknowledgeRequest.Builder requestBuilder = AcknowledgeRequest.newBuilder()
-          .setSubscription(cpsSubscription);
-      final Set<String> ackIdsBatch = new HashSet<>();
-      synchronized (deliveredAckIds) {
-        requestBuilder.addAllAckIds(deliveredAckIds);
-        ackIdsInFlight.addAll(deliveredAckIds);
-        ackIdsBatch.addAll(deliveredAckIds);
-        deliveredAckIds.clear();
+  private synchronized Subscription nextSubscription() {
+    Subscription next = null;
+    for (Subscription subscription : subscriptions.values()) {
+      subscription.currentWeight += subscription.weight;
+      if (next == null || subscription.currentWeight > next.currentWeight) {
+        next = subscription;
       }
-      ListenableFuture<Empty> response = subscriber.ackMessages(requestBuilder.build());
-      Futures.addCallback(
-          response,
-          new FutureCallback<Empty>() {
-            @Override
-            public void onSuccess(Empty result) {
-              ackIdsInFlight.removeAll(ackIdsBatch);
-              log.trace("Successfully acked a set of messages. {}", ackIdsBatch.size());
-            }
+    }
+    next.currentWeight -= totalSubscriptionWeight;
+    return next;
+  }
 
-            @Override
-            public void onFailure(Throwable t) {
-              deliveredAckIds.addAll(ackIdsBatch);
-              ackIdsInFlight.removeAll(ackIdsBatch);
-              log.error("An exception occurred acking messages: " + t);
-            }
-          });
+  /**
+   * Return a request to the next subscription for as many messages as flow control allows, or
+   * null if the outstanding messages are at their limit.
+   */
+  private PullRequest createPullRequest() {
+    Subscription subscription = nextSubscription();
+    int maxMessages = flowController.allowedMessages(subscription.batchSizer.batchSize());
+    if (maxMessages == 0) {
+      return null;
     }
+    return PullRequest.newBuilder()
+        .setSubscription(subscription.name)
+        .setReturnImmediately(false)
+        .setMaxMessages(maxMessages)
+        .build();
   }
 
-  /** Return the partition a message should go to based on {@link #kafkaPartitionScheme}. */
-  private int selectPartition(Object key, Object value) {
+  /**
+   * Issue {@code request}, release its flow control reservation once it completes and let the
+   * batch sizer learn from its response.
+   */
+  private ListenableFuture<PullResponse> pull(final PullRequest request) {
+    final Subscription subscription = subscriptions.get(request.getSubscription());
+    final long startMs = System.currentTimeMillis();
+    ListenableFuture<PullResponse> response;
+    try {
+      response = subscription.subscriber.pull(request);
+    } catch (RuntimeException e) {
+      response = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        response,
+        new FutureCallback<PullResponse>() {
+          @Override
+          public void onSuccess(PullResponse result) {
+            flowController.pullCompleted(request.getMaxMessages());
+            subscription.batchSizer.record(
+                request.getMaxMessages(),
+                result.getReceivedMessagesCount(),
+                result.getSerializedSize(),
+                System.currentTimeMillis() - startMs);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            flowController.pullCompleted(request.getMaxMessages());
+          }
+        });
+    return response;
+  }
+
+  /**
+   * Convert the messages in {@code response} to {@code request} that have not been seen before to
+   * records.
+   */
+  private List<SourceRecord> convertMessages(PullRequest request, PullResponse response) {
+    Subscription subscription = subscriptions.get(request.getSubscription());
+    List<SourceRecord> sourceRecords = new ArrayList<>();
+    log.trace("Received {} messages", response.getReceivedMessagesCount());
+    if (stickyPartitionBytes >= kafkaStickyPartitionBytes
+        || stickyPartitionRecords >= kafkaStickyPartitionRecords) {
+      // Only move on between batches, so that a whole batch fills one partition.
+      stickyPartition = (stickyPartition + 1) % kafkaPartitions;
+      stickyPartitionBytes = 0;
+      stickyPartitionRecords = 0;
+    }
+    for (ReceivedMessage rm : response.getReceivedMessagesList()) {
+      PubsubMessage message = rm.getMessage();
+      String ackId = rm.getAckId();
+      // If we are receiving this message a second (or more) times because the ack for it failed
+      // then do not create a SourceRecord for this message. In case we are waiting for ack
+      // response we also skip the message
+      if (!subscription.ackStates.receive(ackId, message.getSerializedSize())) {
+        duplicateMessages.incrementAndGet();
+        continue;
+      }
+      if (hasUnknownCodec(message)) {
+        // Other publishers may set the attribute for their own reasons, so hand the message over
+        // as it was published, with the attribute as a field of the value.
+        log.debug(
+            "Message {} of {} has an unknown codec, not decoding it.",
+            message.getMessageId(),
+            subscription.name);
+        unknownCodecMessages.incrementAndGet();
+        sourceRecords.add(convertMessage(subscription.name, message, ackId));
+        continue;
+      }
+      if (MessagePacker.isPacked(message)) {
+        // The records are only handed over once the whole envelope converted.
+        List<SourceRecord> records = new ArrayList<>();
+        try {
+          for (PubsubMessage record : MessagePacker.unpack(message, decodeData(message))) {
+            records.add(convertMessage(subscription.name, record, ackId));
+          }
+        } catch (DataException e) {
+          dropUndecodable(subscription, message, ackId, e);
+          continue;
+        }
+        recordsUnpacked.addAndGet(records.size());
+        if (records.isEmpty()) {
+          subscription.ackDispatcher.delivered(ackId);
+          flowController.released();
+          continue;
+        }
+        if (records.size() > 1) {
+          subscription.packedRecords.put(ackId, new AtomicInteger(records.size()));
+        }
+        sourceRecords.addAll(records);
+        continue;
+      }
+      try {
+        sourceRecords.add(convertMessage(subscription.name, message, ackId));
+      } catch (DataException e) {
+        dropUndecodable(subscription, message, ackId, e);
+      }
+    }
+    return sourceRecords;
+  }
+
+  /**
+   * Ack {@code message}, whose body can not be decoded, without turning it into records. It would
+   * fail again if it was redelivered, and leaving it received would hold on to flow control
+   * capacity for good.
+   */
+  private void dropUndecodable(
+      Subscription subscription, PubsubMessage message, String ackId, DataException e) {
+    log.error(
+        "Dropping message {} of {} that can not be decoded: {}",
+        message.getMessageId(),
+        subscription.name,
+        e.getMessage());
+    undecodableMessages.incrementAndGet();
+    subscription.ackDispatcher.delivered(ackId);
+    flowController.released();
+  }
+
+  /**
+   * Convert {@code message} from the subscription with the full name {@code subscription} to a
+   * record whose offset is {@code ackId}.
+   */
+  @VisibleForTesting
+  SourceRecord convertMessage(String subscription, PubsubMessage message, String ackId) {
+    Map<String, String> messageAttributes = message.getAttributes();
+    String key = messageAttributes.get(kafkaMessageKeyAttribute);
+    Long timestamp = getLongValue(messageAttributes.get(kafkaMessageTimestampAttribute));
+    if (timestamp == null){
+      timestamp = Timestamps.toMillis(message.getPublishTime());
+    }
+    ByteString messageData = message.getData();
+    PayloadCodec codec = codecOf(message);
+    if (codec != null) {
+      messageData = codec.decompress(messageData);
+      // The codec only describes how the body was sent, so it is not part of the value.
+      messageAttributes = new HashMap<>(messageAttributes);
+      messageAttributes.remove(ConnectorUtils.CPS_CODEC_ATTRIBUTE);
+    }
+    // A read-only view shares the bytes protobuf already parsed instead of copying them.
+    Object messageBytes =
+        kafkaPayloadZeroCopy ? messageData.asReadOnlyByteBuffer() : messageData.toByteArray();
+
+    boolean hasCustomAttributes = !standardAttributes.containsAll(messageAttributes.keySet());
+
+    Map<String,String> ack = Collections.singletonMap(subscription, ackId);
+    SourceRecord record = null;
+    if (hasCustomAttributes) {
+      Schema valueSchema = schemaCache.get(messageAttributes.keySet());
+      Struct value =
+          new Struct(valueSchema)
+              .put(ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD,
+                   messageBytes);
+      for (Field field : valueSchema.fields()) {
+        if (!field.name().equals(
+                ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD)) {
+          value.put(field.name(), messageAttributes.get(field.name()));
+        }
+      }
+      record =
+        new SourceRecord(
+            null,
+            ack,
+            kafkaTopic,
+            selectPartition(key, value, messageData),
+            Schema.OPTIONAL_STRING_SCHEMA,
+            key,
+            valueSchema,
+            value,
+            timestamp);
+    } else {
+      record =
+        new SourceRecord(
+            null,
+            ack,
+            kafkaTopic,
+            selectPartition(key, messageBytes, messageData),
+            Schema.OPTIONAL_STRING_SCHEMA,
+            key,
+            Schema.BYTES_SCHEMA,
+            messageBytes,
+            timestamp);
+    }
+    return record;
+  }
+
+  /**
+   * Return the codec the body of {@code message} was compressed with, or null if it names none
+   * or one this connector does not know.
+   */
+  private static PayloadCodec codecOf(PubsubMessage message) {
+    String codec = message.getAttributesOrDefault(ConnectorUtils.CPS_CODEC_ATTRIBUTE, null);
+    return codec == null ? null : PayloadCodec.getEnum(codec);
+  }
+
+  /** Return the body of {@code message}, decompressed if it names a known codec. */
+  private static ByteString decodeData(PubsubMessage message) {
+    PayloadCodec codec = codecOf(message);
+    return codec == null ? message.getData() : codec.decompress(message.getData());
+  }
+
+  /** Return whether {@code message} names a codec that this connector does not know. */
+  private static boolean hasUnknownCodec(PubsubMessage message) {
+    String codec = message.getAttributesOrDefault(ConnectorUtils.CPS_CODEC_ATTRIBUTE, null);
+    return codec != null && PayloadCodec.getEnum(codec) == null;
+  }
+
+  @Override
+  public void commit() throws InterruptedException {
+    flushAcks();
+  }
+
+  /**
+   * Return the partition a message should go to based on {@link #kafkaPartitionScheme}. {@code
+   * data} is the body of the message {@code value} was created from.
+   */
+  private int selectPartition(String key, Object value, ByteString data) {
     if (kafkaPartitionScheme.equals(PartitionScheme.HASH_KEY)) {
       return key == null ? 0 : Math.abs(key.hashCode()) % kafkaPartitions;
     } else if (kafkaPartitionScheme.equals(PartitionScheme.HASH_VALUE)) {
       return Math.abs(value.hashCode()) % kafkaPartitions;
+    } else if (kafkaPartitionScheme.equals(PartitionScheme.MURMUR2) && key != null) {
+      // The partition Kafka's DefaultPartitioner picks for the key serialized as a string.
+      return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8)))
+          % kafkaPartitions;
+    } else if (kafkaPartitionScheme.equals(PartitionScheme.STICKY)
+        || kafkaPartitionScheme.equals(PartitionScheme.MURMUR2)) {
+      // Messages without a key stick to a partition under murmur2 as well.
+      stickyPartitionBytes += data.size();
+      ++stickyPartitionRecords;
+      return stickyPartition;
     } else {
       currentRoundRobinPartition = ++currentRoundRobinPartition % kafkaPartitions;
       return currentRoundRobinPartition;
@@ -254,14 +726,61 @@ public class SampleSourceTask extends SourceTask {
     return null;
   }
 
+  @VisibleForTesting
+  PullFlowController getFlowController() {
+    return flowController;
+  }
+
+  @VisibleForTesting
+  TaskMetrics getMetrics() {
+    return metrics;
+  }
+
   @Override
-  public void stop() {}
+  public void stop() {
+    if (prefetcher != null) {
+      prefetcher.stop();
+    }
+    for (Subscription subscription : subscriptions.values()) {
+      if (subscription.ackLeaseManager != null) {
+        subscription.ackLeaseManager.close();
+      }
+      subscription.ackDispatcher.close();
+      if (subscription.ownsSubscriber) {
+        subscription.subscriber.close();
+      }
+    }
+    subscriptions.clear();
+    totalSubscriptionWeight = 0;
+    if (metrics != null) {
+      metrics.unregister();
+    }
+    if (subscriber != null) {
+      subscriber.close();
+    }
+    if (channelPool != null) {
+      channelPool.release();
+      channelPool = null;
+      // The subscriber can not be used without its channels.
+      subscriber = null;
+    }
+  }
 
   @Override
   public void commitRecord(SourceRecord record) {
-    String ackId = record.sourceOffset().get(cpsSubscription).toString();
-    deliveredAckIds.add(ackId);
-    ackIds.remove(ackId);
+    // The offset maps the full name of the record's subscription to its ack id.
+    Map.Entry<String, ?> offset = record.sourceOffset().entrySet().iterator().next();
+    String ackId = offset.getValue().toString();
+    Subscription subscription = subscriptions.get(offset.getKey());
+    AtomicInteger remaining = subscription.packedRecords.get(ackId);
+    if (remaining != null) {
+      if (remaining.decrementAndGet() > 0) {
+        return;
+      }
+      subscription.packedRecords.remove(ackId);
+    }
+    subscription.ackDispatcher.delivered(ackId);
+    flowController.released();
     log.trace("Committed {}", ackId);
   }
 }
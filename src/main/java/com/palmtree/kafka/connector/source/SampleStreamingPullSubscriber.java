@@ -0,0 +1,475 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Empty;
+import com.palmtree.kafka.connector.common.ChannelPool;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.StreamingPullRequest;
+import com.google.pubsub.v1.StreamingPullResponse;
+import com.google.pubsub.v1.SubscriberGrpc;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SampleSubscriber} that keeps one long-lived bidirectional StreamingPull stream open
+ * per channel to <a href="https://cloud.google.com/pubsub">Google Cloud Pub/Sub</a>. Messages
+ * delivered by the streams are buffered in a local queue which {@link #pull} drains, and acks are
+ * sent on the same streams. When the queue holds the buffer size the streams stop requesting more
+ * responses from the server until it has been drained. A response can not be split, so responses
+ * that were already requested when the queue filled up are still buffered: the queue can exceed
+ * the buffer size by up to two responses per stream. If a {@link PullFlowController} is given,
+ * the streams also stop requesting while the buffered messages and the task's outstanding ones
+ * together reach its limits. Until {@link #pull} hands them out, the deadlines of buffered
+ * messages are extended on the streams every half stream ack deadline, so that they are not
+ * redelivered while they wait. Streams that fail with a retryable status are reopened with
+ * backoff; any other status fails every pull from then on with a {@link ConnectException}, since
+ * the subscription itself is unusable. This class is thread-safe.
+ */
+public class SampleStreamingPullSubscriber implements SampleSubscriber {
+
+  private static final Logger log = LoggerFactory.getLogger(SampleStreamingPullSubscriber.class);
+  // How long a pull waits for messages to arrive on the streams before returning empty.
+  private static final long MAX_PULL_WAIT_MS = 1000;
+  private static final long INITIAL_RECONNECT_DELAY_MS = 100;
+  private static final long MAX_RECONNECT_DELAY_MS = 10 * 1000;
+  // The statuses after which reopening a stream can succeed. Others, like NOT_FOUND or
+  // PERMISSION_DENIED, need the subscription or its permissions fixed first.
+  private static final Set<Status.Code> RETRYABLE_CODES =
+      EnumSet.of(
+          Status.Code.DEADLINE_EXCEEDED,
+          Status.Code.INTERNAL,
+          Status.Code.CANCELLED,
+          Status.Code.RESOURCE_EXHAUSTED,
+          Status.Code.ABORTED,
+          Status.Code.UNKNOWN,
+          Status.Code.UNAVAILABLE);
+
+  private final ChannelPool channelPool;
+  private final int streamCount;
+  private final int bufferSize;
+  private final int streamAckDeadlineSeconds;
+  private final PullFlowController flowController;
+  private final List<Stream> streams = new ArrayList<>();
+  private final Deque<ReceivedMessage> buffer = new ArrayDeque<>();
+  // The total serialized size of the messages in the buffer.
+  private long bufferedBytes = 0;
+  private final Deque<PendingPull> pendingPulls = new ArrayDeque<>();
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("cps-streaming-pull-%d")
+              .build());
+  private String subscription;
+  private int nextAckStream = 0;
+  private boolean closed = false;
+  // Set once a stream failed with a status that is not retryable.
+  private ConnectException failure;
+
+  /** A call to {@link #pull} that is waiting for messages to arrive on one of the streams. */
+  private static class PendingPull {
+    final SettableFuture<PullResponse> future = SettableFuture.create();
+    final int maxMessages;
+
+    PendingPull(int maxMessages) {
+      this.maxMessages = maxMessages;
+    }
+  }
+
+  public SampleStreamingPullSubscriber(
+      ChannelPool channelPool, int streamCount, int bufferSize, int streamAckDeadlineSeconds) {
+    this(channelPool, streamCount, bufferSize, streamAckDeadlineSeconds, null);
+  }
+
+  /**
+   * @param flowController the flow controller of the task the messages are pulled for, whose
+   *     limits also bound the buffer, or null to bound it by {@code bufferSize} alone
+   */
+  public SampleStreamingPullSubscriber(
+      ChannelPool channelPool,
+      int streamCount,
+      int bufferSize,
+      int streamAckDeadlineSeconds,
+      PullFlowController flowController) {
+    this.channelPool = channelPool;
+    this.streamCount = streamCount;
+    this.bufferSize = bufferSize;
+    this.streamAckDeadlineSeconds = streamAckDeadlineSeconds;
+    this.flowController = flowController;
+  }
+
+  /**
+   * Returns up to {@code request.getMaxMessages()} buffered messages. If none are buffered and the
+   * request does not ask to return immediately, the returned future completes as soon as messages
+   * arrive, or with an empty response after {@link #MAX_PULL_WAIT_MS}.
+   */
+  @Override
+  public ListenableFuture<PullResponse> pull(PullRequest request) {
+    final PendingPull pending;
+    synchronized (this) {
+      if (failure != null) {
+        return Futures.immediateFailedFuture(failure);
+      }
+      if (closed) {
+        return Futures.immediateFailedFuture(
+            new IllegalStateException("The subscriber has been closed."));
+      }
+      if (subscription == null) {
+        subscription = request.getSubscription();
+        for (int i = 0; i < streamCount; ++i) {
+          Stream stream = new Stream();
+          streams.add(stream);
+          stream.open();
+        }
+        long extensionPeriodMs = Math.max(streamAckDeadlineSeconds * 1000L / 2, 1);
+        executor.scheduleWithFixedDelay(
+            new Runnable() {
+              @Override
+              public void run() {
+                extendBufferedDeadlines();
+              }
+            },
+            extensionPeriodMs,
+            extensionPeriodMs,
+            TimeUnit.MILLISECONDS);
+      }
+      int maxMessages = Math.max(request.getMaxMessages(), 1);
+      if (!buffer.isEmpty() || request.getReturnImmediately()) {
+        PullResponse response = drain(maxMessages);
+        requestMoreIfRoom();
+        return Futures.immediateFuture(response);
+      }
+      pending = new PendingPull(maxMessages);
+      pendingPulls.add(pending);
+      // The flow controller may have held the streams back until records were committed.
+      requestMoreIfRoom();
+    }
+    executor.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            boolean expired;
+            synchronized (SampleStreamingPullSubscriber.this) {
+              expired = pendingPulls.remove(pending);
+            }
+            if (expired) {
+              pending.future.set(PullResponse.getDefaultInstance());
+            }
+          }
+        },
+        MAX_PULL_WAIT_MS,
+        TimeUnit.MILLISECONDS);
+    return pending.future;
+  }
+
+  /**
+   * Sends the ack ids in {@code request} on one of the open streams. StreamingPull does not
+   * confirm individual acks, so the returned future only reflects whether the acks could be
+   * written to a stream.
+   */
+  @Override
+  public ListenableFuture<Empty> ackMessages(AcknowledgeRequest request) {
+    return send(StreamingPullRequest.newBuilder().addAllAckIds(request.getAckIdsList()).build());
+  }
+
+  /**
+   * Sends the deadline modifications in {@code request} on one of the open streams. As with acks,
+   * the returned future only reflects whether they could be written to a stream.
+   */
+  @Override
+  public ListenableFuture<Empty> modifyAckDeadline(ModifyAckDeadlineRequest request) {
+    StreamingPullRequest.Builder builder = StreamingPullRequest.newBuilder();
+    for (String ackId : request.getAckIdsList()) {
+      builder.addModifyDeadlineAckIds(ackId);
+      builder.addModifyDeadlineSeconds(request.getAckDeadlineSeconds());
+    }
+    return send(builder.build());
+  }
+
+  /** Writes {@code request} to the next open stream. */
+  private synchronized ListenableFuture<Empty> send(StreamingPullRequest request) {
+    for (int i = 0; i < streams.size(); ++i) {
+      nextAckStream = (nextAckStream + 1) % streams.size();
+      if (streams.get(nextAckStream).send(request)) {
+        return Futures.immediateFuture(Empty.getDefaultInstance());
+      }
+    }
+    return Futures.immediateFailedFuture(
+        new IllegalStateException("No open StreamingPull stream to send on."));
+  }
+
+  @Override
+  public void close() {
+    List<PendingPull> abandoned;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (Stream stream : streams) {
+        stream.close();
+      }
+      // Messages still in the buffer are not acked and will be redelivered by Cloud Pub/Sub.
+      buffer.clear();
+      bufferedBytes = 0;
+      abandoned = new ArrayList<>(pendingPulls);
+      pendingPulls.clear();
+    }
+    for (PendingPull pending : abandoned) {
+      pending.future.set(PullResponse.getDefaultInstance());
+    }
+    executor.shutdownNow();
+  }
+
+  /**
+   * Closes every stream and fails the waiting pulls and every later one with {@code error}, since
+   * the streams can not be reopened.
+   */
+  private void fail(ConnectException error) {
+    List<PendingPull> failed;
+    synchronized (this) {
+      if (closed || failure != null) {
+        return;
+      }
+      log.error(error.getMessage(), error.getCause());
+      failure = error;
+      for (Stream stream : streams) {
+        stream.close();
+      }
+      buffer.clear();
+      bufferedBytes = 0;
+      failed = new ArrayList<>(pendingPulls);
+      pendingPulls.clear();
+    }
+    for (PendingPull pending : failed) {
+      pending.future.setException(error);
+    }
+  }
+
+  /** Removes up to {@code maxMessages} messages from the buffer. Must hold the lock. */
+  private PullResponse drain(int maxMessages) {
+    PullResponse.Builder response = PullResponse.newBuilder();
+    for (int i = 0; i < maxMessages && !buffer.isEmpty(); ++i) {
+      ReceivedMessage message = buffer.poll();
+      bufferedBytes -= message.getMessage().getSerializedSize();
+      response.addReceivedMessages(message);
+    }
+    return response.build();
+  }
+
+  /**
+   * Asks every idle stream for another response if the buffer has room, both under the buffer
+   * size and under the limits of the flow controller. Must hold the lock.
+   */
+  private void requestMoreIfRoom() {
+    for (Stream stream : streams) {
+      if (buffer.size() >= bufferSize
+          || (flowController != null
+              && !flowController.allowsBuffering(buffer.size(), bufferedBytes))) {
+        return;
+      }
+      stream.requestIfIdle();
+    }
+  }
+
+  /**
+   * Extends the deadlines of the buffered messages by the stream ack deadline, since they are not
+   * tracked by the task until {@link #pull} hands them out.
+   */
+  private synchronized void extendBufferedDeadlines() {
+    if (closed || failure != null || buffer.isEmpty()) {
+      return;
+    }
+    StreamingPullRequest.Builder request = StreamingPullRequest.newBuilder();
+    for (ReceivedMessage message : buffer) {
+      request.addModifyDeadlineAckIds(message.getAckId());
+      request.addModifyDeadlineSeconds(streamAckDeadlineSeconds);
+    }
+    // If no stream is open the messages expire and are redelivered, as unacked messages are.
+    send(request.build());
+  }
+
+  /** Buffers messages from a stream and hands them to any waiting pulls. */
+  private void onMessages(List<ReceivedMessage> messages) {
+    List<PendingPull> satisfied = new ArrayList<>();
+    List<PullResponse> responses = new ArrayList<>();
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      buffer.addAll(messages);
+      for (ReceivedMessage message : messages) {
+        bufferedBytes += message.getMessage().getSerializedSize();
+      }
+      while (!pendingPulls.isEmpty() && !buffer.isEmpty()) {
+        PendingPull pending = pendingPulls.poll();
+        satisfied.add(pending);
+        responses.add(drain(pending.maxMessages));
+      }
+      requestMoreIfRoom();
+    }
+    // Complete the futures outside the lock since their listeners may run inline.
+    for (int i = 0; i < satisfied.size(); ++i) {
+      satisfied.get(i).future.set(responses.get(i));
+    }
+  }
+
+  /** One StreamingPull stream, reopened with backoff whenever the server closes it. */
+  private class Stream
+      implements ClientResponseObserver<StreamingPullRequest, StreamingPullResponse> {
+
+    private ClientCallStreamObserver<StreamingPullRequest> requestObserver;
+    private ChannelPool.Lease lease;
+    private boolean awaitingResponse = false;
+    private long reconnectDelayMs = INITIAL_RECONNECT_DELAY_MS;
+
+    /** Opens the stream. Must hold the subscriber lock. */
+    void open() {
+      if (closed || failure != null) {
+        return;
+      }
+      log.info("Opening StreamingPull stream for {}.", subscription);
+      try {
+        lease = channelPool.lease();
+        SubscriberGrpc.newStub(lease.getChannel()).streamingPull(this);
+      } catch (IOException | RuntimeException e) {
+        releaseLease();
+        log.error("Could not create StreamingPull stream: " + e);
+        scheduleReopen();
+        return;
+      }
+      requestObserver.onNext(
+          StreamingPullRequest.newBuilder()
+              .setSubscription(subscription)
+              .setStreamAckDeadlineSeconds(streamAckDeadlineSeconds)
+              .build());
+      awaitingResponse = false;
+      requestIfIdle();
+    }
+
+    /** Writes {@code request} to the stream if it is open. Must hold the subscriber lock. */
+    boolean send(StreamingPullRequest request) {
+      if (requestObserver == null) {
+        return false;
+      }
+      requestObserver.onNext(request);
+      return true;
+    }
+
+    /** Asks for one more response if none is outstanding. Must hold the subscriber lock. */
+    void requestIfIdle() {
+      if (requestObserver != null && !awaitingResponse) {
+        awaitingResponse = true;
+        requestObserver.request(1);
+      }
+    }
+
+    /** Closes the stream. Must hold the subscriber lock. */
+    void close() {
+      if (requestObserver != null) {
+        requestObserver.onCompleted();
+        requestObserver = null;
+      }
+      releaseLease();
+    }
+
+    /** Gives the stream's channel back to the pool. Must hold the subscriber lock. */
+    private void releaseLease() {
+      if (lease != null) {
+        lease.release();
+        lease = null;
+      }
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<StreamingPullRequest> requestStream) {
+      requestStream.disableAutoInboundFlowControl();
+      requestObserver = requestStream;
+    }
+
+    @Override
+    public void onNext(StreamingPullResponse response) {
+      synchronized (SampleStreamingPullSubscriber.this) {
+        awaitingResponse = false;
+        reconnectDelayMs = INITIAL_RECONNECT_DELAY_MS;
+      }
+      onMessages(response.getReceivedMessagesList());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      Status.Code code = Status.fromThrowable(t).getCode();
+      if (!RETRYABLE_CODES.contains(code)) {
+        synchronized (SampleStreamingPullSubscriber.this) {
+          requestObserver = null;
+          releaseLease();
+        }
+        fail(
+            new ConnectException(
+                "StreamingPull from " + subscription + " failed with " + code + ".", t));
+        return;
+      }
+      log.warn("StreamingPull stream closed with an error, reopening. " + t);
+      synchronized (SampleStreamingPullSubscriber.this) {
+        requestObserver = null;
+        // The server went away, so reopen on a fresh channel.
+        if (lease != null && code == Status.Code.UNAVAILABLE) {
+          lease.rotate();
+        }
+        releaseLease();
+        scheduleReopen();
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      log.info("StreamingPull stream completed by the server, reopening.");
+      synchronized (SampleStreamingPullSubscriber.this) {
+        requestObserver = null;
+        releaseLease();
+        scheduleReopen();
+      }
+    }
+
+    /** Schedules {@link #open} after the current backoff delay. Must hold the subscriber lock. */
+    private void scheduleReopen() {
+      if (closed || failure != null) {
+        return;
+      }
+      long delayMs = reconnectDelayMs;
+      reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+      executor.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              synchronized (SampleStreamingPullSubscriber.this) {
+                open();
+              }
+            }
+          },
+          delayMs,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+}
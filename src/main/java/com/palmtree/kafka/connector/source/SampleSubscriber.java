@@ -3,6 +3,7 @@ package com.palmtree.kafka.connector.source;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.Empty;
 import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
 import com.google.pubsub.v1.PullRequest;
 import com.google.pubsub.v1.PullResponse;
 
@@ -15,4 +16,9 @@ public interface SampleSubscriber {
   public ListenableFuture<PullResponse> pull(PullRequest request);
 
   public ListenableFuture<Empty> ackMessages(AcknowledgeRequest request);
+
+  public ListenableFuture<Empty> modifyAckDeadline(ModifyAckDeadlineRequest request);
+
+  /** Releases any streams or channels held by the subscriber. */
+  public void close();
 }
@@ -0,0 +1,95 @@
+package com.palmtree.kafka.connector.source;
+
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+
+/**
+ * A bounded, least-recently-used cache of the struct {@link Schema}s used for Cloud Pub/Sub
+ * messages with custom attributes. Schemas are keyed by the set of attribute names on the message,
+ * so every message with the same attribute names shares a single immutable {@link Schema}. The
+ * attribute fields are added in sorted order, which makes the schema independent of the order in
+ * which the attributes were received. This class is thread-safe.
+ */
+public class SchemaCache {
+
+  private final String keyAttribute;
+  private final LinkedHashMap<Set<String>, Schema> schemas;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+
+  /**
+   * @param maxSize the maximum number of schemas to keep
+   * @param keyAttribute the attribute used as the Kafka key, which is not part of the schema
+   */
+  public SchemaCache(int maxSize, String keyAttribute) {
+    this(maxSize, keyAttribute, new AtomicLong(), new AtomicLong());
+  }
+
+  /**
+   * @param hits the counter of lookups that find a cached schema, such as a {@link
+   *     com.palmtree.kafka.connector.common.TaskMetrics} counter
+   * @param misses the counter of lookups that build a new schema
+   */
+  public SchemaCache(final int maxSize, String keyAttribute, AtomicLong hits, AtomicLong misses) {
+    this.keyAttribute = keyAttribute;
+    this.hits = hits;
+    this.misses = misses;
+    this.schemas =
+        new LinkedHashMap<Set<String>, Schema>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Set<String>, Schema> eldest) {
+            return size() > maxSize;
+          }
+        };
+  }
+
+  /** Return the value schema for a message whose attributes have the names in {@code names}. */
+  public Schema get(Set<String> names) {
+    synchronized (schemas) {
+      Schema schema = schemas.get(names);
+      if (schema != null) {
+        hits.incrementAndGet();
+        return schema;
+      }
+    }
+    misses.incrementAndGet();
+    Schema schema = build(names);
+    synchronized (schemas) {
+      schemas.put(Collections.unmodifiableSet(new HashSet<>(names)), schema);
+    }
+    return schema;
+  }
+
+  /** Return the number of lookups that found a cached schema. */
+  public long hits() {
+    return hits.get();
+  }
+
+  /** Return the number of lookups that had to build a new schema. */
+  public long misses() {
+    return misses.get();
+  }
+
+  private Schema build(Set<String> names) {
+    List<String> fieldNames = new ArrayList<>(names);
+    Collections.sort(fieldNames);
+    SchemaBuilder builder =
+        SchemaBuilder.struct()
+            .field(ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD, Schema.BYTES_SCHEMA);
+    for (String name : fieldNames) {
+      if (!name.equals(keyAttribute)) {
+        builder.field(name, Schema.STRING_SCHEMA);
+      }
+    }
+    return builder.build();
+  }
+}
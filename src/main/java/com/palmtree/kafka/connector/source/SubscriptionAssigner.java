@@ -0,0 +1,158 @@
+package com.palmtree.kafka.connector.source;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.common.config.ConfigException;
+
+/**
+ * Parses the subscriptions a {@link SampleSourceConnector} pulls from and spreads them over its
+ * tasks. Subscriptions are given as "name" or "name:weight", where the weight is a positive
+ * integer that defaults to 1 and stands for the share of the load the subscription is expected to
+ * carry. When there are at least as many subscriptions as tasks, each subscription goes to exactly
+ * one task, heaviest first to the task with the least weight so far. When there are fewer, every
+ * subscription gets at least one task and the remaining tasks go to the subscriptions with the
+ * highest weight per task, so that heavy subscriptions are pulled by several competing tasks.
+ */
+public class SubscriptionAssigner {
+
+  private SubscriptionAssigner() {}
+
+  /**
+   * Return the subscriptions configured in {@code validatedProps}: those in {@link
+   * SampleSourceConnector#CPS_SUBSCRIPTIONS_CONFIG} if it is set, otherwise the one in {@link
+   * SampleSourceConnector#CPS_SUBSCRIPTION_CONFIG} with a weight of 1.
+   *
+   * @throws ConfigException if neither is set or an entry is malformed
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, Integer> fromConfig(Map<String, Object> validatedProps) {
+    List<String> subscriptions =
+        (List<String>) validatedProps.get(SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG);
+    if (!subscriptions.isEmpty()) {
+      return parse(subscriptions);
+    }
+    String subscription =
+        ((String) validatedProps.get(SampleSourceConnector.CPS_SUBSCRIPTION_CONFIG)).trim();
+    if (subscription.isEmpty()) {
+      throw new ConfigException(
+          "Either "
+              + SampleSourceConnector.CPS_SUBSCRIPTION_CONFIG
+              + " or "
+              + SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG
+              + " must be set");
+    }
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    weights.put(subscription, 1);
+    return weights;
+  }
+
+  /**
+   * Return the weight of every subscription in {@code subscriptions}, in the given order.
+   *
+   * @throws ConfigException if an entry is malformed or a subscription is listed twice
+   */
+  public static Map<String, Integer> parse(List<String> subscriptions) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String entry : subscriptions) {
+      String name = entry.trim();
+      int weight = 1;
+      int colon = name.lastIndexOf(':');
+      if (colon >= 0) {
+        try {
+          weight = Integer.parseInt(name.substring(colon + 1).trim());
+        } catch (NumberFormatException e) {
+          weight = 0;
+        }
+        name = name.substring(0, colon).trim();
+      }
+      if (name.isEmpty() || weight < 1) {
+        throw new ConfigException(
+            SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG,
+            entry,
+            "Subscriptions must be given as name or name:weight with a positive weight");
+      }
+      if (weights.put(name, weight) != null) {
+        throw new ConfigException(
+            SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG, entry, "Duplicate subscription");
+      }
+    }
+    return weights;
+  }
+
+  /** Return {@code weights} in the format accepted by {@link #parse}. */
+  public static String format(Map<String, Integer> weights) {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+      if (builder.length() > 0) {
+        builder.append(',');
+      }
+      builder.append(entry.getKey()).append(':').append(entry.getValue());
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Spread {@code weights} over {@code maxTasks} tasks and return the subscriptions of each task
+   * with their weights. Returns one entry per task, or fewer if there are no subscriptions.
+   */
+  public static List<Map<String, Integer>> assign(
+      final Map<String, Integer> weights, int maxTasks) {
+    List<Map<String, Integer>> tasks = new ArrayList<>();
+    if (weights.isEmpty()) {
+      return tasks;
+    }
+    List<String> names = new ArrayList<>(weights.keySet());
+    // Heaviest first, then by name so that the assignment does not depend on the given order.
+    Collections.sort(
+        names,
+        new Comparator<String>() {
+          @Override
+          public int compare(String a, String b) {
+            int byWeight = Integer.compare(weights.get(b), weights.get(a));
+            return byWeight != 0 ? byWeight : a.compareTo(b);
+          }
+        });
+    if (names.size() >= maxTasks) {
+      long[] loads = new long[maxTasks];
+      for (int i = 0; i < maxTasks; ++i) {
+        tasks.add(new LinkedHashMap<String, Integer>());
+      }
+      for (String name : names) {
+        int lightest = 0;
+        for (int i = 1; i < maxTasks; ++i) {
+          if (loads[i] < loads[lightest]) {
+            lightest = i;
+          }
+        }
+        loads[lightest] += weights.get(name);
+        tasks.get(lightest).put(name, weights.get(name));
+      }
+      return tasks;
+    }
+    int[] taskCounts = new int[names.size()];
+    for (int i = 0; i < names.size(); ++i) {
+      taskCounts[i] = 1;
+    }
+    for (int extra = names.size(); extra < maxTasks; ++extra) {
+      int best = 0;
+      for (int i = 1; i < names.size(); ++i) {
+        // Compare weight / taskCount without dividing.
+        if ((long) weights.get(names.get(i)) * taskCounts[best]
+            > (long) weights.get(names.get(best)) * taskCounts[i]) {
+          best = i;
+        }
+      }
+      ++taskCounts[best];
+    }
+    for (int i = 0; i < names.size(); ++i) {
+      for (int j = 0; j < taskCounts[i]; ++j) {
+        tasks.add(Collections.singletonMap(names.get(i), weights.get(names.get(i))));
+      }
+    }
+    return tasks;
+  }
+}
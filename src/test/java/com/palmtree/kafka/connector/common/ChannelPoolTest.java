@@ -0,0 +1,170 @@
+package com.palmtree.kafka.connector.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import static org.junit.Assert.assertTrue;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link ChannelPool}. */
+public class ChannelPoolTest {
+
+  private static final String SERVER_NAME = "cps";
+
+  private Server server;
+  private ChannelPool pool;
+  private final List<ManagedChannel> created = new ArrayList<>();
+
+  @Before
+  public void setup() throws Exception {
+    server = InProcessServerBuilder.forName(SERVER_NAME).build().start();
+    pool =
+        new ChannelPool(
+            2,
+            new ChannelPool.ChannelFactory() {
+              @Override
+              public ManagedChannel create() {
+                ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+                created.add(channel);
+                return channel;
+              }
+            },
+            null);
+  }
+
+  @After
+  public void tearDown() {
+    pool.release();
+    server.shutdownNow();
+  }
+
+  /** Tests that channels are created up to the pool size and then shared. */
+  @Test
+  public void testLeasesShareChannelsOnceFull() throws Exception {
+    ChannelPool.Lease first = pool.lease();
+    ChannelPool.Lease second = pool.lease();
+    ChannelPool.Lease third = pool.lease();
+    assertNotSame(first.getManagedChannel(), second.getManagedChannel());
+    assertSame(first.getManagedChannel(), third.getManagedChannel());
+    assertEquals(2, pool.channelsCreated());
+    assertEquals(3, pool.activeLeases());
+  }
+
+  /** Tests that a new lease goes to the channel with the fewest leases. */
+  @Test
+  public void testLeaseFavorsLeastLeasedChannel() throws Exception {
+    ChannelPool.Lease first = pool.lease();
+    ChannelPool.Lease second = pool.lease();
+    pool.lease();
+    second.release();
+    // Releasing twice must not count twice.
+    second.release();
+    assertEquals(2, pool.activeLeases());
+    assertSame(second.getManagedChannel(), pool.lease().getManagedChannel());
+    assertNotSame(first.getManagedChannel(), second.getManagedChannel());
+  }
+
+  /** Tests that the channels are shut down once the last reference is released. */
+  @Test
+  public void testReleaseShutsDownChannels() throws Exception {
+    ChannelPool.Lease lease = pool.lease();
+    pool.lease();
+    assertEquals(2, pool.liveChannels());
+    lease.release();
+    pool.release();
+    assertEquals(0, pool.liveChannels());
+    assertEquals(0, pool.references());
+  }
+
+  /** Tests that the pool reports its channels and leases as gauges. */
+  @Test
+  public void testMetrics() throws Exception {
+    ChannelPool.Lease lease = pool.lease();
+    pool.lease();
+    lease.release();
+    TaskMetrics metrics = pool.metrics();
+    assertEquals(2L, metrics.getAttribute("LiveChannels"));
+    assertEquals(1L, metrics.getAttribute("ActiveLeases"));
+    assertEquals(2L, metrics.getAttribute("ChannelsCreated"));
+    assertEquals(0L, metrics.getAttribute("ChannelsRotated"));
+    assertEquals(1L, metrics.getAttribute("References"));
+    assertEquals(
+        TaskMetrics.DOMAIN + ":type=\"channel-pool\"", metrics.getObjectName().toString());
+  }
+
+  /** Tests that a rotation moves leased channels to a new channel and shuts the old one down. */
+  @Test
+  public void testRotationSwapsChannelUnderLease() throws Exception {
+    ChannelPool single =
+        new ChannelPool(
+            1,
+            new ChannelPool.ChannelFactory() {
+              @Override
+              public ManagedChannel create() {
+                ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+                created.add(channel);
+                return channel;
+              }
+            },
+            null);
+    ChannelPool.Lease lease = single.lease();
+    ManagedChannel leased = lease.getManagedChannel();
+    single.rotate(lease);
+    for (int i = 0; i < 100 && single.channelsRotated() == 0; ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, single.channelsRotated());
+    assertEquals(2, single.channelsCreated());
+    // The lease keeps the same handle, which now sends calls to the replacement.
+    assertSame(leased, lease.getManagedChannel());
+    assertTrue(created.get(0).isShutdown());
+    // The previous channel counts as live until it has terminated, which happens asynchronously.
+    assertTrue(created.get(0).awaitTermination(5, TimeUnit.SECONDS));
+    assertEquals(1, single.liveChannels());
+    single.release();
+    assertTrue(created.get(1).isShutdown());
+  }
+
+  /**
+   * Tests that rotating a channel on demand replaces its pending periodic rotation instead of
+   * adding another one.
+   */
+  @Test
+  public void testOnDemandRotationReplacesPeriodicRotation() throws Exception {
+    ChannelPool single =
+        new ChannelPool(
+            1,
+            new ChannelPool.ChannelFactory() {
+              @Override
+              public ManagedChannel create() {
+                return InProcessChannelBuilder.forName(SERVER_NAME).build();
+              }
+            },
+            null,
+            1000,
+            1);
+    ChannelPool.Lease lease = single.lease();
+    for (int rotations = 1; rotations <= 2; ++rotations) {
+      single.rotate(lease);
+      for (int i = 0; i < 100 && single.channelsRotated() < rotations; ++i) {
+        Thread.sleep(10);
+      }
+      assertEquals(rotations, single.channelsRotated());
+    }
+    // Only the rotation scheduled by the last swap fires, a second after it.
+    Thread.sleep(1500);
+    assertEquals(3, single.channelsRotated());
+    single.release();
+  }
+}
@@ -0,0 +1,640 @@
+package com.palmtree.kafka.connector.common;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Empty;
+import com.google.protobuf.util.Timestamps;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.StreamingPullRequest;
+import com.google.pubsub.v1.StreamingPullResponse;
+import com.google.pubsub.v1.SubscriberGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in for <a href="https://cloud.google.com/pubsub">Google Cloud Pub/Sub</a>
+ * that serves the pull, streamingPull, acknowledge, modifyAckDeadline and publish calls of {@link
+ * SubscriberGrpc} and {@link PublisherGrpc}. Messages published to a topic are copied to every
+ * subscription of the topic, and a message that is not acked before its ack deadline expires is
+ * delivered again with a new ack id, as Cloud Pub/Sub does. StreamingPull streams only send a
+ * response while the client has asked for one, so a client that stops asking stops receiving.
+ *
+ * <p>Every call is answered after a random latency between {@link #setLatencyMs}'s bounds, and
+ * faults can be injected: a share of the calls fails with UNAVAILABLE, a share of the ack ids of
+ * an acknowledge call is dropped while the call succeeds, and {@link #goAway} fails every call in
+ * flight with UNAVAILABLE, open StreamingPull streams included. The in-process transport has no
+ * connection to close, so the latter is what a client sees of a GOAWAY. This class is
+ * thread-safe.
+ */
+public class FakePubsubServer {
+
+  // How often a pull with nothing to return looks for messages again before giving up.
+  private static final long PULL_RETRY_MS = 5;
+
+  private final String name;
+  private final Random rand = new Random();
+  private final ScheduledExecutorService executor =
+      Executors.newScheduledThreadPool(
+          4, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fake-cps-%d").build());
+  private final Map<String, List<String>> topicSubscriptions = new HashMap<>();
+  private final Map<String, Subscription> subscriptions = new HashMap<>();
+  // Calls that are waiting for their latency to pass, by the task that answers them.
+  private final Map<ScheduledFuture<?>, StreamObserver<?>> inFlight = new LinkedHashMap<>();
+  private final List<PullStream> streams = new ArrayList<>();
+  private Server server;
+  private long minLatencyMs = 0;
+  private long maxLatencyMs = 0;
+  private long ackDeadlineMs = 10 * 1000;
+  private long maxPullWaitMs = 100;
+  private int streamingResponseMessages = 100;
+  private double unavailableRate = 0;
+  private double ackDropRate = 0;
+  private long nextMessageId = 0;
+  private long nextAckId = 0;
+  private long published = 0;
+  private long delivered = 0;
+  private long redelivered = 0;
+  private long acked = 0;
+  private long acksDropped = 0;
+  private long callsFailed = 0;
+  private long streamsOpened = 0;
+
+  /** The messages of one subscription. */
+  private static class Subscription {
+    final Deque<PubsubMessage> backlog = new ArrayDeque<>();
+    // Messages that have been delivered and not acked, by their ack id.
+    final Map<String, Delivery> outstanding = new LinkedHashMap<>();
+  }
+
+  /** A delivery of a message that waits to be acked. */
+  private static class Delivery {
+    final PubsubMessage message;
+    long deadlineMs;
+
+    Delivery(PubsubMessage message, long deadlineMs) {
+      this.message = message;
+      this.deadlineMs = deadlineMs;
+    }
+  }
+
+  public FakePubsubServer(String name) {
+    this.name = name;
+  }
+
+  /** Start serving calls on the in-process transport named after the server. */
+  public FakePubsubServer start() throws IOException {
+    server =
+        InProcessServerBuilder.forName(name)
+            .addService(new SubscriberService())
+            .addService(new PublisherService())
+            .build()
+            .start();
+    return this;
+  }
+
+  /** Stop serving calls, failing those that are in flight. */
+  public void shutdown() {
+    executor.shutdownNow();
+    if (server != null) {
+      server.shutdownNow();
+    }
+  }
+
+  /** Return a factory of channels to this server, for a {@link ChannelPool}. */
+  public ChannelPool.ChannelFactory channelFactory() {
+    return new ChannelPool.ChannelFactory() {
+      @Override
+      public ManagedChannel create() {
+        return InProcessChannelBuilder.forName(name).build();
+      }
+    };
+  }
+
+  /** Create {@code subscription} on {@code topic}. Both are full resource names. */
+  public synchronized void createSubscription(String topic, String subscription) {
+    if (!topicSubscriptions.containsKey(topic)) {
+      topicSubscriptions.put(topic, new ArrayList<String>());
+    }
+    topicSubscriptions.get(topic).add(subscription);
+    subscriptions.put(subscription, new Subscription());
+  }
+
+  /** Answer every call after between {@code minMs} and {@code maxMs} milliseconds. */
+  public synchronized void setLatencyMs(long minMs, long maxMs) {
+    this.minLatencyMs = minMs;
+    this.maxLatencyMs = Math.max(minMs, maxMs);
+  }
+
+  /** Deliver messages again once they have not been acked for {@code deadlineMs}. */
+  public synchronized void setAckDeadlineMs(long deadlineMs) {
+    this.ackDeadlineMs = deadlineMs;
+  }
+
+  /** Keep a pull that has nothing to return open for up to {@code waitMs}. */
+  public synchronized void setMaxPullWaitMs(long waitMs) {
+    this.maxPullWaitMs = waitMs;
+  }
+
+  /** Send at most {@code messages} messages in each StreamingPull response. */
+  public synchronized void setStreamingPullResponseMessages(int messages) {
+    this.streamingResponseMessages = messages;
+  }
+
+  /** Fail a share {@code rate} (between 0 and 1) of all calls with UNAVAILABLE. */
+  public synchronized void setUnavailableRate(double rate) {
+    this.unavailableRate = rate;
+  }
+
+  /** Ignore a share {@code rate} (between 0 and 1) of the ack ids of successful acknowledges. */
+  public synchronized void setAckDropRate(double rate) {
+    this.ackDropRate = rate;
+  }
+
+  /** Fail every call that has not been answered yet with UNAVAILABLE, as a GOAWAY does. */
+  public void goAway() {
+    List<StreamObserver<?>> failed = new ArrayList<>();
+    synchronized (this) {
+      for (Iterator<Map.Entry<ScheduledFuture<?>, StreamObserver<?>>> it =
+              inFlight.entrySet().iterator();
+          it.hasNext(); ) {
+        Map.Entry<ScheduledFuture<?>, StreamObserver<?>> entry = it.next();
+        if (entry.getKey().cancel(false)) {
+          failed.add(entry.getValue());
+          ++callsFailed;
+        }
+        it.remove();
+      }
+    }
+    for (StreamObserver<?> observer : failed) {
+      observer.onError(Status.UNAVAILABLE.withDescription("GOAWAY").asRuntimeException());
+    }
+    failStreams(Status.UNAVAILABLE.withDescription("GOAWAY"));
+  }
+
+  /** Close every open StreamingPull stream with {@code status}. */
+  public void failStreams(Status status) {
+    List<PullStream> failed;
+    synchronized (this) {
+      failed = new ArrayList<>(streams);
+      callsFailed += failed.size();
+    }
+    for (PullStream stream : failed) {
+      stream.finish(status);
+    }
+  }
+
+  /** Publish {@code message} to {@code topic} and return its message id. */
+  public synchronized String publish(String topic, PubsubMessage message) {
+    String messageId = Long.toString(nextMessageId++);
+    PubsubMessage stamped =
+        message
+            .toBuilder()
+            .setMessageId(messageId)
+            .setPublishTime(Timestamps.fromMillis(System.currentTimeMillis()))
+            .build();
+    List<String> names = topicSubscriptions.get(topic);
+    if (names != null) {
+      for (String subscription : names) {
+        subscriptions.get(subscription).backlog.add(stamped);
+      }
+    }
+    ++published;
+    return messageId;
+  }
+
+  /** Return the number of messages in {@code subscription} that have not been delivered. */
+  public synchronized int backlog(String subscription) {
+    expire(subscriptions.get(subscription));
+    return subscriptions.get(subscription).backlog.size();
+  }
+
+  /** Return the number of messages of {@code subscription} that are delivered and not acked. */
+  public synchronized int outstanding(String subscription) {
+    expire(subscriptions.get(subscription));
+    return subscriptions.get(subscription).outstanding.size();
+  }
+
+  /** Return the number of messages published. */
+  public synchronized long published() {
+    return published;
+  }
+
+  /** Return the number of messages delivered, including those delivered again. */
+  public synchronized long delivered() {
+    return delivered;
+  }
+
+  /** Return the number of messages put back in a backlog because their deadline expired. */
+  public synchronized long redelivered() {
+    return redelivered;
+  }
+
+  /** Return the number of messages acked. */
+  public synchronized long acked() {
+    return acked;
+  }
+
+  /** Return the number of ack ids dropped by {@link #setAckDropRate}. */
+  public synchronized long acksDropped() {
+    return acksDropped;
+  }
+
+  /** Return the number of calls failed with UNAVAILABLE. */
+  public synchronized long callsFailed() {
+    return callsFailed;
+  }
+
+  /** Return the number of StreamingPull streams opened on an existing subscription. */
+  public synchronized long streamsOpened() {
+    return streamsOpened;
+  }
+
+  /** Return the number of StreamingPull streams that are open. */
+  public synchronized int openStreams() {
+    return streams.size();
+  }
+
+  /** Put the messages of {@code subscription} whose deadline has passed back in its backlog. */
+  private void expire(Subscription subscription) {
+    long now = System.currentTimeMillis();
+    for (Iterator<Delivery> it = subscription.outstanding.values().iterator(); it.hasNext(); ) {
+      Delivery delivery = it.next();
+      if (delivery.deadlineMs <= now) {
+        it.remove();
+        subscription.backlog.addFirst(delivery.message);
+        ++redelivered;
+      }
+    }
+  }
+
+  /** Return the subscription named {@code name}, or fail {@code observer} if there is none. */
+  private Subscription getSubscription(String name, StreamObserver<?> observer) {
+    Subscription subscription = subscriptions.get(name);
+    if (subscription == null) {
+      observer.onError(
+          Status.NOT_FOUND.withDescription("Subscription does not exist: " + name)
+              .asRuntimeException());
+    }
+    return subscription;
+  }
+
+  /**
+   * Run {@code answer} after a random latency, unless the call is picked to fail with UNAVAILABLE
+   * or is failed by {@link #goAway} in the meantime.
+   */
+  private synchronized void respond(final StreamObserver<?> observer, final Runnable answer) {
+    if (executor.isShutdown()) {
+      observer.onError(Status.UNAVAILABLE.withDescription("Server shut down").asRuntimeException());
+      return;
+    }
+    final boolean fail = rand.nextDouble() < unavailableRate;
+    long latencyMs =
+        minLatencyMs + (long) (rand.nextDouble() * (maxLatencyMs - minLatencyMs));
+    final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+    self[0] =
+        executor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                synchronized (FakePubsubServer.this) {
+                  // Wait for the task to be registered, and give up if goAway() failed the call.
+                  if (inFlight.remove(self[0]) == null) {
+                    return;
+                  }
+                  if (fail) {
+                    ++callsFailed;
+                  }
+                }
+                if (fail) {
+                  observer.onError(
+                      Status.UNAVAILABLE.withDescription("Injected failure").asRuntimeException());
+                } else {
+                  answer.run();
+                }
+              }
+            },
+            latencyMs,
+            TimeUnit.MILLISECONDS);
+    inFlight.put(self[0], observer);
+  }
+
+  /** Deliver up to the requested messages, waiting for up to {@code waitMs} for some to arrive. */
+  private void pull(
+      final PullRequest request, final StreamObserver<PullResponse> observer, final long waitMs) {
+    PullResponse.Builder response = PullResponse.newBuilder();
+    synchronized (this) {
+      Subscription subscription = getSubscription(request.getSubscription(), observer);
+      if (subscription == null) {
+        return;
+      }
+      response.addAllReceivedMessages(
+          deliver(
+              subscription,
+              request.getMaxMessages(),
+              System.currentTimeMillis() + ackDeadlineMs));
+    }
+    if (response.getReceivedMessagesCount() == 0
+        && !request.getReturnImmediately()
+        && waitMs > 0
+        && !executor.isShutdown()) {
+      executor.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              pull(request, observer, waitMs - PULL_RETRY_MS);
+            }
+          },
+          PULL_RETRY_MS,
+          TimeUnit.MILLISECONDS);
+      return;
+    }
+    observer.onNext(response.build());
+    observer.onCompleted();
+  }
+
+  /**
+   * Deliver up to {@code maxMessages} messages of {@code subscription}, whose deadline expires at
+   * {@code deadlineMs}.
+   */
+  private List<ReceivedMessage> deliver(
+      Subscription subscription, int maxMessages, long deadlineMs) {
+    expire(subscription);
+    List<ReceivedMessage> messages = new ArrayList<>();
+    while (messages.size() < maxMessages && !subscription.backlog.isEmpty()) {
+      PubsubMessage message = subscription.backlog.poll();
+      String ackId = "ack-" + nextAckId++;
+      subscription.outstanding.put(ackId, new Delivery(message, deadlineMs));
+      messages.add(ReceivedMessage.newBuilder().setAckId(ackId).setMessage(message).build());
+      ++delivered;
+    }
+    return messages;
+  }
+
+  /** Ack {@code ackIds} of {@code subscription}, dropping a share of them if configured to. */
+  private void acknowledge(Subscription subscription, List<String> ackIds) {
+    for (String ackId : ackIds) {
+      if (rand.nextDouble() < ackDropRate) {
+        ++acksDropped;
+      } else if (subscription.outstanding.remove(ackId) != null) {
+        ++acked;
+      }
+    }
+  }
+
+  /** Set the deadline of the delivery of {@code ackId}, if it is outstanding. */
+  private void modifyAckDeadline(Subscription subscription, String ackId, int seconds) {
+    Delivery delivery = subscription.outstanding.get(ackId);
+    if (delivery != null) {
+      delivery.deadlineMs = System.currentTimeMillis() + seconds * 1000L;
+    }
+  }
+
+  /**
+   * A StreamingPull stream. The first request names the subscription, and every request may carry
+   * acks and deadline modifications. Responses are sent from the executor whenever the client has
+   * asked for one and there are messages to deliver.
+   */
+  private class PullStream implements StreamObserver<StreamingPullRequest> {
+    // Guarded by this stream, which serializes the responses.
+    final ServerCallStreamObserver<StreamingPullResponse> observer;
+    ScheduledFuture<?> delivery;
+    boolean done = false;
+    // Guarded by the server.
+    Subscription subscription;
+    long streamAckDeadlineMs;
+
+    PullStream(ServerCallStreamObserver<StreamingPullResponse> observer) {
+      this.observer = observer;
+    }
+
+    @Override
+    public void onNext(StreamingPullRequest request) {
+      String missing = null;
+      synchronized (FakePubsubServer.this) {
+        if (subscription == null) {
+          subscription = subscriptions.get(request.getSubscription());
+          if (subscription == null) {
+            missing = request.getSubscription();
+          } else {
+            streamAckDeadlineMs =
+                request.getStreamAckDeadlineSeconds() > 0
+                    ? request.getStreamAckDeadlineSeconds() * 1000L
+                    : ackDeadlineMs;
+            streams.add(this);
+            ++streamsOpened;
+          }
+        }
+        if (subscription != null) {
+          acknowledge(subscription, request.getAckIdsList());
+          for (int i = 0; i < request.getModifyDeadlineAckIdsCount(); ++i) {
+            modifyAckDeadline(
+                subscription,
+                request.getModifyDeadlineAckIds(i),
+                request.getModifyDeadlineSeconds(i));
+          }
+          // A deadline of 0 hands the messages back right away.
+          expire(subscription);
+        }
+      }
+      if (missing != null) {
+        finish(Status.NOT_FOUND.withDescription("Subscription does not exist: " + missing));
+        return;
+      }
+      synchronized (this) {
+        if (delivery == null && !done && !executor.isShutdown()) {
+          delivery =
+              executor.scheduleWithFixedDelay(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      deliver();
+                    }
+                  },
+                  0,
+                  PULL_RETRY_MS,
+                  TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+
+    /** Send the next response if the client has asked for one and there is anything to send. */
+    synchronized void deliver() {
+      if (done || !observer.isReady()) {
+        return;
+      }
+      List<ReceivedMessage> messages;
+      synchronized (FakePubsubServer.this) {
+        messages =
+            FakePubsubServer.this.deliver(
+                subscription,
+                streamingResponseMessages,
+                System.currentTimeMillis() + streamAckDeadlineMs);
+      }
+      if (!messages.isEmpty()) {
+        observer.onNext(
+            StreamingPullResponse.newBuilder().addAllReceivedMessages(messages).build());
+      }
+    }
+
+    /** End the stream, with {@code status} if it is not null and successfully otherwise. */
+    void finish(Status status) {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        stop();
+        if (status == null) {
+          observer.onCompleted();
+        } else {
+          observer.onError(status.asRuntimeException());
+        }
+      }
+      synchronized (FakePubsubServer.this) {
+        streams.remove(this);
+      }
+    }
+
+    /** Stop sending responses. Must hold the lock of the stream. */
+    private void stop() {
+      done = true;
+      if (delivery != null) {
+        delivery.cancel(false);
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      // The client cancelled the stream, so there is no one left to answer.
+      synchronized (this) {
+        stop();
+      }
+      synchronized (FakePubsubServer.this) {
+        streams.remove(this);
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      finish(null);
+    }
+  }
+
+  private class SubscriberService extends SubscriberGrpc.SubscriberImplBase {
+
+    @Override
+    public StreamObserver<StreamingPullRequest> streamingPull(
+        StreamObserver<StreamingPullResponse> observer) {
+      return new PullStream((ServerCallStreamObserver<StreamingPullResponse>) observer);
+    }
+
+    @Override
+    public void pull(final PullRequest request, final StreamObserver<PullResponse> observer) {
+      final long waitMs;
+      synchronized (FakePubsubServer.this) {
+        waitMs = maxPullWaitMs;
+      }
+      respond(
+          observer,
+          new Runnable() {
+            @Override
+            public void run() {
+              FakePubsubServer.this.pull(request, observer, waitMs);
+            }
+          });
+    }
+
+    @Override
+    public void acknowledge(
+        final AcknowledgeRequest request, final StreamObserver<Empty> observer) {
+      respond(
+          observer,
+          new Runnable() {
+            @Override
+            public void run() {
+              synchronized (FakePubsubServer.this) {
+                Subscription subscription = getSubscription(request.getSubscription(), observer);
+                if (subscription == null) {
+                  return;
+                }
+                FakePubsubServer.this.acknowledge(subscription, request.getAckIdsList());
+              }
+              observer.onNext(Empty.getDefaultInstance());
+              observer.onCompleted();
+            }
+          });
+    }
+
+    @Override
+    public void modifyAckDeadline(
+        final ModifyAckDeadlineRequest request, final StreamObserver<Empty> observer) {
+      respond(
+          observer,
+          new Runnable() {
+            @Override
+            public void run() {
+              synchronized (FakePubsubServer.this) {
+                Subscription subscription = getSubscription(request.getSubscription(), observer);
+                if (subscription == null) {
+                  return;
+                }
+                for (String ackId : request.getAckIdsList()) {
+                  FakePubsubServer.this.modifyAckDeadline(
+                      subscription, ackId, request.getAckDeadlineSeconds());
+                }
+                // A deadline of 0 hands the messages back right away.
+                expire(subscription);
+              }
+              observer.onNext(Empty.getDefaultInstance());
+              observer.onCompleted();
+            }
+          });
+    }
+  }
+
+  private class PublisherService extends PublisherGrpc.PublisherImplBase {
+
+    @Override
+    public void publish(
+        final PublishRequest request, final StreamObserver<PublishResponse> observer) {
+      respond(
+          observer,
+          new Runnable() {
+            @Override
+            public void run() {
+              PublishResponse.Builder response = PublishResponse.newBuilder();
+              for (PubsubMessage message : request.getMessagesList()) {
+                response.addMessageIds(FakePubsubServer.this.publish(request.getTopic(), message));
+              }
+              observer.onNext(response.build());
+              observer.onCompleted();
+            }
+          });
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.palmtree.kafka.connector.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.SubscriberGrpc;
+import com.google.pubsub.v1.SubscriberGrpc.SubscriberBlockingStub;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link FakePubsubServer}. */
+public class FakePubsubServerTest {
+
+  private static final String TOPIC = "projects/the/topics/quick";
+  private static final String SUBSCRIPTION = "projects/the/subscriptions/brown";
+  private static final PubsubMessage MESSAGE =
+      PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("fox")).build();
+
+  private FakePubsubServer server;
+  private ManagedChannel channel;
+  private SubscriberBlockingStub subscriber;
+
+  @Before
+  public void setup() throws Exception {
+    server = new FakePubsubServer("fake-cps").start();
+    server.createSubscription(TOPIC, SUBSCRIPTION);
+    server.setMaxPullWaitMs(0);
+    channel = server.channelFactory().create();
+    subscriber = SubscriberGrpc.newBlockingStub(channel);
+  }
+
+  @After
+  public void tearDown() {
+    channel.shutdownNow();
+    server.shutdown();
+  }
+
+  private PullResponse pull(int maxMessages) {
+    return subscriber.pull(
+        PullRequest.newBuilder()
+            .setSubscription(SUBSCRIPTION)
+            .setMaxMessages(maxMessages)
+            .setReturnImmediately(true)
+            .build());
+  }
+
+  /** Tests that published messages are pulled once and are gone once acked. */
+  @Test
+  public void testPublishPullAck() {
+    PublisherGrpc.newBlockingStub(channel)
+        .publish(PublishRequest.newBuilder().setTopic(TOPIC).addMessages(MESSAGE).build());
+    server.publish(TOPIC, MESSAGE);
+    PullResponse response = pull(10);
+    assertEquals(2, response.getReceivedMessagesCount());
+    assertEquals(0, pull(10).getReceivedMessagesCount());
+    subscriber.acknowledge(
+        AcknowledgeRequest.newBuilder()
+            .setSubscription(SUBSCRIPTION)
+            .addAckIds(response.getReceivedMessages(0).getAckId())
+            .addAckIds(response.getReceivedMessages(1).getAckId())
+            .build());
+    assertEquals(2, server.acked());
+    assertEquals(0, server.outstanding(SUBSCRIPTION));
+  }
+
+  /** Tests that a message is delivered again with a new ack id once its deadline expires. */
+  @Test
+  public void testRedeliveryAfterDeadline() throws Exception {
+    server.setAckDeadlineMs(50);
+    server.publish(TOPIC, MESSAGE);
+    String first = pull(1).getReceivedMessages(0).getAckId();
+    Thread.sleep(100);
+    PullResponse response = pull(1);
+    assertEquals(1, response.getReceivedMessagesCount());
+    assertNotEquals(first, response.getReceivedMessages(0).getAckId());
+    assertEquals(1, server.redelivered());
+  }
+
+  /** Tests that extending a deadline delays redelivery and that a deadline of 0 ends it. */
+  @Test
+  public void testModifyAckDeadline() throws Exception {
+    server.setAckDeadlineMs(50);
+    server.publish(TOPIC, MESSAGE);
+    String ackId = pull(1).getReceivedMessages(0).getAckId();
+    ModifyAckDeadlineRequest.Builder request =
+        ModifyAckDeadlineRequest.newBuilder().setSubscription(SUBSCRIPTION).addAckIds(ackId);
+    subscriber.modifyAckDeadline(request.setAckDeadlineSeconds(10).build());
+    Thread.sleep(100);
+    assertEquals(0, pull(1).getReceivedMessagesCount());
+    subscriber.modifyAckDeadline(request.setAckDeadlineSeconds(0).build());
+    assertEquals(1, pull(1).getReceivedMessagesCount());
+  }
+
+  /** Tests that dropped ack ids are left outstanding although the call succeeds. */
+  @Test
+  public void testAckDrop() {
+    server.setAckDropRate(1);
+    server.publish(TOPIC, MESSAGE);
+    subscriber.acknowledge(
+        AcknowledgeRequest.newBuilder()
+            .setSubscription(SUBSCRIPTION)
+            .addAckIds(pull(1).getReceivedMessages(0).getAckId())
+            .build());
+    assertEquals(1, server.acksDropped());
+    assertEquals(1, server.outstanding(SUBSCRIPTION));
+  }
+
+  /** Tests that injected failures and GOAWAYs fail calls with UNAVAILABLE. */
+  @Test
+  public void testUnavailable() throws Exception {
+    server.setUnavailableRate(1);
+    try {
+      pull(1);
+      fail("The pull should have failed.");
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+    }
+    server.setUnavailableRate(0);
+    server.setLatencyMs(10 * 1000, 10 * 1000);
+    Thread goAway =
+        new Thread() {
+          @Override
+          public void run() {
+            while (server.callsFailed() < 2) {
+              server.goAway();
+            }
+          }
+        };
+    goAway.start();
+    try {
+      pull(1);
+      fail("The pull should have failed.");
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+    }
+    goAway.join();
+  }
+}
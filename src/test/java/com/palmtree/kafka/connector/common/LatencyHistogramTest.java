@@ -0,0 +1,50 @@
+package com.palmtree.kafka.connector.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests for {@link LatencyHistogram}. */
+public class LatencyHistogramTest {
+
+  /** Tests that an empty histogram has no percentiles. */
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.count());
+    assertEquals(-1, histogram.percentile(0.99));
+  }
+
+  /** Tests that small values are counted exactly. */
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; ++i) {
+      histogram.record(i);
+    }
+    assertEquals(10, histogram.count());
+    assertEquals(5, histogram.percentile(0.5));
+    assertEquals(10, histogram.percentile(1.0));
+  }
+
+  /** Tests that percentiles of large values are within the histogram's precision. */
+  @Test
+  public void testLargeValuesAreApproximate() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; ++i) {
+      histogram.record(i * 100L);
+    }
+    long p99 = histogram.percentile(0.99);
+    assertTrue(p99 >= 99000 && p99 <= 99000 * 1.07);
+  }
+
+  /** Tests that a reset discards every recorded value. */
+  @Test
+  public void testReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(42);
+    histogram.reset();
+    assertEquals(0, histogram.count());
+  }
+}
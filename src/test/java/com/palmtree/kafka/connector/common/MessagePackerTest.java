@@ -0,0 +1,92 @@
+package com.palmtree.kafka.connector.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.List;
+import org.apache.kafka.connect.errors.DataException;
+import org.junit.Test;
+
+/** Tests for {@link MessagePacker}. */
+public class MessagePackerTest {
+
+  private static PubsubMessage packed(ByteString body) {
+    return PubsubMessage.newBuilder()
+        .setMessageId("id")
+        .setPublishTime(Timestamp.newBuilder().setSeconds(42))
+        .putAttributes(ConnectorUtils.CPS_PACKED_ATTRIBUTE, MessagePacker.FORMAT_VERSION)
+        .setData(body)
+        .build();
+  }
+
+  /** Tests that records come back with their attributes, data and offsets, in order. */
+  @Test
+  public void testRoundTrip() {
+    MessagePacker packer = new MessagePacker();
+    PubsubMessage first =
+        PubsubMessage.newBuilder()
+            .putAttributes(ConnectorUtils.CPS_MESSAGE_KEY_ATTRIBUTE, "fox")
+            .putAttributes("colour", "brown")
+            .setData(ByteString.copyFromUtf8("quick"))
+            .build();
+    PubsubMessage second = PubsubMessage.newBuilder().setData(ByteString.EMPTY).build();
+    packer.add(first, 10);
+    packer.add(second, -1);
+    assertEquals(2, packer.count());
+    assertEquals(-1, packer.lastOffset());
+    PubsubMessage message = packed(packer.drain());
+    assertTrue(packer.isEmpty());
+    assertEquals(0, packer.size());
+    assertTrue(MessagePacker.isPacked(message));
+    List<PubsubMessage> unpacked = MessagePacker.unpack(message, message.getData());
+    assertEquals(2, unpacked.size());
+    assertEquals(first.getAttributesMap(), unpacked.get(0).getAttributesMap());
+    assertEquals(first.getData(), unpacked.get(0).getData());
+    assertEquals("id:10", unpacked.get(0).getMessageId());
+    assertEquals(42, unpacked.get(0).getPublishTime().getSeconds());
+    assertEquals(0, unpacked.get(1).getAttributesCount());
+    assertEquals("id:-1", unpacked.get(1).getMessageId());
+    // The packer starts over after being drained.
+    packer.add(second, 11);
+    assertEquals(1, MessagePacker.unpack(message, packer.drain()).size());
+  }
+
+  /** Tests that the size of a packed body is bounded by the serialized size of its messages. */
+  @Test
+  public void testWouldExceed() {
+    MessagePacker packer = new MessagePacker();
+    PubsubMessage message =
+        PubsubMessage.newBuilder()
+            .putAttributes(ConnectorUtils.CPS_MESSAGE_KEY_ATTRIBUTE, "fox")
+            .setData(ByteString.copyFrom(new byte[200]))
+            .build();
+    int limit = 1000;
+    while (!packer.wouldExceed(message, limit)) {
+      packer.add(message, packer.count());
+    }
+    assertTrue(packer.size() <= limit);
+    assertFalse(packer.isEmpty());
+  }
+
+  @Test(expected = DataException.class)
+  public void testUnknownVersion() {
+    PubsubMessage message =
+        packed(ByteString.EMPTY)
+            .toBuilder()
+            .putAttributes(ConnectorUtils.CPS_PACKED_ATTRIBUTE, "2")
+            .build();
+    MessagePacker.unpack(message, message.getData());
+  }
+
+  @Test(expected = DataException.class)
+  public void testTruncatedBody() {
+    MessagePacker packer = new MessagePacker();
+    packer.add(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("quick")).build(), 1);
+    ByteString body = packer.drain();
+    MessagePacker.unpack(packed(body), body.substring(0, body.size() - 2));
+  }
+}
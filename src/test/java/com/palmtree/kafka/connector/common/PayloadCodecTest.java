@@ -0,0 +1,82 @@
+package com.palmtree.kafka.connector.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.apache.kafka.connect.errors.DataException;
+import org.junit.Test;
+
+/** Tests for {@link PayloadCodec}. */
+public class PayloadCodecTest {
+
+  private static ByteString json(int records) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < records; ++i) {
+      json.append("{\"id\": ").append(i).append(", \"name\": \"quick brown fox\"},");
+    }
+    return ByteString.copyFromUtf8(json.append("]").toString());
+  }
+
+  /** Tests that every codec gives back what it compressed, and that JSON gets smaller. */
+  @Test
+  public void testRoundTrip() {
+    ByteString data = json(1000);
+    for (PayloadCodec codec : PayloadCodec.values()) {
+      ByteString compressed = codec.compress(data);
+      if (codec != PayloadCodec.NONE) {
+        assertTrue(compressed.size() < data.size() / 2);
+      }
+      assertEquals(data, codec.decompress(compressed));
+    }
+  }
+
+  /** Tests that bodies larger than the staging buffers and empty bodies survive a round trip. */
+  @Test
+  public void testRoundTripSizes() {
+    byte[] random = new byte[200 * 1024];
+    new Random(0).nextBytes(random);
+    for (ByteString data : new ByteString[] {ByteString.copyFrom(random), ByteString.EMPTY}) {
+      assertEquals(data, PayloadCodec.GZIP.decompress(PayloadCodec.GZIP.compress(data)));
+      assertEquals(data, PayloadCodec.LZ4.decompress(PayloadCodec.LZ4.compress(data)));
+    }
+  }
+
+  /** Tests that a corrupt lz4 body is reported as bad data. */
+  @Test(expected = DataException.class)
+  public void testCorruptLz4() {
+    PayloadCodec.LZ4.decompress(ByteString.copyFrom(new byte[] {0x7f, 0, 0, 0, 1}));
+  }
+
+  /** Tests that a truncated lz4 block is reported as bad data. */
+  @Test(expected = DataException.class)
+  public void testTruncatedLz4() {
+    ByteString compressed = PayloadCodec.LZ4.compress(json(1000));
+    PayloadCodec.LZ4.decompress(compressed.substring(0, compressed.size() - 16));
+  }
+
+  /** Tests that an lz4 body that does not decompress to its declared size is bad data. */
+  @Test(expected = DataException.class)
+  public void testLz4SizeMismatch() {
+    byte[] compressed = PayloadCodec.LZ4.compress(json(1000)).toByteArray();
+    ByteBuffer.wrap(compressed).putInt(ByteBuffer.wrap(compressed).getInt() + 1);
+    PayloadCodec.LZ4.decompress(ByteString.copyFrom(compressed));
+  }
+
+  /** Tests that a declared size the block could not expand to is rejected. */
+  @Test(expected = DataException.class)
+  public void testImplausibleLz4Size() {
+    PayloadCodec.LZ4.decompress(ByteString.copyFrom(new byte[] {0, 0x10, 0, 0, 0}));
+  }
+
+  /** Tests that codecs are looked up by their config value. */
+  @Test
+  public void testGetEnum() {
+    for (PayloadCodec codec : PayloadCodec.values()) {
+      assertEquals(codec, PayloadCodec.getEnum(codec.toString()));
+    }
+    assertEquals(null, PayloadCodec.getEnum("snappy"));
+  }
+}
@@ -0,0 +1,59 @@
+package com.palmtree.kafka.connector.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Tests for {@link RollingLatencyHistogram}. */
+public class RollingLatencyHistogramTest {
+
+  private static final long WINDOW_MS = 60 * 1000;
+
+  /** Tests that percentiles cover the current and the last complete window. */
+  @Test
+  public void testCoversTwoWindows() {
+    RollingLatencyHistogram histogram = new RollingLatencyHistogram(WINDOW_MS);
+    long now = System.currentTimeMillis();
+    assertEquals(-1, histogram.percentile(0.99, now));
+    histogram.record(10, now);
+    histogram.record(5, now + WINDOW_MS);
+    assertEquals(2, histogram.count(now + WINDOW_MS));
+    assertEquals(10, histogram.percentile(1.0, now + WINDOW_MS));
+    assertEquals(5, histogram.percentile(0.5, now + WINDOW_MS));
+  }
+
+  /** Tests that a slow period stops affecting percentiles once its windows have passed. */
+  @Test
+  public void testForgetsOldValues() {
+    RollingLatencyHistogram histogram = new RollingLatencyHistogram(WINDOW_MS);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 1000; ++i) {
+      histogram.record(15, now);
+    }
+    histogram.record(5, now + WINDOW_MS);
+    assertEquals(15, histogram.percentile(0.99, now + WINDOW_MS));
+    histogram.record(5, now + 2 * WINDOW_MS);
+    assertEquals(5, histogram.percentile(0.99, now + 2 * WINDOW_MS));
+    assertEquals(2, histogram.count(now + 2 * WINDOW_MS));
+  }
+
+  /** Tests that nothing is left once no value has been recorded for two windows. */
+  @Test
+  public void testIdleWindowsAreDropped() {
+    RollingLatencyHistogram histogram = new RollingLatencyHistogram(WINDOW_MS);
+    long now = System.currentTimeMillis();
+    histogram.record(10, now);
+    assertEquals(1, histogram.count(now + WINDOW_MS));
+    assertEquals(0, histogram.count(now + 3 * WINDOW_MS));
+    assertEquals(-1, histogram.percentile(0.99, now + 3 * WINDOW_MS));
+  }
+
+  /** Tests that a reset discards every recorded value. */
+  @Test
+  public void testReset() {
+    RollingLatencyHistogram histogram = new RollingLatencyHistogram(WINDOW_MS);
+    histogram.record(42);
+    histogram.reset();
+    assertEquals(0, histogram.count());
+  }
+}
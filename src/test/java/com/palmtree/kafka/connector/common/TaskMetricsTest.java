@@ -0,0 +1,82 @@
+package com.palmtree.kafka.connector.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import org.junit.Test;
+
+/** Tests for {@link TaskMetrics}. */
+public class TaskMetricsTest {
+
+  /** Tests that counters report their total and their rate over the last window. */
+  @Test
+  public void testCounterRate() throws Exception {
+    TaskMetrics metrics = new TaskMetrics("test", "connector");
+    metrics.counter("Messages").addAndGet(100);
+    metrics.rollNow(System.currentTimeMillis() + 10 * 1000);
+    metrics.counter("Messages").addAndGet(50);
+    assertEquals(150L, metrics.getAttribute("Messages"));
+    double rate = (Double) metrics.getAttribute("MessagesRate");
+    assertTrue(rate > 9 && rate <= 10);
+  }
+
+  /** Tests that histograms report the percentiles of the last window only. */
+  @Test
+  public void testHistogramWindow() throws Exception {
+    TaskMetrics metrics = new TaskMetrics("test", "connector");
+    LatencyHistogram latency = metrics.histogram("LatencyMs");
+    for (int i = 1; i <= 10; ++i) {
+      latency.record(i);
+    }
+    assertEquals(-1L, metrics.getAttribute("LatencyMsP50"));
+    metrics.rollNow(System.currentTimeMillis());
+    assertEquals(5L, metrics.getAttribute("LatencyMsP50"));
+    assertEquals(10L, metrics.getAttribute("LatencyMsP99"));
+    assertEquals(10L, metrics.getAttribute("LatencyMsCount"));
+    metrics.rollNow(System.currentTimeMillis());
+    assertEquals(0L, metrics.getAttribute("LatencyMsCount"));
+  }
+
+  /** Tests that ratios and gauges are reported. */
+  @Test
+  public void testRatioAndGauge() throws Exception {
+    TaskMetrics metrics = new TaskMetrics("test", "connector");
+    metrics.ratio("EmptyRatio", "Empty", "All");
+    metrics.gauge(
+        "Answer",
+        new TaskMetrics.Gauge() {
+          @Override
+          public long value() {
+            return 42;
+          }
+        });
+    metrics.counter("Empty").addAndGet(1);
+    metrics.counter("All").addAndGet(4);
+    metrics.rollNow(System.currentTimeMillis());
+    assertEquals(0.25, (Double) metrics.getAttribute("EmptyRatio"), 0.0001);
+    assertEquals(42L, metrics.getAttribute("Answer"));
+  }
+
+  /** Tests that unknown attributes are reported as such. */
+  @Test(expected = AttributeNotFoundException.class)
+  public void testUnknownAttribute() throws Exception {
+    new TaskMetrics("test", "connector").getAttribute("NoSuchRate");
+  }
+
+  /** Tests that the metrics can be read over JMX once registered. */
+  @Test
+  public void testRegister() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    TaskMetrics metrics = new TaskMetrics("test", "connector");
+    metrics.counter("Messages").incrementAndGet();
+    metrics.register();
+    assertEquals(1L, server.getAttribute(metrics.getObjectName(), "Messages"));
+    metrics.unregister();
+    metrics.unregister();
+    assertFalse(server.isRegistered(metrics.getObjectName()));
+  }
+}
@@ -1,27 +1,33 @@
 package com.palmtree.kafka.connector.sink;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
 import com.google.cloud.pubsub.v1.Publisher;
 import com.google.protobuf.ByteString;
 import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.MessagePacker;
+import com.palmtree.kafka.connector.common.PayloadCodec;
 import com.google.pubsub.v1.PubsubMessage;
-import java.lang.Runnable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.record.TimestampType;
@@ -31,6 +37,7 @@ import org.apache.kafka.connect.data.SchemaBuilder;
 import org.apache.kafka.connect.data.Struct;
 import org.apache.kafka.connect.errors.DataException;
 import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTaskContext;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -56,52 +63,6 @@ public class SampleSinkTaskTest {
   private Map<String, String> props;
   private Publisher publisher;
 
-  private class SpyableFuture<V> implements ApiFuture<V> {
-    private V value = null;
-    private Throwable exception = null;
-
-    public SpyableFuture(V value) {
-      this.value = value;
-    }
-
-    public <V> SpyableFuture(Throwable exception) {
-      this.exception = exception;
-    }
-
-    @Override
-    public V get() throws ExecutionException {
-      if (exception != null) {
-        throw new ExecutionException(exception);
-      }
-      return value;
-    }
-
-    @Override
-    public V get(long timeout, TimeUnit unit) throws ExecutionException {
-      return get();
-    }
-
-    @Override
-    public boolean cancel(boolean mayInterruptIfRunning) {
-      return false;
-    }
-
-    @Override
-    public boolean isCancelled() {
-      return false;
-    }
-
-    @Override
-    public boolean isDone() {
-      return true;
-    }
-
-    @Override
-    public void addListener(Runnable listener, Executor executor) {
-      executor.execute(listener);
-    }
-  }
-
   @Before
   public void setup() {
     publisher = mock(Publisher.class, RETURNS_DEEP_STUBS);
@@ -249,6 +210,33 @@ public class SampleSinkTaskTest {
     } catch (DataException e) { } // Expected, pass.
   }
 
+  @Test
+  public void testArrayEncoding() {
+    task.start(props);
+    // Large enough to outgrow the encode buffer.
+    Integer[] ints = new Integer[10000];
+    ByteBuffer expected = ByteBuffer.allocate(4 * ints.length);
+    for (int i = 0; i < ints.length; ++i) {
+      ints[i] = i * 31;
+      expected.putInt(ints[i]);
+    }
+    expected.flip();
+    Schema schema = SchemaBuilder.array(Schema.INT32_SCHEMA).build();
+    assertEquals(
+        ByteString.copyFrom(expected),
+        task.handleValue(schema, ints, PubsubMessage.newBuilder()));
+    schema = SchemaBuilder.array(SchemaBuilder.array(Schema.STRING_SCHEMA)).build();
+    List<List<String>> nested = new ArrayList<>();
+    nested.add(Arrays.asList("Roll", " "));
+    nested.add(Arrays.asList("tide"));
+    assertEquals(
+        ByteString.copyFromUtf8("Roll tide"),
+        task.handleValue(schema, nested, PubsubMessage.newBuilder()));
+    assertEquals(
+        ByteString.copyFrom(new byte[] {0, 0, 0, 42}),
+        task.handleValue(Schema.INT32_SCHEMA, 42, PubsubMessage.newBuilder()));
+  }
+
   @Test
   public void testNullSchema() {
     task.start(props);
@@ -275,38 +263,35 @@ public class SampleSinkTaskTest {
   }
 
   /**
-   * Tests that a call to flush() processes the Futures that were generated by calls to put.
+   * Tests that bodies of at least the minimum size are compressed and marked with their codec, and
+   * that smaller bodies are sent as they are.
    */
   @Test
-  public void testFlushWithNoPublishInPut() throws Exception {
+  public void testPutWithCompression() throws Exception {
+    props.put(SampleSinkConnector.CPS_COMPRESSION_CONFIG, PayloadCodec.GZIP.toString());
+    props.put(SampleSinkConnector.CPS_COMPRESSION_MIN_BYTES_CONFIG, "100");
     task.start(props);
-    Map<TopicPartition, OffsetAndMetadata> partitionOffsets = new HashMap<>();
-    partitionOffsets.put(new TopicPartition(KAFKA_TOPIC, 0), null);
-    List<SinkRecord> records = getSampleRecords();
-    ApiFuture<String> goodFuture = getSuccessfulPublishFuture();
-    when(publisher.publish(any(PubsubMessage.class))).thenReturn(goodFuture);
-    task.put(records);
-    task.flush(partitionOffsets);
-    verify(publisher, times(2)).publish(any(PubsubMessage.class));
-    verify(goodFuture, times(2)).addListener(any(Runnable.class), any(Executor.class));
-  }
-
-  /**
-   * Tests that if a Future that is being processed in flush() failed with an exception, that an
-   * exception is thrown.
-   */
-  @Test(expected = RuntimeException.class)
-  public void testFlushExceptionCase() throws Exception {
-    task.start(props);
-    Map<TopicPartition, OffsetAndMetadata> partitionOffsets = new HashMap<>();
-    partitionOffsets.put(new TopicPartition(KAFKA_TOPIC, 0), null);
-    List<SinkRecord> records = getSampleRecords();
-    ApiFuture<String> badFuture = getFailedPublishFuture();
-    when(publisher.publish(any(PubsubMessage.class))).thenReturn(badFuture);
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      large.append("{\"fox\": \"jumps\"}");
+    }
+    List<SinkRecord> records = new ArrayList<>();
+    records.add(new SinkRecord(KAFKA_TOPIC, 0, null, null, STRING_SCHEMA, large.toString(), -1));
+    records.add(new SinkRecord(KAFKA_TOPIC, 0, null, null, STRING_SCHEMA, FIELD_STRING1, -1));
     task.put(records);
-    task.flush(partitionOffsets);
-    verify(publisher, times(1)).publish(any(PubsubMessage.class));
-    verify(badFuture, times(1)).addListener(any(Runnable.class), any(Executor.class));
+    ArgumentCaptor<PubsubMessage> captor = ArgumentCaptor.forClass(PubsubMessage.class);
+    verify(publisher, times(2)).publish(captor.capture());
+    PubsubMessage compressed = captor.getAllValues().get(0);
+    assertEquals(
+        PayloadCodec.GZIP.toString(),
+        compressed.getAttributesOrThrow(ConnectorUtils.CPS_CODEC_ATTRIBUTE));
+    assertTrue(compressed.getData().size() < large.length());
+    assertEquals(
+        ByteString.copyFromUtf8(large.toString()),
+        PayloadCodec.GZIP.decompress(compressed.getData()));
+    PubsubMessage small = captor.getAllValues().get(1);
+    assertEquals(0, small.getAttributesCount());
+    assertEquals(ByteString.copyFromUtf8(FIELD_STRING1), small.getData());
   }
 
   /**
@@ -369,6 +354,224 @@ public class SampleSinkTaskTest {
   }
 
   /** Get some sample SinkRecords's to use in the tests. */
+  @Test
+  public void testConvertRecordDoesNotCarryAttributesOver() {
+    props.put(SampleSinkConnector.PUBLISH_KAFKA_METADATA, "true");
+    task.start(props);
+    String body = SampleSinkConnector.DEFAULT_MESSAGE_BODY_NAME;
+    Schema schema =
+        SchemaBuilder.struct()
+            .field(body, SchemaBuilder.string())
+            .field(FIELD_STRING1, SchemaBuilder.string())
+            .build();
+    Struct struct = new Struct(schema).put(body, "tide").put(FIELD_STRING1, "eagle");
+    PubsubMessage first =
+        task.convertRecord(
+            new SinkRecord(
+                KAFKA_TOPIC,
+                7,
+                null,
+                KAFKA_MESSAGE_KEY,
+                schema,
+                struct,
+                1000,
+                50000L,
+                TimestampType.CREATE_TIME));
+    assertEquals("eagle", first.getAttributesOrThrow(FIELD_STRING1));
+    assertEquals("7", first.getAttributesOrThrow(ConnectorUtils.KAFKA_PARTITION_ATTRIBUTE));
+    PubsubMessage second =
+        task.convertRecord(
+            new SinkRecord(KAFKA_TOPIC, 2, null, null, STRING_SCHEMA, FIELD_STRING2, 1001));
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(ConnectorUtils.KAFKA_TOPIC_ATTRIBUTE, KAFKA_TOPIC);
+    attributes.put(ConnectorUtils.KAFKA_PARTITION_ATTRIBUTE, "2");
+    attributes.put(ConnectorUtils.KAFKA_OFFSET_ATTRIBUTE, "1001");
+    assertEquals(attributes, second.getAttributesMap());
+    assertEquals(ByteString.copyFromUtf8(FIELD_STRING2), second.getData());
+  }
+
+  /** Tests that the committable offset of a partition only passes publishes that completed. */
+  @Test
+  public void testPreCommitReportsContiguousPublishedOffsets() {
+    task.start(props);
+    List<SettableApiFuture<String>> futures = new ArrayList<>();
+    List<SinkRecord> records = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      futures.add(SettableApiFuture.<String>create());
+      records.add(new SinkRecord(KAFKA_TOPIC, 0, null, null, STRING_SCHEMA, FIELD_STRING1, 10 + i));
+    }
+    when(publisher.publish(any(PubsubMessage.class)))
+        .thenReturn(futures.get(0), futures.get(1), futures.get(2));
+    task.put(records);
+    TopicPartition partition = new TopicPartition(KAFKA_TOPIC, 0);
+    Map<TopicPartition, OffsetAndMetadata> currentOffsets = new HashMap<>();
+    currentOffsets.put(partition, new OffsetAndMetadata(13));
+    assertTrue(task.preCommit(currentOffsets).isEmpty());
+    futures.get(1).set("b");
+    assertTrue(task.preCommit(currentOffsets).isEmpty());
+    futures.get(0).set("a");
+    assertEquals(new OffsetAndMetadata(12), task.preCommit(currentOffsets).get(partition));
+    futures.get(2).set("c");
+    assertEquals(new OffsetAndMetadata(13), task.preCommit(currentOffsets).get(partition));
+  }
+
+  /**
+   * Tests that a failed publish rewinds its partition to the offset up to which every record was
+   * published, and that other partitions keep being committed.
+   */
+  @Test
+  public void testPreCommitAfterFailedPublish() {
+    SinkTaskContext context = mock(SinkTaskContext.class);
+    task.initialize(context);
+    task.start(props);
+    List<SettableApiFuture<String>> futures = new ArrayList<>();
+    List<SinkRecord> records = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      futures.add(SettableApiFuture.<String>create());
+      records.add(new SinkRecord(KAFKA_TOPIC, 0, null, null, STRING_SCHEMA, FIELD_STRING1, 10 + i));
+    }
+    futures.add(SettableApiFuture.<String>create());
+    records.add(new SinkRecord(KAFKA_TOPIC, 1, null, null, STRING_SCHEMA, FIELD_STRING1, 20));
+    when(publisher.publish(any(PubsubMessage.class)))
+        .thenReturn(futures.get(0), futures.get(1), futures.get(2), futures.get(3));
+    task.put(records);
+    futures.get(0).set("a");
+    futures.get(1).setException(new Exception());
+    futures.get(2).set("c");
+    futures.get(3).set("d");
+    TopicPartition failed = new TopicPartition(KAFKA_TOPIC, 0);
+    TopicPartition healthy = new TopicPartition(KAFKA_TOPIC, 1);
+    Map<TopicPartition, OffsetAndMetadata> committable =
+        task.preCommit(new HashMap<TopicPartition, OffsetAndMetadata>());
+    verify(context).offset(failed, 11);
+    assertEquals(null, committable.get(failed));
+    assertEquals(new OffsetAndMetadata(21), committable.get(healthy));
+    // Tracking of the failed partition starts from scratch for the records that are put again.
+    SettableApiFuture<String> retry = SettableApiFuture.create();
+    when(publisher.publish(any(PubsubMessage.class))).thenReturn(retry);
+    task.put(
+        Arrays.asList(
+            new SinkRecord(KAFKA_TOPIC, 0, null, null, STRING_SCHEMA, FIELD_STRING1, 11)));
+    retry.set("b");
+    committable = task.preCommit(new HashMap<TopicPartition, OffsetAndMetadata>());
+    assertEquals(new OffsetAndMetadata(12), committable.get(failed));
+    verify(context, times(1)).offset(any(TopicPartition.class), anyLong());
+  }
+
+  /** Tests that a partition whose first publish failed is rewound to its first record. */
+  @Test
+  public void testPreCommitRewindsToFirstRecord() {
+    SinkTaskContext context = mock(SinkTaskContext.class);
+    task.initialize(context);
+    task.start(props);
+    SettableApiFuture<String> future = SettableApiFuture.create();
+    when(publisher.publish(any(PubsubMessage.class))).thenReturn(future);
+    task.put(
+        Arrays.asList(
+            new SinkRecord(KAFKA_TOPIC, 0, null, null, STRING_SCHEMA, FIELD_STRING1, 7)));
+    future.setException(new Exception());
+    assertTrue(task.preCommit(new HashMap<TopicPartition, OffsetAndMetadata>()).isEmpty());
+    verify(context).offset(new TopicPartition(KAFKA_TOPIC, 0), 7);
+  }
+
+  /** Tests that partitions are paused while too many messages are published and then resumed. */
+  @Test
+  public void testPauseAndResumeOnOutstandingMessages() {
+    props.put(SampleSinkConnector.CPS_MAX_OUTSTANDING_MESSAGES_CONFIG, "2");
+    SinkTaskContext context = mock(SinkTaskContext.class);
+    task.initialize(context);
+    task.start(props);
+    SettableApiFuture<String> future = SettableApiFuture.create();
+    when(publisher.publish(any(PubsubMessage.class))).thenReturn(future);
+    task.put(getSampleRecords());
+    TopicPartition partition = new TopicPartition(KAFKA_TOPIC, 0);
+    verify(context).pause(partition);
+    task.put(new ArrayList<SinkRecord>());
+    verify(context, never()).resume(any(TopicPartition.class));
+    future.set("abcd");
+    task.put(new ArrayList<SinkRecord>());
+    verify(context).resume(partition);
+  }
+
+  /**
+   * Tests that a paused partition is resumed when it is revoked, so that it is not paused for good
+   * if it is assigned to the task again.
+   */
+  @Test
+  public void testCloseResumesPausedPartitions() {
+    props.put(SampleSinkConnector.CPS_MAX_OUTSTANDING_MESSAGES_CONFIG, "2");
+    SinkTaskContext context = mock(SinkTaskContext.class);
+    task.initialize(context);
+    task.start(props);
+    SettableApiFuture<String> future = SettableApiFuture.create();
+    when(publisher.publish(any(PubsubMessage.class))).thenReturn(future);
+    task.put(getSampleRecords());
+    TopicPartition partition = new TopicPartition(KAFKA_TOPIC, 0);
+    verify(context).pause(partition);
+    task.close(Collections.singletonList(partition));
+    verify(context).resume(partition);
+    // The partition is no longer tracked, so it is not resumed a second time.
+    future.set("abcd");
+    task.put(new ArrayList<SinkRecord>());
+    verify(context, times(1)).resume(any(TopicPartition.class));
+  }
+
+  /** Tests that every record of a partition is published by the same one of several publishers. */
+  @Test
+  public void testPublishersShardedByPartition() {
+    Publisher first = mock(Publisher.class, RETURNS_DEEP_STUBS);
+    Publisher second = mock(Publisher.class, RETURNS_DEEP_STUBS);
+    task = new SampleSinkTask(Arrays.asList(first, second));
+    task.start(props);
+    List<SinkRecord> records = new ArrayList<>();
+    for (int i = 0; i < 40; ++i) {
+      records.add(new SinkRecord(KAFKA_TOPIC, i % 4, null, null, STRING_SCHEMA, "" + i % 4, i));
+    }
+    task.put(records);
+    ArgumentCaptor<PubsubMessage> firstCaptor = ArgumentCaptor.forClass(PubsubMessage.class);
+    verify(first, atLeastOnce()).publish(firstCaptor.capture());
+    ArgumentCaptor<PubsubMessage> secondCaptor = ArgumentCaptor.forClass(PubsubMessage.class);
+    verify(second, atLeastOnce()).publish(secondCaptor.capture());
+    assertEquals(40, firstCaptor.getAllValues().size() + secondCaptor.getAllValues().size());
+    // The body of each message is its partition.
+    for (PubsubMessage message : firstCaptor.getAllValues()) {
+      assertFalse(secondCaptor.getAllValues().contains(message));
+    }
+  }
+
+  /** Tests that consecutive records of a partition are packed up to the record limit. */
+  @Test
+  public void testPutWithPacking() {
+    props.put(SampleSinkConnector.CPS_PACKING_MAX_RECORDS_CONFIG, "3");
+    task.start(props);
+    List<SinkRecord> records = new ArrayList<>();
+    for (int i = 0; i < 9; ++i) {
+      int partition = i < 7 ? 0 : 1;
+      records.add(
+          new SinkRecord(
+              KAFKA_TOPIC, partition, STRING_SCHEMA, KAFKA_MESSAGE_KEY, STRING_SCHEMA, "" + i, i));
+    }
+    task.put(records);
+    ArgumentCaptor<PubsubMessage> captor = ArgumentCaptor.forClass(PubsubMessage.class);
+    verify(publisher, times(4)).publish(captor.capture());
+    List<String> values = new ArrayList<>();
+    int[] sizes = new int[4];
+    for (int i = 0; i < 4; ++i) {
+      PubsubMessage message = captor.getAllValues().get(i);
+      assertTrue(MessagePacker.isPacked(message));
+      List<PubsubMessage> unpacked = MessagePacker.unpack(message, message.getData());
+      sizes[i] = unpacked.size();
+      for (PubsubMessage record : unpacked) {
+        assertEquals(
+            KAFKA_MESSAGE_KEY,
+            record.getAttributesOrThrow(ConnectorUtils.CPS_MESSAGE_KEY_ATTRIBUTE));
+        values.add(record.getData().toStringUtf8());
+      }
+    }
+    assertArrayEquals(new int[] {3, 3, 1, 2}, sizes);
+    assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8"), values);
+  }
+
   private List<SinkRecord> getSampleRecords() {
     List<SinkRecord> records = new ArrayList<>();
     records.add(
@@ -406,14 +609,4 @@ public class SampleSinkTaskTest {
         PubsubMessage.newBuilder().putAllAttributes(attributes).setData(KAFKA_MESSAGE2).build());
     return messages;
   }
-
-  private ApiFuture<String> getSuccessfulPublishFuture() {
-    SpyableFuture<String> future = new SpyableFuture("abcd");
-    return spy(future);
-  }
-
-  private ApiFuture<String> getFailedPublishFuture() {
-    SpyableFuture<String> future = new SpyableFuture(new Exception());
-    return spy(future);
-  }
 }
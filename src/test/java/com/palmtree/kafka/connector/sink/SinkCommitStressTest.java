@@ -0,0 +1,149 @@
+package com.palmtree.kafka.connector.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.pubsub.v1.PubsubMessage;
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Puts records on several partitions while their publishes complete out of order on other threads,
+ * and commits after every batch the way Kafka Connect does. Checks that a commit through {@link
+ * SampleSinkTask#preCommit} does not stall the consumer thread for the slowest publish, as waiting
+ * for every publish would.
+ */
+public class SinkCommitStressTest {
+
+  private static final String KAFKA_TOPIC = "stress";
+  private static final int PARTITIONS = 4;
+  private static final int BATCHES = 20;
+  private static final int BATCH_SIZE = 200;
+  // One partition is much slower than the others, as when its messages are large.
+  private static final long SLOW_PUBLISH_MS = 100;
+  private static final long FAST_PUBLISH_MS = 5;
+  private static final long RECORDS_PER_PARTITION = (long) BATCHES * BATCH_SIZE / PARTITIONS;
+
+  private ScheduledExecutorService publishThreads;
+  private SampleSinkTask task;
+  private final Random random = new Random(0);
+
+  @Before
+  public void setup() {
+    publishThreads = Executors.newScheduledThreadPool(4);
+    Publisher publisher = mock(Publisher.class);
+    when(publisher.publish(any(PubsubMessage.class)))
+        .thenAnswer(
+            new Answer<ApiFuture<String>>() {
+              @Override
+              public ApiFuture<String> answer(InvocationOnMock invocation) {
+                PubsubMessage message = (PubsubMessage) invocation.getArguments()[0];
+                final SettableApiFuture<String> future = SettableApiFuture.create();
+                boolean slow = message.getData().byteAt(0) == 0;
+                long delayMs =
+                    (long) ((slow ? SLOW_PUBLISH_MS : FAST_PUBLISH_MS) * random.nextDouble());
+                publishThreads.schedule(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        future.set("id");
+                      }
+                    },
+                    delayMs,
+                    TimeUnit.MILLISECONDS);
+                return future;
+              }
+            });
+    task = new SampleSinkTask(publisher);
+    Map<String, String> props = new HashMap<>();
+    props.put(ConnectorUtils.CPS_PROJECT_CONFIG, "project");
+    props.put(ConnectorUtils.CPS_TOPIC_CONFIG, "topic");
+    task.start(props);
+  }
+
+  @After
+  public void tearDown() {
+    task.stop();
+    publishThreads.shutdownNow();
+  }
+
+  @Test
+  public void testPreCommitDoesNotStallConsumer() throws Exception {
+    Map<TopicPartition, OffsetAndMetadata> committed = new HashMap<>();
+    long stallMs = run(committed);
+    // Waiting for every publish would take up to SLOW_PUBLISH_MS per batch.
+    assertTrue(
+        "preCommit stalled for " + stallMs + "ms", stallMs < BATCHES * SLOW_PUBLISH_MS / 10);
+    // Once every publish has completed, every record is committable.
+    publishThreads.shutdown();
+    publishThreads.awaitTermination(10, TimeUnit.SECONDS);
+    Map<TopicPartition, OffsetAndMetadata> finalOffsets =
+        task.preCommit(new HashMap<TopicPartition, OffsetAndMetadata>());
+    for (int partition = 0; partition < PARTITIONS; ++partition) {
+      TopicPartition topicPartition = new TopicPartition(KAFKA_TOPIC, partition);
+      assertEquals(RECORDS_PER_PARTITION, finalOffsets.get(topicPartition).offset());
+      assertTrue(committed.get(topicPartition).offset() <= RECORDS_PER_PARTITION);
+    }
+  }
+
+  /**
+   * Put {@link #BATCHES} batches and commit after each, returning the total time spent committing.
+   * The offsets returned by {@code preCommit} are checked to never go backwards and are left in
+   * {@code committed}.
+   */
+  private long run(Map<TopicPartition, OffsetAndMetadata> committed) {
+    long stallMs = 0;
+    for (int batch = 0; batch < BATCHES; ++batch) {
+      List<SinkRecord> records = new ArrayList<>();
+      Map<TopicPartition, OffsetAndMetadata> currentOffsets = new HashMap<>();
+      for (int i = 0; i < BATCH_SIZE; ++i) {
+        int partition = i % PARTITIONS;
+        long offset = (long) batch * BATCH_SIZE / PARTITIONS + i / PARTITIONS;
+        records.add(
+            new SinkRecord(
+                KAFKA_TOPIC,
+                partition,
+                null,
+                null,
+                Schema.BYTES_SCHEMA,
+                new byte[] {(byte) partition},
+                offset));
+        currentOffsets.put(
+            new TopicPartition(KAFKA_TOPIC, partition), new OffsetAndMetadata(offset + 1));
+      }
+      task.put(records);
+      long startMs = System.currentTimeMillis();
+      Map<TopicPartition, OffsetAndMetadata> offsets = task.preCommit(currentOffsets);
+      for (Map.Entry<TopicPartition, OffsetAndMetadata> offset : offsets.entrySet()) {
+        OffsetAndMetadata previous = committed.get(offset.getKey());
+        assertTrue(previous == null || previous.offset() <= offset.getValue().offset());
+        assertTrue(offset.getValue().offset() <= currentOffsets.get(offset.getKey()).offset());
+        committed.put(offset.getKey(), offset.getValue());
+      }
+      stallMs += System.currentTimeMillis() - startMs;
+    }
+    return stallMs;
+  }
+}
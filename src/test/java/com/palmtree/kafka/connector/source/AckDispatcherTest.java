@@ -0,0 +1,166 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/** Tests for {@link AckDispatcher}. */
+public class AckDispatcherTest {
+
+  private static final String SUBSCRIPTION = "projects/the/subscriptions/quick";
+  private static final long LINGER_MS = 10000;
+
+  private SampleSubscriber subscriber;
+  private AckStateTable ackStates;
+
+  @Before
+  public void setup() {
+    subscriber = mock(SampleSubscriber.class);
+    ackStates = new AckStateTable();
+  }
+
+  /** Tests that a backlog of acks is split into requests of at most the batch size. */
+  @Test
+  public void testFlushSplitsBatches() {
+    AckDispatcher dispatcher = new AckDispatcher(subscriber, ackStates, SUBSCRIPTION, 2,
+        500000L, LINGER_MS, 10);
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class)))
+        .thenReturn(Futures.immediateFuture(Empty.getDefaultInstance()));
+    deliver("a", "b", "c", "d", "e");
+    dispatcher.flush();
+    ArgumentCaptor<AcknowledgeRequest> captor = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, times(3)).ackMessages(captor.capture());
+    List<AcknowledgeRequest> requests = captor.getAllValues();
+    assertEquals(Arrays.asList("a", "b"), requests.get(0).getAckIdsList());
+    assertEquals(Arrays.asList("c", "d"), requests.get(1).getAckIdsList());
+    assertEquals(Arrays.asList("e"), requests.get(2).getAckIdsList());
+    assertEquals(0, ackStates.count(AckStateTable.State.IN_FLIGHT));
+  }
+
+  /** Tests that acks that fill a request by bytes are sent without waiting for the linger time. */
+  @Test
+  public void testRequestFullByBytesIsSentRightAway() {
+    long requestBytes =
+        CodedOutputStream.computeStringSize(
+                AcknowledgeRequest.SUBSCRIPTION_FIELD_NUMBER, SUBSCRIPTION)
+            + AckStateTable.encodedSize("a")
+            + AckStateTable.encodedSize("b");
+    AckDispatcher dispatcher = new AckDispatcher(subscriber, ackStates, SUBSCRIPTION, 100,
+        requestBytes, LINGER_MS, 10);
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class)))
+        .thenReturn(Futures.immediateFuture(Empty.getDefaultInstance()));
+    dispatcher.delivered("a");
+    verify(subscriber, never()).ackMessages(any(AcknowledgeRequest.class));
+    dispatcher.delivered("b");
+    ArgumentCaptor<AcknowledgeRequest> captor = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, timeout(1000)).ackMessages(captor.capture());
+    assertEquals(Arrays.asList("a", "b"), captor.getValue().getAckIdsList());
+  }
+
+  /** Tests that only the ack ids of a failed request are sent again. */
+  @Test
+  public void testOnlyFailedSliceIsRetried() {
+    AckDispatcher dispatcher = new AckDispatcher(subscriber, ackStates, SUBSCRIPTION, 2,
+        500000L, LINGER_MS, 10);
+    ListenableFuture<Empty> good = Futures.immediateFuture(Empty.getDefaultInstance());
+    ListenableFuture<Empty> bad = Futures.immediateFailedFuture(new Exception());
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(good, bad, good);
+    deliver("a", "b", "c", "d");
+    dispatcher.flush();
+    assertEquals(2, ackStates.count(AckStateTable.State.DELIVERED));
+    dispatcher.flush();
+    ArgumentCaptor<AcknowledgeRequest> captor = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, times(3)).ackMessages(captor.capture());
+    assertEquals(Arrays.asList("c", "d"), captor.getAllValues().get(2).getAckIdsList());
+    assertEquals(0, ackStates.count(AckStateTable.State.DELIVERED));
+  }
+
+  /** Tests that no more than the maximum number of requests are outstanding at once. */
+  @Test
+  public void testOutstandingRequestsAreBounded() {
+    AckDispatcher dispatcher = new AckDispatcher(subscriber, ackStates, SUBSCRIPTION, 1,
+        500000L, LINGER_MS, 2);
+    SettableFuture<Empty> first = SettableFuture.create();
+    SettableFuture<Empty> second = SettableFuture.create();
+    SettableFuture<Empty> third = SettableFuture.create();
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(first, second, third);
+    deliver("a", "b", "c");
+    dispatcher.flush();
+    verify(subscriber, times(2)).ackMessages(any(AcknowledgeRequest.class));
+    first.set(Empty.getDefaultInstance());
+    // The completed request makes room for the remaining ack on the dispatcher's thread.
+    verify(subscriber, timeout(1000).times(3)).ackMessages(any(AcknowledgeRequest.class));
+  }
+
+  /** Tests that closing waits for outstanding requests and then sends every remaining ack. */
+  @Test
+  public void testCloseSendsRemainingAcks() {
+    AckDispatcher dispatcher = new AckDispatcher(subscriber, ackStates, SUBSCRIPTION, 1,
+        500000L, LINGER_MS, 1);
+    final SettableFuture<Empty> first = SettableFuture.create();
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class)))
+        .thenReturn(first, Futures.immediateFuture(Empty.getDefaultInstance()));
+    deliver("a", "b", "c");
+    dispatcher.flush();
+    // Only one request may be outstanding, so "b" and "c" wait for the first one.
+    verify(subscriber, times(1)).ackMessages(any(AcknowledgeRequest.class));
+    new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  Thread.sleep(100);
+                } catch (InterruptedException e) {
+                  return;
+                }
+                first.set(Empty.getDefaultInstance());
+              }
+            })
+        .start();
+    dispatcher.close();
+    verify(subscriber, times(3)).ackMessages(any(AcknowledgeRequest.class));
+    assertEquals(0, ackStates.count(AckStateTable.State.DELIVERED));
+    assertEquals(0, ackStates.count(AckStateTable.State.IN_FLIGHT));
+  }
+
+  /** Tests that closing retries acks whose request failed. */
+  @Test
+  public void testCloseRetriesFailedAcks() {
+    AckDispatcher dispatcher = new AckDispatcher(subscriber, ackStates, SUBSCRIPTION, 10,
+        500000L, 10, 10);
+    ListenableFuture<Empty> good = Futures.immediateFuture(Empty.getDefaultInstance());
+    ListenableFuture<Empty> bad = Futures.immediateFailedFuture(new Exception());
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(bad, good);
+    deliver("a", "b");
+    dispatcher.close();
+    verify(subscriber, times(2)).ackMessages(any(AcknowledgeRequest.class));
+    assertEquals(0, ackStates.count(AckStateTable.State.DELIVERED));
+    assertEquals(0, ackStates.count(AckStateTable.State.IN_FLIGHT));
+  }
+
+  // Marks the ack ids delivered in the table directly, so that the dispatcher does not start a
+  // background flush that races with the one under test.
+  private void deliver(String... ackIds) {
+    for (String ackId : ackIds) {
+      ackStates.receive(ackId);
+      ackStates.deliver(ackId);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/** Tests for {@link AckLeaseManager}. */
+public class AckLeaseManagerTest {
+
+  private static final String SUBSCRIPTION = "projects/the/subscriptions/quick";
+
+  private SampleSubscriber subscriber;
+
+  @Before
+  public void setup() {
+    subscriber = mock(SampleSubscriber.class);
+    when(subscriber.modifyAckDeadline(any(ModifyAckDeadlineRequest.class)))
+        .thenReturn(Futures.immediateFuture(Empty.getDefaultInstance()));
+  }
+
+  /** Tests that ack ids about to expire are extended in batches of at most the batch size. */
+  @Test
+  public void testExtendsExpiringDeadlines() {
+    // Every message expires right away.
+    AckStateTable ackStates = new AckStateTable(0);
+    ackStates.receive("a");
+    ackStates.receive("b");
+    ackStates.receive("c");
+    AckLeaseManager manager =
+        new AckLeaseManager(subscriber, ackStates, SUBSCRIPTION, 2, 500000L, 10, 60000L);
+    manager.extendDeadlines();
+    ArgumentCaptor<ModifyAckDeadlineRequest> captor =
+        ArgumentCaptor.forClass(ModifyAckDeadlineRequest.class);
+    verify(subscriber, times(2)).modifyAckDeadline(captor.capture());
+    List<ModifyAckDeadlineRequest> requests = captor.getAllValues();
+    assertEquals(3, requests.get(0).getAckIdsCount() + requests.get(1).getAckIdsCount());
+    assertEquals(SUBSCRIPTION, requests.get(0).getSubscription());
+    assertEquals(10, requests.get(0).getAckDeadlineSeconds());
+    // The extended deadlines are not close to expiring anymore.
+    manager.extendDeadlines();
+    verify(subscriber, times(2)).modifyAckDeadline(any(ModifyAckDeadlineRequest.class));
+  }
+
+  /** Tests that deadlines far from expiring are left alone. */
+  @Test
+  public void testSkipsDeadlinesFarFromExpiring() {
+    AckStateTable ackStates = new AckStateTable(60000L);
+    ackStates.receive("a");
+    AckLeaseManager manager =
+        new AckLeaseManager(subscriber, ackStates, SUBSCRIPTION, 2, 500000L, 10, 60000L);
+    manager.extendDeadlines();
+    verify(subscriber, never()).modifyAckDeadline(any(ModifyAckDeadlineRequest.class));
+  }
+
+  /** Tests that messages outstanding for longer than the maximum extension are not extended. */
+  @Test
+  public void testStopsExtendingAfterMaxExtensionPeriod() throws Exception {
+    AckStateTable ackStates = new AckStateTable(0);
+    ackStates.receive("a");
+    Thread.sleep(5);
+    AckLeaseManager manager =
+        new AckLeaseManager(subscriber, ackStates, SUBSCRIPTION, 2, 500000L, 10, 0L);
+    manager.extendDeadlines();
+    verify(subscriber, never()).modifyAckDeadline(any(ModifyAckDeadlineRequest.class));
+  }
+
+  /** Tests that the extension follows the commit latency, clamped to what Pub/Sub accepts. */
+  @Test
+  public void testDeadlineFollowsCommitLatency() {
+    AckStateTable ackStates = new AckStateTable();
+    AckLeaseManager manager =
+        new AckLeaseManager(subscriber, ackStates, SUBSCRIPTION, 2, 500000L, 30, 60000L);
+    assertEquals(30, manager.deadlineSeconds());
+    ackStates.commitLatencies().record(2000);
+    assertEquals(AckLeaseManager.MIN_ACK_DEADLINE_SECONDS, manager.deadlineSeconds());
+    ackStates.commitLatencies().reset();
+    ackStates.commitLatencies().record(45000);
+    // The histogram rounds up by at most about 6%.
+    int deadlineSeconds = manager.deadlineSeconds();
+    assertTrue(deadlineSeconds >= 45 && deadlineSeconds <= 48);
+    ackStates.commitLatencies().reset();
+    ackStates.commitLatencies().record(3600 * 1000);
+    assertEquals(AckLeaseManager.MAX_ACK_DEADLINE_SECONDS, manager.deadlineSeconds());
+  }
+}
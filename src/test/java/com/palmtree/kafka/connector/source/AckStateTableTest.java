@@ -0,0 +1,93 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.palmtree.kafka.connector.source.AckStateTable.State;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link AckStateTable}. */
+public class AckStateTableTest {
+
+  private static final String ACK_ID1 = "ackID1";
+  private static final String ACK_ID2 = "ackID2";
+  private static final String ACK_ID3 = "ackID3";
+
+  private AckStateTable table;
+
+  @Before
+  public void setup() {
+    table = new AckStateTable();
+  }
+
+  /** Tests that an ack id is rejected as long as it is tracked in any state. */
+  @Test
+  public void testReceiveRejectsTrackedIds() {
+    assertTrue(table.receive(ACK_ID1));
+    assertFalse(table.receive(ACK_ID1));
+    table.deliver(ACK_ID1);
+    assertFalse(table.receive(ACK_ID1));
+    table.drainDelivered(10, Long.MAX_VALUE);
+    assertFalse(table.receive(ACK_ID1));
+    table.acked(Arrays.asList(ACK_ID1));
+    assertTrue(table.receive(ACK_ID1));
+  }
+
+  /** Tests the full lifecycle of an ack id and the per-state counts. */
+  @Test
+  public void testStateTransitions() {
+    table.receive(ACK_ID1);
+    table.receive(ACK_ID2);
+    assertEquals(2, table.count(State.RECEIVED));
+    table.deliver(ACK_ID1);
+    assertEquals(State.DELIVERED, table.get(ACK_ID1));
+    assertEquals(1, table.count(State.RECEIVED));
+    assertEquals(1, table.count(State.DELIVERED));
+    List<String> batch = table.drainDelivered(10, Long.MAX_VALUE);
+    assertEquals(Arrays.asList(ACK_ID1), batch);
+    assertEquals(State.IN_FLIGHT, table.get(ACK_ID1));
+    assertEquals(0, table.count(State.DELIVERED));
+    assertEquals(1, table.count(State.IN_FLIGHT));
+    table.acked(batch);
+    assertNull(table.get(ACK_ID1));
+    assertEquals(0, table.count(State.IN_FLIGHT));
+    assertEquals(State.RECEIVED, table.get(ACK_ID2));
+  }
+
+  /** Tests that failed acks become deliverable again and that drains respect the limit. */
+  @Test
+  public void testAckFailedRequeues() {
+    table.receive(ACK_ID1);
+    table.receive(ACK_ID2);
+    table.receive(ACK_ID3);
+    table.deliver(ACK_ID1);
+    table.deliver(ACK_ID2);
+    table.deliver(ACK_ID3);
+    List<String> batch = table.drainDelivered(2, Long.MAX_VALUE);
+    assertEquals(Arrays.asList(ACK_ID1, ACK_ID2), batch);
+    table.ackFailed(batch);
+    assertEquals(3, table.count(State.DELIVERED));
+    assertEquals(Arrays.asList(ACK_ID3, ACK_ID1, ACK_ID2), table.drainDelivered(10, Long.MAX_VALUE));
+    assertTrue(table.drainDelivered(10, Long.MAX_VALUE).isEmpty());
+  }
+
+  /** Tests that a drain stops before the batch goes over the byte limit. */
+  @Test
+  public void testDrainRespectsByteLimit() {
+    table.receive(ACK_ID1);
+    table.receive(ACK_ID2);
+    table.deliver(ACK_ID1);
+    table.deliver(ACK_ID2);
+    long oneId = AckStateTable.encodedSize(ACK_ID1);
+    assertEquals(oneId + AckStateTable.encodedSize(ACK_ID2), table.deliveredBytes());
+    assertEquals(Arrays.asList(ACK_ID1), table.drainDelivered(10, oneId + 1));
+    assertEquals(AckStateTable.encodedSize(ACK_ID2), table.deliveredBytes());
+    // A single id larger than the limit is still drained on its own.
+    assertEquals(Arrays.asList(ACK_ID2), table.drainDelivered(10, 1));
+  }
+}
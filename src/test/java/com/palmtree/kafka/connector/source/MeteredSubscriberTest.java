@@ -0,0 +1,48 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.palmtree.kafka.connector.common.TaskMetrics;
+import org.junit.Test;
+
+/** Tests for {@link MeteredSubscriber}. */
+public class MeteredSubscriberTest {
+
+  /** Tests that pulls and acks are counted by outcome. */
+  @Test
+  public void testCountsCalls() throws Exception {
+    SampleSubscriber subscriber = mock(SampleSubscriber.class);
+    TaskMetrics metrics = new TaskMetrics("test", "connector");
+    MeteredSubscriber metered = new MeteredSubscriber(subscriber, metrics);
+    PullResponse full =
+        PullResponse.newBuilder()
+            .addReceivedMessages(ReceivedMessage.newBuilder().setAckId("ackID1"))
+            .build();
+    when(subscriber.pull(any(PullRequest.class)))
+        .thenReturn(Futures.immediateFuture(full))
+        .thenReturn(Futures.immediateFuture(PullResponse.getDefaultInstance()));
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class)))
+        .thenReturn(Futures.<Empty>immediateFailedFuture(new Exception()));
+    metered.pull(PullRequest.getDefaultInstance());
+    metered.pull(PullRequest.getDefaultInstance());
+    metered.ackMessages(AcknowledgeRequest.getDefaultInstance());
+    metrics.rollNow(System.currentTimeMillis());
+    assertEquals(2L, metrics.getAttribute(MeteredSubscriber.PULLS));
+    assertEquals(1L, metrics.getAttribute(MeteredSubscriber.MESSAGES_PULLED));
+    assertEquals(
+        (long) full.getSerializedSize(), metrics.getAttribute(MeteredSubscriber.BYTES_PULLED));
+    assertEquals(0.5, (Double) metrics.getAttribute(MeteredSubscriber.EMPTY_PULL_RATIO), 0.0001);
+    assertEquals(2L, metrics.getAttribute(MeteredSubscriber.PULL_LATENCY_MS + "Count"));
+    assertEquals(1L, metrics.getAttribute(MeteredSubscriber.ACK_REQUESTS));
+    assertEquals(1L, metrics.getAttribute(MeteredSubscriber.ACK_FAILURES));
+  }
+}
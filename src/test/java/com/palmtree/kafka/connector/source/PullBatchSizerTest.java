@@ -0,0 +1,70 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+
+import com.palmtree.kafka.connector.source.SampleSourceConnector.BatchSizing;
+import org.junit.Test;
+
+/** Tests for {@link PullBatchSizer}. */
+public class PullBatchSizerTest {
+
+  /** Tests that the fixed sizing always asks for the maximum. */
+  @Test
+  public void testFixed() {
+    PullBatchSizer sizer = new PullBatchSizer(BatchSizing.FIXED, 10, 1000);
+    assertEquals(1000, sizer.batchSize());
+    sizer.record(1000, 1, 100, 10);
+    assertEquals(1000, sizer.batchSize());
+  }
+
+  /**
+   * Tests that the throughput sizing starts at the maximum, shrinks gently when responses are not
+   * full and grows quickly back to the maximum when they are.
+   */
+  @Test
+  public void testThroughput() {
+    PullBatchSizer sizer = new PullBatchSizer(BatchSizing.THROUGHPUT, 10, 1000);
+    assertEquals(1000, sizer.batchSize());
+    sizer.record(1000, 10, 1000, 10);
+    assertEquals(900, sizer.batchSize());
+    sizer.record(900, 100, 10000, 10);
+    assertEquals(810, sizer.batchSize());
+    sizer.record(810, 810, 81000, 10);
+    assertEquals(1000, sizer.batchSize());
+  }
+
+  /**
+   * Tests that the low latency sizing starts at the minimum, shrinks full responses that are too
+   * slow and shrinks to what was received when responses are not full.
+   */
+  @Test
+  public void testLowLatency() {
+    PullBatchSizer sizer = new PullBatchSizer(BatchSizing.LOW_LATENCY, 10, 1000);
+    assertEquals(10, sizer.batchSize());
+    for (int i = 0; i < 10; ++i) {
+      sizer.record(sizer.batchSize(), sizer.batchSize(), sizer.batchSize() * 100, 10);
+    }
+    assertEquals(93, sizer.batchSize());
+    sizer.record(93, 93, 9300, 1000);
+    assertEquals(46, sizer.batchSize());
+    sizer.record(46, 5, 500, 10);
+    assertEquals(23, sizer.batchSize());
+    sizer.record(23, 0, 0, 10);
+    assertEquals(11, sizer.batchSize());
+    sizer.record(11, 0, 0, 10);
+    assertEquals(10, sizer.batchSize());
+  }
+
+  /** Tests that responses are kept under the target size given the average message size. */
+  @Test
+  public void testCappedByMessageSize() {
+    PullBatchSizer sizer = new PullBatchSizer(BatchSizing.LOW_LATENCY, 10, 1000);
+    sizer.record(10, 10, 10 * 50000, 10);
+    assertEquals(50000, sizer.averageMessageBytes(), 0.0);
+    assertEquals(12, sizer.batchSize());
+    for (int i = 0; i < 10; ++i) {
+      sizer.record(sizer.batchSize(), sizer.batchSize(), sizer.batchSize() * 50000L, 10);
+    }
+    assertEquals(20, sizer.batchSize());
+  }
+}
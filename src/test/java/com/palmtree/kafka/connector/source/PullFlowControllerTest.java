@@ -0,0 +1,88 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link PullFlowController}. */
+public class PullFlowControllerTest {
+
+  private AckStateTable ackStates;
+  private PullFlowController controller;
+
+  @Before
+  public void setup() {
+    ackStates = new AckStateTable();
+    controller = new PullFlowController(Collections.singletonList(ackStates), 10, 1000);
+  }
+
+  /** Tests that pulls shrink as the message limit is approached and stop once it is reached. */
+  @Test
+  public void testMessageLimit() {
+    assertEquals(5, controller.allowedMessages(5));
+    controller.pullCompleted(5);
+    for (int i = 0; i < 7; ++i) {
+      ackStates.receive("ackID" + i, 1);
+    }
+    assertEquals(3, controller.allowedMessages(5));
+    controller.pullCompleted(3);
+    for (int i = 7; i < 10; ++i) {
+      ackStates.receive("ackID" + i, 1);
+    }
+    assertEquals(0, controller.allowedMessages(5));
+    assertEquals(1.0, controller.messageUtilization(), 0.0);
+    assertEquals(1, controller.throttledPulls());
+    ackStates.deliver("ackID0");
+    assertEquals(1, controller.allowedMessages(5));
+  }
+
+  /** Tests that concurrent pulls do not ask for the same room. */
+  @Test
+  public void testReservations() {
+    assertEquals(6, controller.allowedMessages(6));
+    assertEquals(4, controller.allowedMessages(6));
+    assertEquals(0, controller.allowedMessages(6));
+    assertEquals(10, controller.reservedMessages());
+    controller.pullCompleted(6);
+    for (int i = 0; i < 3; ++i) {
+      ackStates.receive("ackID" + i, 1);
+    }
+    assertEquals(3, controller.allowedMessages(6));
+  }
+
+  /** Tests that no pull is issued while the byte limit is reached. */
+  @Test
+  public void testByteLimit() {
+    ackStates.receive("ackID1", 600);
+    assertEquals(5, controller.allowedMessages(5));
+    controller.pullCompleted(5);
+    ackStates.receive("ackID2", 600);
+    assertEquals(1200, controller.outstandingBytes());
+    assertEquals(0, controller.allowedMessages(5));
+    ackStates.deliver("ackID1");
+    assertEquals(600, controller.outstandingBytes());
+    assertEquals(5, controller.allowedMessages(5));
+  }
+
+  /** Tests that a pull waiting for capacity resumes once a record is committed. */
+  @Test
+  public void testAwaitCapacity() throws Exception {
+    ackStates.receive("ackID1", 1000);
+    assertFalse(controller.awaitCapacity(10));
+    Thread committer =
+        new Thread() {
+          @Override
+          public void run() {
+            ackStates.deliver("ackID1");
+            controller.released();
+          }
+        };
+    committer.start();
+    assertTrue(controller.awaitCapacity(5000));
+    committer.join();
+  }
+}
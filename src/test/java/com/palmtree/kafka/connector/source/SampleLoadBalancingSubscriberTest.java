@@ -0,0 +1,103 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.palmtree.kafka.connector.source.SampleSourceConnector.LoadBalancingPolicy;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link SampleLoadBalancingSubscriber}. */
+public class SampleLoadBalancingSubscriberTest {
+
+  private static final PullRequest REQUEST = PullRequest.getDefaultInstance();
+
+  private SampleSubscriber first;
+  private SampleSubscriber second;
+
+  @Before
+  public void setup() {
+    first = mock(SampleSubscriber.class);
+    second = mock(SampleSubscriber.class);
+  }
+
+  /** Tests that requests go to the subscriber with the fewest outstanding requests. */
+  @Test
+  public void testLeastOutstanding() {
+    SettableFuture<PullResponse> pending = SettableFuture.create();
+    when(first.pull(any(PullRequest.class))).thenReturn(pending);
+    when(second.pull(any(PullRequest.class))).thenReturn(pending);
+    SampleLoadBalancingSubscriber subscriber =
+        new SampleLoadBalancingSubscriber(
+            Arrays.asList(first, second), LoadBalancingPolicy.LEAST_OUTSTANDING);
+    subscriber.pull(REQUEST);
+    subscriber.pull(REQUEST);
+    // Each subscriber has one outstanding request.
+    verify(first, times(1)).pull(REQUEST);
+    verify(second, times(1)).pull(REQUEST);
+  }
+
+  /** Tests that a subscriber whose request failed is skipped. */
+  @Test
+  public void testSkipsUnhealthySubscriber() {
+    when(first.pull(any(PullRequest.class)))
+        .thenReturn(Futures.<PullResponse>immediateFailedFuture(new Exception()));
+    when(second.pull(any(PullRequest.class)))
+        .thenReturn(Futures.<PullResponse>immediateFailedFuture(new Exception()));
+    SampleLoadBalancingSubscriber subscriber =
+        new SampleLoadBalancingSubscriber(
+            Arrays.asList(first, second), LoadBalancingPolicy.ROUND_ROBIN);
+    // Once the first subscriber has failed the next request must go to the other one.
+    subscriber.pull(REQUEST);
+    subscriber.pull(REQUEST);
+    verify(first, times(1)).pull(REQUEST);
+    verify(second, times(1)).pull(REQUEST);
+  }
+
+  /** Tests that a healthy subscriber is always preferred over an unhealthy one. */
+  @Test
+  public void testPrefersHealthySubscriber() {
+    when(first.pull(any(PullRequest.class)))
+        .thenReturn(Futures.<PullResponse>immediateFailedFuture(new Exception()));
+    when(second.pull(any(PullRequest.class)))
+        .thenReturn(Futures.immediateFuture(PullResponse.getDefaultInstance()));
+    SampleLoadBalancingSubscriber subscriber =
+        new SampleLoadBalancingSubscriber(
+            Arrays.asList(first, second), LoadBalancingPolicy.LEAST_OUTSTANDING);
+    for (int i = 0; i < 6; ++i) {
+      subscriber.pull(REQUEST);
+    }
+    verify(first, times(1)).pull(REQUEST);
+    verify(second, times(5)).pull(REQUEST);
+  }
+
+  /** Tests that requests go to the subscriber with the lower average latency. */
+  @Test
+  public void testEwmaLatency() throws Exception {
+    final SettableFuture<PullResponse> slow = SettableFuture.create();
+    when(first.pull(any(PullRequest.class))).thenReturn(slow);
+    when(second.pull(any(PullRequest.class)))
+        .thenReturn(Futures.immediateFuture(PullResponse.getDefaultInstance()));
+    SampleLoadBalancingSubscriber subscriber =
+        new SampleLoadBalancingSubscriber(
+            Arrays.asList(first, second), LoadBalancingPolicy.EWMA_LATENCY);
+    // Give each subscriber one latency sample.
+    subscriber.pull(REQUEST);
+    subscriber.pull(REQUEST);
+    Thread.sleep(50);
+    slow.set(PullResponse.getDefaultInstance());
+    for (int i = 0; i < 4; ++i) {
+      subscriber.pull(REQUEST);
+    }
+    verify(first, times(1)).pull(REQUEST);
+    verify(second, times(5)).pull(REQUEST);
+  }
+}
@@ -47,6 +47,12 @@ public class SampleSourceConnectorTest {
     connector.start(new HashMap<String, String>());
   }
 
+  @Test(expected = ConfigException.class)
+  public void testStartWhenPullModeInvalid() {
+    props.put(SampleSourceConnector.CPS_PULL_MODE_CONFIG, "push");
+    connector.start(props);
+  }
+
   @Test
   public void testTaskConfigs() {
     doNothing().when(connector).verifySubscription(anyString(), anyString());
@@ -58,6 +64,26 @@ public class SampleSourceConnectorTest {
     }
   }
 
+  @Test(expected = ConfigException.class)
+  public void testStartWhenNoSubscription() {
+    props.remove(SampleSourceConnector.CPS_SUBSCRIPTION_CONFIG);
+    connector.start(props);
+  }
+
+  /** Tests that a list of subscriptions is spread over the tasks. */
+  @Test
+  public void testTaskConfigsWithSubscriptions() {
+    doNothing().when(connector).verifySubscription(anyString(), anyString());
+    props.put(SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG, "a:3,b,c,d");
+    connector.start(props);
+    List<Map<String, String>> taskConfigs = connector.taskConfigs(2);
+    assertEquals(2, taskConfigs.size());
+    assertEquals("a:3", taskConfigs.get(0).get(SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG));
+    assertEquals(
+        "b:1,c:1,d:1", taskConfigs.get(1).get(SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG));
+    assertEquals(KAFKA_TOPIC, taskConfigs.get(1).get(SampleSourceConnector.KAFKA_TOPIC_CONFIG));
+  }
+
   @Test
   public void testSourceConnectorTaskClass() {
     assertEquals(SampleSourceTask.class, connector.taskClass());
@@ -2,35 +2,51 @@ package com.palmtree.kafka.connector.source;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
 import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.MessagePacker;
+import com.palmtree.kafka.connector.common.PayloadCodec;
 import com.google.pubsub.v1.AcknowledgeRequest;
 import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.PullRequest;
 import com.google.pubsub.v1.PullResponse;
 import com.google.pubsub.v1.ReceivedMessage;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.kafka.common.utils.Utils;
 import org.apache.kafka.connect.data.Field;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaBuilder;
 import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.json.JsonConverter;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -111,9 +127,205 @@ public class SampleSourceTaskTest {
     verify(subscriber, never()).ackMessages(any(AcknowledgeRequest.class));
   }
 
+  /** Tests that message bodies are handed over as read-only views when zero copy is enabled. */
+  @Test
+  public void testPollWithZeroCopyPayload() throws Exception {
+    props.put(SampleSourceConnector.KAFKA_PAYLOAD_ZERO_COPY_CONFIG, "true");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse stubbedPullResponse = PullResponse.newBuilder().addReceivedMessages(rm1).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    List<SourceRecord> result = task.poll();
+    assertEquals(1, result.size());
+    assertEquals(Schema.BYTES_SCHEMA, result.get(0).valueSchema());
+    ByteBuffer value = (ByteBuffer) result.get(0).value();
+    assertTrue(value.isReadOnly());
+    assertEquals(CPS_MESSAGE, ByteString.copyFrom(value));
+  }
+
+  /**
+   * Tests that JsonConverter can not convert the read-only views of zero copy, which is why the
+   * option requires a converter that does not call ByteBuffer.array().
+   */
+  @Test(expected = ReadOnlyBufferException.class)
+  public void testZeroCopyPayloadUnsupportedByJsonConverter() throws Exception {
+    props.put(SampleSourceConnector.KAFKA_PAYLOAD_ZERO_COPY_CONFIG, "true");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse stubbedPullResponse = PullResponse.newBuilder().addReceivedMessages(rm1).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    SourceRecord record = task.poll().get(0);
+    JsonConverter converter = new JsonConverter();
+    converter.configure(new HashMap<String, Object>(), false);
+    converter.fromConnectData(KAFKA_TOPIC, record.valueSchema(), record.value());
+  }
+
+  /** Tests that compressed message bodies are decompressed and the codec is not an attribute. */
+  @Test
+  public void testPollWithCompressedPayload() throws Exception {
+    task.start(props);
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(ConnectorUtils.CPS_CODEC_ATTRIBUTE, PayloadCodec.LZ4.toString());
+    ReceivedMessage rm1 =
+        createReceivedMessage(ACK_ID1, PayloadCodec.LZ4.compress(CPS_MESSAGE), attributes);
+    attributes.put(ConnectorUtils.CPS_CODEC_ATTRIBUTE, PayloadCodec.GZIP.toString());
+    attributes.put("attribute1", "attribute_value1");
+    ReceivedMessage rm2 =
+        createReceivedMessage(ACK_ID2, PayloadCodec.GZIP.compress(CPS_MESSAGE), attributes);
+    PullResponse stubbedPullResponse =
+        PullResponse.newBuilder().addReceivedMessages(rm1).addReceivedMessages(rm2).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    List<SourceRecord> result = task.poll();
+    assertEquals(2, result.size());
+    assertEquals(Schema.BYTES_SCHEMA, result.get(0).valueSchema());
+    assertArrayEquals(KAFKA_VALUE, (byte[]) result.get(0).value());
+    Struct value = (Struct) result.get(1).value();
+    assertEquals(2, value.schema().fields().size());
+    assertArrayEquals(KAFKA_VALUE, value.getBytes(ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD));
+  }
+
   /**
-   * Tests that when ackMessages() succeeds and the subsequent call to poll() has no messages, that
-   * the subscriber does not invoke ackMessages because there should be no acks.
+   * Tests that messages whose bodies can not be decoded are acked and skipped, and that the rest of
+   * the response is still converted.
+   */
+  @Test
+  public void testPollSkipsUndecodableMessages() throws Exception {
+    task.start(props);
+    Map<String, String> attributes = new HashMap<>();
+    // The body is not in the gzip format.
+    attributes.put(ConnectorUtils.CPS_CODEC_ATTRIBUTE, PayloadCodec.GZIP.toString());
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, attributes);
+    attributes.put(ConnectorUtils.CPS_CODEC_ATTRIBUTE, PayloadCodec.LZ4.toString());
+    ByteString compressed = PayloadCodec.LZ4.compress(ByteString.copyFrom(new byte[1000]));
+    ReceivedMessage rm2 =
+        createReceivedMessage(ACK_ID2, compressed.substring(0, compressed.size() - 1), attributes);
+    ReceivedMessage rm3 = createReceivedMessage(ACK_ID3, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse stubbedPullResponse =
+        PullResponse.newBuilder()
+            .addReceivedMessages(rm1)
+            .addReceivedMessages(rm2)
+            .addReceivedMessages(rm3)
+            .build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    ListenableFuture<Empty> goodFuture = Futures.immediateFuture(Empty.getDefaultInstance());
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(goodFuture);
+    List<SourceRecord> result = task.poll();
+    assertEquals(1, result.size());
+    assertArrayEquals(KAFKA_VALUE, (byte[]) result.get(0).value());
+    assertEquals(2L, task.getMetrics().getAttribute("UndecodableMessages"));
+    // Only the converted message still holds flow control capacity.
+    assertEquals(1, task.getFlowController().outstandingMessages());
+    task.commit();
+    ArgumentCaptor<AcknowledgeRequest> captor = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, timeout(1000).atLeastOnce()).ackMessages(captor.capture());
+    List<String> acked = new ArrayList<>();
+    for (AcknowledgeRequest request : captor.getAllValues()) {
+      acked.addAll(request.getAckIdsList());
+    }
+    assertEquals(Arrays.asList(ACK_ID1, ACK_ID2), acked);
+  }
+
+  /**
+   * Tests that a message whose codec is unknown is handed over undecoded, with the codec as a field
+   * of the value, instead of being dropped.
+   */
+  @Test
+  public void testPollPassesThroughUnknownCodec() throws Exception {
+    task.start(props);
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(ConnectorUtils.CPS_CODEC_ATTRIBUTE, "snappy");
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, attributes);
+    PullResponse stubbedPullResponse = PullResponse.newBuilder().addReceivedMessages(rm1).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    List<SourceRecord> result = task.poll();
+    assertEquals(1, result.size());
+    Struct value = (Struct) result.get(0).value();
+    assertArrayEquals(KAFKA_VALUE, value.getBytes(ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD));
+    assertEquals("snappy", value.getString(ConnectorUtils.CPS_CODEC_ATTRIBUTE));
+    assertEquals(1L, task.getMetrics().getAttribute("UnknownCodecMessages"));
+    assertEquals(0L, task.getMetrics().getAttribute("UndecodableMessages"));
+    assertEquals(1, task.getFlowController().outstandingMessages());
+  }
+
+  /** Tests that a packed message becomes a record each, and is acked once all are committed. */
+  @Test
+  public void testPollWithPackedMessage() throws Exception {
+    task.start(props);
+    MessagePacker packer = new MessagePacker();
+    packer.add(
+        PubsubMessage.newBuilder()
+            .putAttributes(KAFKA_MESSAGE_KEY_ATTRIBUTE, KAFKA_MESSAGE_KEY_ATTRIBUTE_VALUE)
+            .setData(CPS_MESSAGE)
+            .build(),
+        0);
+    packer.add(
+        PubsubMessage.newBuilder().putAttributes("attribute1", "attribute_value1").build(), 1);
+    packer.add(PubsubMessage.newBuilder().setData(CPS_MESSAGE).build(), 2);
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(ConnectorUtils.CPS_PACKED_ATTRIBUTE, MessagePacker.FORMAT_VERSION);
+    attributes.put(ConnectorUtils.CPS_CODEC_ATTRIBUTE, PayloadCodec.GZIP.toString());
+    ReceivedMessage rm =
+        createReceivedMessage(ACK_ID1, PayloadCodec.GZIP.compress(packer.drain()), attributes);
+    PullResponse stubbedPullResponse = PullResponse.newBuilder().addReceivedMessages(rm).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    ListenableFuture<Empty> goodFuture = Futures.immediateFuture(Empty.getDefaultInstance());
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(goodFuture);
+    List<SourceRecord> result = task.poll();
+    assertEquals(3, result.size());
+    assertEquals(KAFKA_MESSAGE_KEY_ATTRIBUTE_VALUE, result.get(0).key());
+    assertArrayEquals(KAFKA_VALUE, (byte[]) result.get(0).value());
+    Struct value = (Struct) result.get(1).value();
+    assertEquals("attribute_value1", value.getString("attribute1"));
+    assertArrayEquals(KAFKA_VALUE, (byte[]) result.get(2).value());
+    task.commitRecord(result.get(0));
+    task.commitRecord(result.get(1));
+    task.commit();
+    verify(subscriber, never()).ackMessages(any(AcknowledgeRequest.class));
+    task.commitRecord(result.get(2));
+    task.commit();
+    ArgumentCaptor<AcknowledgeRequest> captor = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, times(1)).ackMessages(captor.capture());
+    assertEquals(Arrays.asList(ACK_ID1), captor.getValue().getAckIdsList());
+  }
+
+  /**
+   * Tests that a packed message whose envelope is corrupt is acked and skipped, and that the packed
+   * message next to it is still unpacked.
+   */
+  @Test
+  public void testPollSkipsCorruptPackedMessage() throws Exception {
+    task.start(props);
+    MessagePacker packer = new MessagePacker();
+    packer.add(PubsubMessage.newBuilder().setData(CPS_MESSAGE).build(), 0);
+    packer.add(PubsubMessage.newBuilder().setData(CPS_MESSAGE).build(), 1);
+    ByteString body = packer.drain();
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(ConnectorUtils.CPS_PACKED_ATTRIBUTE, MessagePacker.FORMAT_VERSION);
+    // The data of the last record is cut short.
+    ReceivedMessage rm1 =
+        createReceivedMessage(ACK_ID1, body.substring(0, body.size() - 1), attributes);
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, body, attributes);
+    PullResponse stubbedPullResponse =
+        PullResponse.newBuilder().addReceivedMessages(rm1).addReceivedMessages(rm2).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    ListenableFuture<Empty> goodFuture = Futures.immediateFuture(Empty.getDefaultInstance());
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(goodFuture);
+    List<SourceRecord> result = task.poll();
+    assertEquals(2, result.size());
+    assertEquals(ACK_ID2, result.get(0).sourceOffset().values().iterator().next());
+    assertEquals(ACK_ID2, result.get(1).sourceOffset().values().iterator().next());
+    assertEquals(1L, task.getMetrics().getAttribute("UndecodableMessages"));
+    assertEquals(2L, task.getMetrics().getAttribute("RecordsUnpacked"));
+    assertEquals(1, task.getFlowController().outstandingMessages());
+    task.commit();
+    ArgumentCaptor<AcknowledgeRequest> captor = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, timeout(1000)).ackMessages(captor.capture());
+    assertEquals(Arrays.asList(ACK_ID1), captor.getValue().getAckIdsList());
+  }
+
+  /**
+   * Tests that the ack of a committed record is sent once within the linger time, and that the
+   * following polls, which have no messages, do not send any more acks.
    */
   @Test
   public void testPollInRegularCase() throws Exception {
@@ -132,10 +344,62 @@ public class SampleSourceTaskTest {
     assertEquals(0, result.size());
     result = task.poll();
     assertEquals(0, result.size());
+    verify(subscriber, timeout(1000).times(1)).ackMessages(any(AcknowledgeRequest.class));
+    Thread.sleep(200);
+    verify(subscriber, times(1)).ackMessages(any(AcknowledgeRequest.class));
+  }
+
+  /**
+   * Tests that poll() leaves acks to the linger time of the dispatcher instead of sending partial
+   * batches, and that commit() sends them right away.
+   */
+  @Test
+  public void testPollDoesNotFlushAcks() throws Exception {
+    props.put(SampleSourceConnector.CPS_ACK_LINGER_MS_CONFIG, "60000");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse stubbedPullResponse = PullResponse.newBuilder().addReceivedMessages(rm1).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    ListenableFuture<Empty> goodFuture = Futures.immediateFuture(Empty.getDefaultInstance());
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(goodFuture);
+    List<SourceRecord> result = task.poll();
+    task.commitRecord(result.get(0));
+    when(subscriber.pull(any(PullRequest.class)).get())
+        .thenReturn(PullResponse.newBuilder().build());
+    task.poll();
+    task.poll();
+    verify(subscriber, never()).ackMessages(any(AcknowledgeRequest.class));
+    task.commit();
     verify(subscriber, times(1)).ackMessages(any(AcknowledgeRequest.class));
   }
 
 
+  /**
+   * Tests that when a call to ackMessages() fails, the ack ids of that request are sent again
+   * after the linger time.
+   */
+  @Test
+  public void testPollRetriesFailedAcks() throws Exception {
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse stubbedPullResponse = PullResponse.newBuilder().addReceivedMessages(rm1).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    ListenableFuture<Empty> badFuture = Futures.immediateFailedFuture(new Exception());
+    ListenableFuture<Empty> goodFuture = Futures.immediateFuture(Empty.getDefaultInstance());
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class))).thenReturn(badFuture, goodFuture);
+    List<SourceRecord> result = task.poll();
+    assertEquals(1, result.size());
+    task.commitRecord(result.get(0));
+    when(subscriber.pull(any(PullRequest.class)).get())
+        .thenReturn(PullResponse.newBuilder().build());
+    task.poll();
+    ArgumentCaptor<AcknowledgeRequest> captor = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, timeout(1000).times(2)).ackMessages(captor.capture());
+    for (AcknowledgeRequest request : captor.getAllValues()) {
+      assertEquals(Collections.singletonList(ACK_ID1), request.getAckIdsList());
+    }
+  }
+
   /**
    * Tests that when a call to ackMessages() fails, that the message is not redelivered to Kafka if
    * the message is received again by Cloud Pub/Sub. Also tests that ack ids are added properly if
@@ -280,6 +544,32 @@ public class SampleSourceTaskTest {
     assertRecordsEqual(expected, result.get(0));
   }
 
+  /**
+   * Tests that messages with the same attribute names share one value schema, regardless of the
+   * order of their attributes.
+   */
+  @Test
+  public void testPollReusesSchemaForSameAttributes() throws Exception {
+    task.start(props);
+    Map<String, String> attributes1 = new HashMap<>();
+    attributes1.put("attribute1", "attribute_value1");
+    attributes1.put("attribute2", "attribute_value2");
+    Map<String, String> attributes2 = new HashMap<>();
+    attributes2.put("attribute2", "attribute_value3");
+    attributes2.put("attribute1", "attribute_value4");
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, attributes1);
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, CPS_MESSAGE, attributes2);
+    PullResponse stubbedPullResponse =
+        PullResponse.newBuilder().addReceivedMessages(rm1).addReceivedMessages(rm2).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    List<SourceRecord> result = task.poll();
+    assertEquals(2, result.size());
+    assertSame(result.get(0).valueSchema(), result.get(1).valueSchema());
+    assertEquals("attribute_value4", ((Struct) result.get(1).value()).getString("attribute1"));
+    assertEquals(1L, task.getMetrics().getAttribute("SchemaCacheMisses"));
+    assertEquals(1L, task.getMetrics().getAttribute("SchemaCacheHits"));
+  }
+
   /**
    * Tests that the correct partition is assigned when the partition scheme is "hash_key". The test
    * has two cases, one where a key does exist and one where it does not.
@@ -423,6 +713,256 @@ public class SampleSourceTaskTest {
     assertRecordsEqual(expected4, result.get(3));
   }
 
+  /**
+   * Tests that when the partition scheme is "sticky" every record of a batch goes to the same
+   * partition, and that the next batch moves on to the next partition once the record threshold
+   * has been reached.
+   */
+  @Test
+  public void testPollWithPartitionSchemeSticky() throws Exception {
+    props.put(
+        SampleSourceConnector.KAFKA_PARTITION_SCHEME_CONFIG,
+        SampleSourceConnector.PartitionScheme.STICKY.toString());
+    props.put(SampleSourceConnector.KAFKA_STICKY_PARTITION_RECORDS_CONFIG, "3");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm3 = createReceivedMessage(ACK_ID3, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm4 = createReceivedMessage(ACK_ID4, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse first =
+        PullResponse.newBuilder()
+            .addReceivedMessages(rm1)
+            .addReceivedMessages(rm2)
+            .addReceivedMessages(rm3)
+            .build();
+    PullResponse second = PullResponse.newBuilder().addReceivedMessages(rm4).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(first, second);
+    List<SourceRecord> result = task.poll();
+    assertEquals(3, result.size());
+    int partition = result.get(0).kafkaPartition();
+    assertEquals(partition, (int) result.get(1).kafkaPartition());
+    assertEquals(partition, (int) result.get(2).kafkaPartition());
+    result = task.poll();
+    assertEquals(1, result.size());
+    assertEquals(
+        (partition + 1) % Integer.parseInt(KAFKA_PARTITIONS), (int) result.get(0).kafkaPartition());
+  }
+
+  /**
+   * Tests that when the partition scheme is "murmur2" records with a key go to the partition
+   * Kafka's default partitioner picks for the key.
+   */
+  @Test
+  public void testPollWithPartitionSchemeMurmur2() throws Exception {
+    props.put(
+        SampleSourceConnector.KAFKA_PARTITION_SCHEME_CONFIG,
+        SampleSourceConnector.PartitionScheme.MURMUR2.toString());
+    task.start(props);
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(KAFKA_MESSAGE_KEY_ATTRIBUTE, KAFKA_MESSAGE_KEY_ATTRIBUTE_VALUE);
+    ReceivedMessage rm = createReceivedMessage(ACK_ID1, CPS_MESSAGE, attributes);
+    PullResponse stubbedPullResponse = PullResponse.newBuilder().addReceivedMessages(rm).build();
+    when(subscriber.pull(any(PullRequest.class)).get()).thenReturn(stubbedPullResponse);
+    List<SourceRecord> result = task.poll();
+    assertEquals(1, result.size());
+    int expected =
+        Utils.toPositive(Utils.murmur2(KAFKA_MESSAGE_KEY_ATTRIBUTE_VALUE.getBytes("UTF-8")))
+            % Integer.parseInt(KAFKA_PARTITIONS);
+    assertEquals(expected, (int) result.get(0).kafkaPartition());
+  }
+
+  /**
+   * Tests that pulls ask for no more messages than fit under the outstanding message limit, that
+   * no pull is issued once it is reached, and that committing records resumes pulling.
+   */
+  @Test
+  public void testPollWithOutstandingMessageLimit() throws Exception {
+    props.put(SampleSourceConnector.CPS_MAX_OUTSTANDING_MESSAGES_CONFIG, "2");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm3 = createReceivedMessage(ACK_ID3, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse first =
+        PullResponse.newBuilder().addReceivedMessages(rm1).addReceivedMessages(rm2).build();
+    PullResponse second = PullResponse.newBuilder().addReceivedMessages(rm3).build();
+    when(subscriber.pull(any(PullRequest.class)))
+        .thenReturn(Futures.immediateFuture(first), Futures.immediateFuture(second));
+    List<SourceRecord> records = task.poll();
+    assertEquals(2, records.size());
+    ArgumentCaptor<PullRequest> request = ArgumentCaptor.forClass(PullRequest.class);
+    verify(subscriber).pull(request.capture());
+    assertEquals(2, request.getValue().getMaxMessages());
+    assertEquals(2, task.getFlowController().outstandingMessages());
+    assertEquals(100L, task.getMetrics().getAttribute("MessageUtilizationPercent"));
+    assertEquals(0L, task.getMetrics().getAttribute("ByteUtilizationPercent"));
+    assertEquals(0, task.poll().size());
+    verify(subscriber, times(1)).pull(any(PullRequest.class));
+    task.commitRecord(records.get(0));
+    assertEquals(50L, task.getMetrics().getAttribute("MessageUtilizationPercent"));
+    assertEquals(1, task.poll().size());
+    verify(subscriber, times(2)).pull(request.capture());
+    assertEquals(1, request.getValue().getMaxMessages());
+  }
+
+  /**
+   * Tests that with adaptive batch sizing pulls start at the minimum batch size and ask for more
+   * messages once responses come back full.
+   */
+  @Test
+  public void testPollWithAdaptiveBatchSize() throws Exception {
+    props.put(
+        SampleSourceConnector.CPS_BATCH_SIZING_CONFIG,
+        SampleSourceConnector.BatchSizing.LOW_LATENCY.toString());
+    props.put(SampleSourceConnector.CPS_MIN_BATCH_SIZE_CONFIG, "2");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm3 = createReceivedMessage(ACK_ID3, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm4 = createReceivedMessage(ACK_ID4, CPS_MESSAGE, new HashMap<String, String>());
+    PullResponse first =
+        PullResponse.newBuilder().addReceivedMessages(rm1).addReceivedMessages(rm2).build();
+    when(subscriber.pull(any(PullRequest.class)))
+        .thenReturn(
+            Futures.immediateFuture(first),
+            Futures.immediateFuture(
+                PullResponse.newBuilder().addReceivedMessages(rm3).addReceivedMessages(rm4).build()),
+            Futures.immediateFuture(PullResponse.getDefaultInstance()));
+    assertEquals(2L, task.getMetrics().getAttribute("BatchSize-" + CPS_SUBSCRIPTION));
+    assertEquals(-1L, task.getMetrics().getAttribute("AverageMessageBytes-" + CPS_SUBSCRIPTION));
+    assertEquals(2, task.poll().size());
+    assertEquals(2, task.poll().size());
+    assertEquals(3L, task.getMetrics().getAttribute("BatchSize-" + CPS_SUBSCRIPTION));
+    // Every message of the responses has the same size.
+    assertEquals(
+        Math.round(first.getSerializedSize() / 2.0),
+        task.getMetrics().getAttribute("AverageMessageBytes-" + CPS_SUBSCRIPTION));
+    assertEquals(0, task.poll().size());
+    ArgumentCaptor<PullRequest> request = ArgumentCaptor.forClass(PullRequest.class);
+    verify(subscriber, times(3)).pull(request.capture());
+    assertEquals(2, request.getAllValues().get(0).getMaxMessages());
+    assertEquals(2, request.getAllValues().get(1).getMaxMessages());
+    assertEquals(3, request.getAllValues().get(2).getMaxMessages());
+  }
+
+  /**
+   * Tests that with prefetching enabled, poll() returns the records of every pull that completed
+   * and that the next pull is issued as soon as a response arrives.
+   */
+  @Test
+  public void testPollWithPrefetch() throws Exception {
+    props.put(SampleSourceConnector.CPS_PREFETCH_DEPTH_CONFIG, "2");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm3 = createReceivedMessage(ACK_ID3, CPS_MESSAGE, new HashMap<String, String>());
+    ListenableFuture<PullResponse> first =
+        Futures.immediateFuture(
+            PullResponse.newBuilder().addReceivedMessages(rm1).addReceivedMessages(rm2).build());
+    ListenableFuture<PullResponse> second =
+        Futures.immediateFuture(PullResponse.newBuilder().addReceivedMessages(rm3).build());
+    ListenableFuture<PullResponse> empty = Futures.immediateFuture(PullResponse.newBuilder().build());
+    when(subscriber.pull(any(PullRequest.class))).thenReturn(first, second, empty);
+    List<SourceRecord> result = task.poll();
+    assertEquals(3, result.size());
+    // Once the buffered responses are handed out, the next two pulls are issued right away.
+    verify(subscriber, times(4)).pull(any(PullRequest.class));
+    assertEquals(0, task.poll().size());
+  }
+
+  /**
+   * Tests that with several concurrent pulls poll() issues all of them at once, returns the
+   * records of those that completed without waiting for the others, and issues new pulls to make
+   * up for the completed ones.
+   */
+  @Test
+  public void testPollWithConcurrentPulls() throws Exception {
+    props.put(SampleSourceConnector.CPS_CONCURRENT_PULLS_CONFIG, "3");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm3 = createReceivedMessage(ACK_ID3, CPS_MESSAGE, new HashMap<String, String>());
+    SettableFuture<PullResponse> slow = SettableFuture.create();
+    when(subscriber.pull(any(PullRequest.class)))
+        .thenReturn(
+            Futures.immediateFuture(PullResponse.newBuilder().addReceivedMessages(rm1).build()),
+            Futures.immediateFuture(PullResponse.newBuilder().addReceivedMessages(rm2).build()),
+            slow);
+    List<SourceRecord> result = task.poll();
+    assertEquals(2, result.size());
+    // The two completed pulls were replaced before poll() returned, and the new ones are pending.
+    verify(subscriber, times(5)).pull(any(PullRequest.class));
+    assertEquals(
+        3 * Integer.parseInt(CPS_MAX_BATCH_SIZE), task.getFlowController().reservedMessages());
+    when(subscriber.pull(any(PullRequest.class))).thenReturn(SettableFuture.<PullResponse>create());
+    slow.set(PullResponse.newBuilder().addReceivedMessages(rm3).build());
+    assertEquals(1, task.poll().size());
+    verify(subscriber, times(8)).pull(any(PullRequest.class));
+  }
+
+  /**
+   * Tests that a task with several subscriptions pulls from them in proportion to their weights
+   * and acks every message on the subscription it came from.
+   */
+  @Test
+  public void testPollWithMultipleSubscriptions() throws Exception {
+    props.put(SampleSourceConnector.CPS_SUBSCRIPTIONS_CONFIG, "heavy:2,light");
+    task.start(props);
+    ReceivedMessage rm1 = createReceivedMessage(ACK_ID1, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm2 = createReceivedMessage(ACK_ID2, CPS_MESSAGE, new HashMap<String, String>());
+    ReceivedMessage rm3 = createReceivedMessage(ACK_ID3, CPS_MESSAGE, new HashMap<String, String>());
+    when(subscriber.pull(any(PullRequest.class)))
+        .thenReturn(
+            Futures.immediateFuture(PullResponse.newBuilder().addReceivedMessages(rm1).build()),
+            Futures.immediateFuture(PullResponse.newBuilder().addReceivedMessages(rm2).build()),
+            Futures.immediateFuture(PullResponse.newBuilder().addReceivedMessages(rm3).build()));
+    when(subscriber.ackMessages(any(AcknowledgeRequest.class)))
+        .thenReturn(Futures.immediateFuture(Empty.getDefaultInstance()));
+    String heavy = "projects/" + CPS_PROJECT + "/subscriptions/heavy";
+    String light = "projects/" + CPS_PROJECT + "/subscriptions/light";
+    for (int i = 0; i < 3; ++i) {
+      for (SourceRecord record : task.poll()) {
+        task.commitRecord(record);
+      }
+    }
+    ArgumentCaptor<PullRequest> pulls = ArgumentCaptor.forClass(PullRequest.class);
+    verify(subscriber, times(3)).pull(pulls.capture());
+    assertEquals(heavy, pulls.getAllValues().get(0).getSubscription());
+    assertEquals(light, pulls.getAllValues().get(1).getSubscription());
+    assertEquals(heavy, pulls.getAllValues().get(2).getSubscription());
+    task.commit();
+    ArgumentCaptor<AcknowledgeRequest> acks = ArgumentCaptor.forClass(AcknowledgeRequest.class);
+    verify(subscriber, atLeast(2)).ackMessages(acks.capture());
+    Map<String, List<String>> ackIds = new HashMap<>();
+    ackIds.put(heavy, new ArrayList<String>());
+    ackIds.put(light, new ArrayList<String>());
+    for (AcknowledgeRequest request : acks.getAllValues()) {
+      ackIds.get(request.getSubscription()).addAll(request.getAckIdsList());
+    }
+    assertEquals(Arrays.asList(ACK_ID1, ACK_ID3), ackIds.get(heavy));
+    assertEquals(Collections.singletonList(ACK_ID2), ackIds.get(light));
+  }
+
+  /** Tests that a pull failing with a ConnectException fails the task instead of being retried. */
+  @Test(expected = ConnectException.class)
+  public void testPollFailsOnUnrecoverablePullError() throws Exception {
+    task.start(props);
+    when(subscriber.pull(any(PullRequest.class)))
+        .thenReturn(
+            Futures.<PullResponse>immediateFailedFuture(new ConnectException("NOT_FOUND")));
+    task.poll();
+  }
+
+  /** Tests that with prefetching a pull failing with a ConnectException fails the task. */
+  @Test(expected = ConnectException.class)
+  public void testPollWithPrefetchFailsOnUnrecoverablePullError() throws Exception {
+    props.put(SampleSourceConnector.CPS_PREFETCH_DEPTH_CONFIG, "2");
+    task.start(props);
+    when(subscriber.pull(any(PullRequest.class)))
+        .thenReturn(
+            Futures.<PullResponse>immediateFailedFuture(new ConnectException("NOT_FOUND")));
+    task.poll();
+  }
+
   @Test
   public void testPollExceptionCase() throws Exception {
     task.start(props);
@@ -0,0 +1,309 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.palmtree.kafka.connector.common.ChannelPool;
+import com.palmtree.kafka.connector.common.FakePubsubServer;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link SampleStreamingPullSubscriber} against a {@link FakePubsubServer}. */
+public class SampleStreamingPullSubscriberTest {
+
+  private static final String TOPIC = "projects/the/topics/quick";
+  private static final String SUBSCRIPTION = "projects/the/subscriptions/brown";
+  private static final int BUFFER_SIZE = 20;
+  private static final int RESPONSE_MESSAGES = 10;
+  private static final long TIMEOUT_MS = 5000;
+
+  private FakePubsubServer server;
+  private ChannelPool pool;
+  private SampleStreamingPullSubscriber subscriber;
+
+  @Before
+  public void setup() throws Exception {
+    server = new FakePubsubServer("fake-cps-streaming-pull").start();
+    server.createSubscription(TOPIC, SUBSCRIPTION);
+    server.setStreamingPullResponseMessages(RESPONSE_MESSAGES);
+    pool = new ChannelPool(1, server.channelFactory(), null);
+    subscriber = new SampleStreamingPullSubscriber(pool, 1, BUFFER_SIZE, 10);
+  }
+
+  @After
+  public void tearDown() {
+    subscriber.close();
+    pool.release();
+    server.shutdown();
+  }
+
+  private static PullRequest request(String subscription, boolean returnImmediately) {
+    return PullRequest.newBuilder()
+        .setSubscription(subscription)
+        .setMaxMessages(100)
+        .setReturnImmediately(returnImmediately)
+        .build();
+  }
+
+  private void publish(int count) {
+    for (int i = 0; i < count; ++i) {
+      server.publish(
+          TOPIC, PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("fox " + i)).build());
+    }
+  }
+
+  /** Pull until at least {@code count} messages have been received. */
+  private List<ReceivedMessage> pullAtLeast(int count) throws Exception {
+    List<ReceivedMessage> received = new ArrayList<>();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (received.size() < count) {
+      assertTrue("Timed out pulling messages.", System.currentTimeMillis() < deadline);
+      received.addAll(
+          subscriber
+              .pull(request(SUBSCRIPTION, false))
+              .get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+              .getReceivedMessagesList());
+    }
+    return received;
+  }
+
+  /** Wait until {@code condition} holds. */
+  private static void await(Callable<Boolean> condition) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (!condition.call()) {
+      assertTrue("Timed out waiting for the condition.", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private void awaitDelivered(final long delivered) throws Exception {
+    await(
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return server.delivered() >= delivered;
+          }
+        });
+  }
+
+  private void awaitStreamsOpened(final long opened) throws Exception {
+    await(
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return server.streamsOpened() >= opened;
+          }
+        });
+  }
+
+  /**
+   * Tests that the stream stops asking for responses once the buffer is full, and asks again once
+   * a pull has drained it.
+   */
+  @Test
+  public void testStopsRequestingWhileBufferIsFull() throws Exception {
+    publish(200);
+    // The first pull opens the stream.
+    subscriber.pull(request(SUBSCRIPTION, true)).get();
+    awaitDelivered(BUFFER_SIZE);
+    Thread.sleep(200);
+    long buffered = server.delivered();
+    // Responses requested before the buffer filled up may still arrive, two at most.
+    assertTrue(
+        buffered + " messages were delivered", buffered <= BUFFER_SIZE + 2 * RESPONSE_MESSAGES);
+    assertTrue(server.backlog(SUBSCRIPTION) > 0);
+    PullResponse response = subscriber.pull(request(SUBSCRIPTION, true)).get();
+    assertTrue(response.getReceivedMessagesCount() > 0);
+    assertTrue(response.getReceivedMessagesCount() <= buffered);
+    // Draining the buffer lets the stream ask for more.
+    awaitDelivered(buffered + 1);
+  }
+
+  /** Tests that the stream stops asking for responses once the flow control limit is reached. */
+  @Test
+  public void testStopsRequestingAtFlowControlLimit() throws Exception {
+    subscriber.close();
+    PullFlowController flowController =
+        new PullFlowController(
+            Collections.singletonList(new AckStateTable(TIMEOUT_MS)), 1, Long.MAX_VALUE);
+    subscriber = new SampleStreamingPullSubscriber(pool, 1, 10 * BUFFER_SIZE, 10, flowController);
+    publish(200);
+    subscriber.pull(request(SUBSCRIPTION, true)).get();
+    awaitDelivered(1);
+    Thread.sleep(200);
+    long buffered = server.delivered();
+    // The buffer size alone would have let the stream receive 10 * BUFFER_SIZE messages.
+    assertTrue(buffered + " messages were delivered", buffered <= 2 * RESPONSE_MESSAGES);
+    assertTrue(subscriber.pull(request(SUBSCRIPTION, true)).get().getReceivedMessagesCount() > 0);
+    // Nothing is outstanding in the task, so draining the buffer lets the stream ask for more.
+    awaitDelivered(buffered + 1);
+  }
+
+  /** Tests that buffered messages are not redelivered while they wait for a pull. */
+  @Test
+  public void testExtendsDeadlinesOfBufferedMessages() throws Exception {
+    subscriber.close();
+    subscriber = new SampleStreamingPullSubscriber(pool, 1, BUFFER_SIZE, 1);
+    publish(200);
+    subscriber.pull(request(SUBSCRIPTION, true)).get();
+    awaitDelivered(BUFFER_SIZE);
+    // Well past the stream ack deadline of the buffered messages.
+    Thread.sleep(2500);
+    long buffered = server.delivered();
+    subscriber.pull(request(SUBSCRIPTION, true)).get();
+    // Delivering the next response puts expired messages back in the backlog.
+    awaitDelivered(buffered + 1);
+    assertEquals(0, server.redelivered());
+  }
+
+  /** Tests that a pull that finds nothing buffered completes empty after waiting for messages. */
+  @Test
+  public void testPendingPullExpires() throws Exception {
+    long startMs = System.currentTimeMillis();
+    PullResponse response =
+        subscriber.pull(request(SUBSCRIPTION, false)).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertEquals(0, response.getReceivedMessagesCount());
+    assertTrue(System.currentTimeMillis() - startMs >= 900);
+  }
+
+  /** Tests that a waiting pull completes as soon as messages arrive on the stream. */
+  @Test
+  public void testPendingPullCompletedByMessages() throws Exception {
+    ListenableFuture<PullResponse> pending = subscriber.pull(request(SUBSCRIPTION, false));
+    assertFalse(pending.isDone());
+    publish(3);
+    PullResponse response = pending.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertTrue(response.getReceivedMessagesCount() > 0);
+  }
+
+  /** Tests that acks and deadline modifications are written to the stream. */
+  @Test
+  public void testAcksAndDeadlinesSentOnStream() throws Exception {
+    publish(2);
+    List<ReceivedMessage> received = pullAtLeast(2);
+    subscriber
+        .ackMessages(
+            AcknowledgeRequest.newBuilder()
+                .setSubscription(SUBSCRIPTION)
+                .addAckIds(received.get(0).getAckId())
+                .build())
+        .get();
+    subscriber
+        .modifyAckDeadline(
+            ModifyAckDeadlineRequest.newBuilder()
+                .setSubscription(SUBSCRIPTION)
+                .addAckIds(received.get(1).getAckId())
+                .setAckDeadlineSeconds(0)
+                .build())
+        .get();
+    await(
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return server.acked() == 1 && server.redelivered() == 1;
+          }
+        });
+    // The message whose deadline was dropped comes back with a new ack id.
+    List<ReceivedMessage> redelivered = pullAtLeast(1);
+    assertEquals(received.get(1).getMessage(), redelivered.get(0).getMessage());
+  }
+
+  /** Tests that a stream that fails with UNAVAILABLE is reopened and keeps delivering. */
+  @Test
+  public void testReopensStreamAfterError() throws Exception {
+    subscriber.pull(request(SUBSCRIPTION, true)).get();
+    awaitStreamsOpened(1);
+    server.goAway();
+    awaitStreamsOpened(2);
+    publish(1);
+    assertEquals(1, pullAtLeast(1).size());
+  }
+
+  /** Tests that a stream failing with a status that can not be retried fails every pull. */
+  @Test
+  public void testNonRetryableErrorFailsPulls() throws Exception {
+    ListenableFuture<PullResponse> pending =
+        subscriber.pull(request("projects/the/subscriptions/missing", false));
+    try {
+      pending.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      fail("The pull should fail since the subscription does not exist.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ConnectException);
+    }
+    // Later pulls fail right away instead of waiting for a stream that is never reopened.
+    ListenableFuture<PullResponse> next =
+        subscriber.pull(request("projects/the/subscriptions/missing", false));
+    assertTrue(next.isDone());
+    assertEquals(0, pool.activeLeases());
+    assertEquals(0, server.streamsOpened());
+  }
+
+  /** Tests that PERMISSION_DENIED on an open stream stops the subscriber from reopening it. */
+  @Test
+  public void testPermissionDeniedFailsPulls() throws Exception {
+    subscriber.pull(request(SUBSCRIPTION, true)).get();
+    awaitStreamsOpened(1);
+    server.failStreams(Status.PERMISSION_DENIED);
+    await(
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            try {
+              subscriber.pull(request(SUBSCRIPTION, true)).get();
+              return false;
+            } catch (ExecutionException e) {
+              return e.getCause() instanceof ConnectException;
+            }
+          }
+        });
+    assertEquals(0, pool.activeLeases());
+    // The stream is not reopened, which would take at least the initial backoff.
+    Thread.sleep(200);
+    assertEquals(1, server.streamsOpened());
+  }
+
+  /**
+   * Tests that closing completes waiting pulls, closes the streams and gives their channels back.
+   */
+  @Test
+  public void testClose() throws Exception {
+    ListenableFuture<PullResponse> pending = subscriber.pull(request(SUBSCRIPTION, false));
+    awaitStreamsOpened(1);
+    subscriber.close();
+    assertTrue(pending.isDone());
+    assertEquals(0, pending.get().getReceivedMessagesCount());
+    assertEquals(0, pool.activeLeases());
+    await(
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return server.openStreams() == 0;
+          }
+        });
+    try {
+      subscriber.pull(request(SUBSCRIPTION, true)).get();
+      fail("Pulls should fail once the subscriber is closed.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+}
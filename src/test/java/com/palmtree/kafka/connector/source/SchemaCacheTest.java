@@ -0,0 +1,48 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.kafka.connect.data.Schema;
+import org.junit.Test;
+
+/** Tests for {@link SchemaCache}. */
+public class SchemaCacheTest {
+
+  private static final String KEY_ATTRIBUTE = "key";
+
+  /** Tests that the key attribute is left out and the other fields are in sorted order. */
+  @Test
+  public void testFieldOrder() {
+    SchemaCache cache = new SchemaCache(10, KEY_ATTRIBUTE);
+    Schema schema = cache.get(names("zebra", KEY_ATTRIBUTE, "apple"));
+    assertEquals(3, schema.fields().size());
+    assertEquals(ConnectorUtils.KAFKA_MESSAGE_CPS_BODY_FIELD, schema.fields().get(0).name());
+    assertEquals("apple", schema.fields().get(1).name());
+    assertEquals("zebra", schema.fields().get(2).name());
+  }
+
+  /** Tests that the least recently used schema is evicted once the cache is full. */
+  @Test
+  public void testLeastRecentlyUsedEviction() {
+    SchemaCache cache = new SchemaCache(2, KEY_ATTRIBUTE);
+    Schema first = cache.get(names("a"));
+    Schema second = cache.get(names("b"));
+    assertSame(first, cache.get(names("a")));
+    cache.get(names("c"));
+    // "b" was the least recently used, so it has to be rebuilt while "a" is still cached.
+    assertSame(first, cache.get(names("a")));
+    assertNotSame(second, cache.get(names("b")));
+    assertEquals(2, cache.hits());
+    assertEquals(4, cache.misses());
+  }
+
+  private static Set<String> names(String... names) {
+    return new HashSet<>(Arrays.asList(names));
+  }
+}
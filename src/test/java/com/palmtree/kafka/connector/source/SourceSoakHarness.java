@@ -0,0 +1,266 @@
+package com.palmtree.kafka.connector.source;
+
+import com.google.protobuf.ByteString;
+import com.palmtree.kafka.connector.common.ChannelPool;
+import com.palmtree.kafka.connector.common.ConnectorUtils;
+import com.palmtree.kafka.connector.common.FakePubsubServer;
+import com.palmtree.kafka.connector.common.LatencyHistogram;
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.connect.source.SourceRecord;
+
+/**
+ * Runs a {@link SampleSourceTask} against a {@link FakePubsubServer} for a while and reports the
+ * throughput, the latency between publishing a message and polling its record, the share of
+ * records that were polled more than once and how much the heap grew. Every record is committed
+ * as soon as it is polled, as if Kafka had written it right away.
+ *
+ * <p>Run it with {@code mvn -P soak test-compile exec:exec -Dsoak.args="durationSeconds=300"}.
+ * The options are given as key=value pairs, see {@link Options}.
+ */
+public class SourceSoakHarness {
+
+  private static final String SERVER_NAME = "source-soak";
+  private static final String CPS_PROJECT = "soak";
+  private static final String CPS_TOPIC = "soak-topic";
+  private static final String CPS_SUBSCRIPTION = "soak-subscription";
+  private static final String KAFKA_TOPIC = "soak";
+  // Messages start with their sequence number, so that duplicates can be told apart.
+  private static final int MIN_MESSAGE_BYTES = 8;
+
+  /** What to run the task against. */
+  public static class Options {
+    long durationSeconds = 60;
+    long reportIntervalSeconds = 10;
+    int messageBytes = 1024;
+    // The harness publishes more messages whenever the backlog falls below this.
+    int backlog = 10000;
+    long minLatencyMs = 1;
+    long maxLatencyMs = 5;
+    long ackDeadlineMs = 10 * 1000;
+    double unavailableRate = 0;
+    double ackDropRate = 0;
+    // How often every call in flight is failed as by a GOAWAY, or 0 for never.
+    long goAwayIntervalSeconds = 0;
+    int channelPoolSize = ConnectorUtils.DEFAULT_CPS_CHANNEL_POOL_SIZE;
+    // Extra connector configs passed on to the task.
+    final Map<String, String> taskProps = new HashMap<>();
+
+    /**
+     * Parse options given as key=value pairs. Keys that are not fields of this class are passed to
+     * the task as connector configs.
+     */
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (String arg : args) {
+        String[] pair = arg.split("=", 2);
+        if (pair.length != 2) {
+          throw new IllegalArgumentException("Expected key=value but got " + arg);
+        }
+        String value = pair[1];
+        switch (pair[0]) {
+          case "durationSeconds":
+            options.durationSeconds = Long.parseLong(value);
+            break;
+          case "reportIntervalSeconds":
+            options.reportIntervalSeconds = Long.parseLong(value);
+            break;
+          case "messageBytes":
+            options.messageBytes = Integer.parseInt(value);
+            break;
+          case "backlog":
+            options.backlog = Integer.parseInt(value);
+            break;
+          case "minLatencyMs":
+            options.minLatencyMs = Long.parseLong(value);
+            break;
+          case "maxLatencyMs":
+            options.maxLatencyMs = Long.parseLong(value);
+            break;
+          case "ackDeadlineMs":
+            options.ackDeadlineMs = Long.parseLong(value);
+            break;
+          case "unavailableRate":
+            options.unavailableRate = Double.parseDouble(value);
+            break;
+          case "ackDropRate":
+            options.ackDropRate = Double.parseDouble(value);
+            break;
+          case "goAwayIntervalSeconds":
+            options.goAwayIntervalSeconds = Long.parseLong(value);
+            break;
+          case "channelPoolSize":
+            options.channelPoolSize = Integer.parseInt(value);
+            break;
+          default:
+            options.taskProps.put(pair[0], value);
+        }
+      }
+      return options;
+    }
+  }
+
+  /** What a run measured. */
+  public static class Result {
+    long records;
+    long duplicates;
+    double recordsPerSecond;
+    long p50LatencyMs;
+    long p99LatencyMs;
+    long heapGrowthBytes;
+    long redelivered;
+    long callsFailed;
+    long channelsRotated;
+
+    /** Return the share of polled records whose message had been polled before. */
+    double duplicateRate() {
+      return records == 0 ? 0 : (double) duplicates / records;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "records=%d msgs/s=%.0f p50=%dms p99=%dms duplicates=%.4f%% heapGrowth=%dKB"
+              + " redelivered=%d callsFailed=%d channelsRotated=%d",
+          records,
+          recordsPerSecond,
+          p50LatencyMs,
+          p99LatencyMs,
+          duplicateRate() * 100,
+          heapGrowthBytes / 1024,
+          redelivered,
+          callsFailed,
+          channelsRotated);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Result result = run(Options.parse(args));
+    System.out.println("Final: " + result);
+  }
+
+  /** Run a task as {@code options} say and return what was measured. */
+  static Result run(Options options) throws Exception {
+    String topic = String.format(ConnectorUtils.CPS_TOPIC_FORMAT, CPS_PROJECT, CPS_TOPIC);
+    String subscription =
+        String.format(ConnectorUtils.CPS_SUBSCRIPTION_FORMAT, CPS_PROJECT, CPS_SUBSCRIPTION);
+    FakePubsubServer server = new FakePubsubServer(SERVER_NAME).start();
+    server.createSubscription(topic, subscription);
+    server.setLatencyMs(options.minLatencyMs, options.maxLatencyMs);
+    server.setAckDeadlineMs(options.ackDeadlineMs);
+    server.setUnavailableRate(options.unavailableRate);
+    server.setAckDropRate(options.ackDropRate);
+    ChannelPool pool = new ChannelPool(options.channelPoolSize, server.channelFactory(), null);
+
+    Map<String, String> props = new HashMap<>();
+    props.put(ConnectorUtils.CPS_PROJECT_CONFIG, CPS_PROJECT);
+    props.put(SampleSourceConnector.CPS_SUBSCRIPTION_CONFIG, CPS_SUBSCRIPTION);
+    props.put(SampleSourceConnector.KAFKA_TOPIC_CONFIG, KAFKA_TOPIC);
+    // The server may expire messages sooner than the task is allowed to believe.
+    long ackDeadlineSeconds =
+        Math.max(AckLeaseManager.MIN_ACK_DEADLINE_SECONDS, options.ackDeadlineMs / 1000);
+    props.put(
+        SampleSourceConnector.CPS_ACK_DEADLINE_SECONDS_CONFIG,
+        Long.toString(Math.min(AckLeaseManager.MAX_ACK_DEADLINE_SECONDS, ackDeadlineSeconds)));
+    props.putAll(options.taskProps);
+    SampleSourceConnector.LoadBalancingPolicy policy =
+        SampleSourceConnector.LoadBalancingPolicy.getEnum(
+            (String)
+                new SampleSourceConnector()
+                    .config()
+                    .parse(props)
+                    .get(SampleSourceConnector.CPS_LOAD_BALANCING_POLICY_CONFIG));
+    SampleSourceTask task =
+        new SampleSourceTask(new SampleLoadBalancingSubscriber(pool, 10, policy));
+    task.start(props);
+
+    LatencyHistogram latencies = new LatencyHistogram();
+    BitSet seen = new BitSet();
+    byte[] padding = new byte[Math.max(options.messageBytes, MIN_MESSAGE_BYTES) - 8];
+    long sequence = 0;
+    Result result = new Result();
+    long heapBefore = usedHeap();
+    long startMs = System.currentTimeMillis();
+    long endMs = startMs + options.durationSeconds * 1000;
+    long nextReportMs = startMs + options.reportIntervalSeconds * 1000;
+    long nextGoAwayMs =
+        options.goAwayIntervalSeconds > 0
+            ? startMs + options.goAwayIntervalSeconds * 1000
+            : Long.MAX_VALUE;
+    try {
+      while (System.currentTimeMillis() < endMs) {
+        while (server.backlog(subscription) < options.backlog) {
+          ByteString data =
+              ByteString.copyFrom(ByteBuffer.allocate(8).putLong(0, sequence++))
+                  .concat(ByteString.copyFrom(padding));
+          server.publish(topic, PubsubMessage.newBuilder().setData(data).build());
+        }
+        List<SourceRecord> records = task.poll();
+        long now = System.currentTimeMillis();
+        for (SourceRecord record : records) {
+          long messageSequence = sequenceOf(record.value());
+          if (seen.get((int) messageSequence)) {
+            ++result.duplicates;
+          }
+          seen.set((int) messageSequence);
+          latencies.record(now - record.timestamp());
+          task.commitRecord(record);
+        }
+        result.records += records.size();
+        task.commit();
+        if (now >= nextGoAwayMs) {
+          server.goAway();
+          nextGoAwayMs += options.goAwayIntervalSeconds * 1000;
+        }
+        if (now >= nextReportMs) {
+          System.out.println(measure(result, latencies, server, pool, startMs, heapBefore));
+          nextReportMs += options.reportIntervalSeconds * 1000;
+        }
+      }
+    } finally {
+      task.stop();
+      pool.release();
+      server.shutdown();
+    }
+    return measure(result, latencies, server, pool, startMs, heapBefore);
+  }
+
+  /** Fill in the rates and totals of {@code result}. */
+  private static Result measure(
+      Result result,
+      LatencyHistogram latencies,
+      FakePubsubServer server,
+      ChannelPool pool,
+      long startMs,
+      long heapBefore) {
+    long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+    result.recordsPerSecond = result.records * 1000.0 / elapsedMs;
+    result.p50LatencyMs = latencies.percentile(0.5);
+    result.p99LatencyMs = latencies.percentile(0.99);
+    result.heapGrowthBytes = usedHeap() - heapBefore;
+    result.redelivered = server.redelivered();
+    result.callsFailed = server.callsFailed();
+    result.channelsRotated = pool.channelsRotated();
+    return result;
+  }
+
+  /** Return the sequence number at the start of a record value. */
+  private static long sequenceOf(Object value) {
+    if (value instanceof ByteBuffer) {
+      ByteBuffer buffer = (ByteBuffer) value;
+      return buffer.getLong(buffer.position());
+    }
+    return ByteBuffer.wrap((byte[]) value).getLong();
+  }
+
+  /** Return the heap in use after a garbage collection. */
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,40 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests for {@link SourceSoakHarness}. */
+public class SourceSoakHarnessTest {
+
+  /** Tests that a short run moves messages through the task without duplicates. */
+  @Test
+  public void testShortRun() throws Exception {
+    SourceSoakHarness.Result result =
+        SourceSoakHarness.run(
+            SourceSoakHarness.Options.parse(
+                new String[] {"durationSeconds=2", "reportIntervalSeconds=60", "backlog=1000"}));
+    assertTrue(result.records > 0);
+    assertEquals(0, result.duplicates);
+    assertTrue(result.p99LatencyMs >= result.p50LatencyMs);
+  }
+
+  /** Tests that messages whose acks are lost are polled again once their deadline expires. */
+  @Test
+  public void testDroppedAcksCauseDuplicates() throws Exception {
+    SourceSoakHarness.Result result =
+        SourceSoakHarness.run(
+            SourceSoakHarness.Options.parse(
+                new String[] {
+                  "durationSeconds=4",
+                  "reportIntervalSeconds=60",
+                  "backlog=100",
+                  "ackDeadlineMs=1000",
+                  "ackDropRate=1",
+                  SampleSourceConnector.CPS_MAX_ACK_EXTENSION_PERIOD_CONFIG + "=0"
+                }));
+    assertTrue(result.redelivered > 0);
+    assertTrue(result.duplicates > 0);
+  }
+}
@@ -0,0 +1,65 @@
+package com.palmtree.kafka.connector.source;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.Test;
+
+/** Tests for {@link SubscriptionAssigner}. */
+public class SubscriptionAssignerTest {
+
+  /** Tests that weights default to 1 and that the order is kept. */
+  @Test
+  public void testParse() {
+    Map<String, Integer> weights = SubscriptionAssigner.parse(Arrays.asList("b:4", " a ", "c : 2"));
+    assertEquals(Arrays.asList("b", "a", "c"), Arrays.asList(weights.keySet().toArray()));
+    assertEquals(4, (int) weights.get("b"));
+    assertEquals(1, (int) weights.get("a"));
+    assertEquals(2, (int) weights.get("c"));
+    assertEquals("b:4,a:1,c:2", SubscriptionAssigner.format(weights));
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testParseInvalidWeight() {
+    SubscriptionAssigner.parse(Arrays.asList("a:0"));
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testParseDuplicate() {
+    SubscriptionAssigner.parse(Arrays.asList("a", "a:2"));
+  }
+
+  /** Tests that with more subscriptions than tasks the weight is balanced over the tasks. */
+  @Test
+  public void testAssignMoreSubscriptionsThanTasks() {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    weights.put("a", 1);
+    weights.put("b", 5);
+    weights.put("c", 2);
+    weights.put("d", 2);
+    weights.put("e", 1);
+    List<Map<String, Integer>> tasks = SubscriptionAssigner.assign(weights, 2);
+    assertEquals(2, tasks.size());
+    assertEquals("b:5,e:1", SubscriptionAssigner.format(tasks.get(0)));
+    assertEquals("c:2,d:2,a:1", SubscriptionAssigner.format(tasks.get(1)));
+  }
+
+  /** Tests that with fewer subscriptions than tasks the extra tasks go to heavy subscriptions. */
+  @Test
+  public void testAssignFewerSubscriptionsThanTasks() {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    weights.put("a", 1);
+    weights.put("b", 3);
+    List<Map<String, Integer>> tasks = SubscriptionAssigner.assign(weights, 4);
+    assertEquals(4, tasks.size());
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(Collections.singletonMap("b", 3), tasks.get(i));
+    }
+    assertEquals(Collections.singletonMap("a", 1), tasks.get(3));
+  }
+}